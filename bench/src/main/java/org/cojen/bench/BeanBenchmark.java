@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.bench;
+
+import java.lang.reflect.Method;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import org.cojen.util.BeanComparator;
+import org.cojen.util.BeanPropertyAccessor;
+
+/**
+ * Measures generated bean property access against reflection, and
+ * generated comparators.
+ *
+ * @author Brian S O'Neill
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BeanBenchmark {
+    private BeanPropertyAccessor<Bean> mAccessor;
+    private Method mGetter;
+    private BeanComparator<Bean> mComparator;
+    private Bean mBean1;
+    private Bean mBean2;
+
+    @Setup
+    public void setup() throws Exception {
+        mAccessor = BeanPropertyAccessor.forClass(Bean.class);
+        mGetter = Bean.class.getMethod("getName");
+        mComparator = BeanComparator.forClass(Bean.class).orderBy("id").orderBy("name");
+        mBean1 = new Bean(1, "one");
+        mBean2 = new Bean(1, "two");
+    }
+
+    @Benchmark
+    public Object accessorGet() {
+        return mAccessor.getPropertyValue(mBean1, "name");
+    }
+
+    @Benchmark
+    public void accessorSet() {
+        mAccessor.setPropertyValue(mBean1, "name", "one");
+    }
+
+    @Benchmark
+    public Object reflectionGet() throws Exception {
+        return mGetter.invoke(mBean1);
+    }
+
+    @Benchmark
+    public Object reflectionLookupAndGet() throws Exception {
+        return Bean.class.getMethod("getName").invoke(mBean1);
+    }
+
+    @Benchmark
+    public int comparatorCompare() {
+        return mComparator.compare(mBean1, mBean2);
+    }
+
+    public static class Bean {
+        private int mId;
+        private String mName;
+
+        public Bean(int id, String name) {
+            mId = id;
+            mName = name;
+        }
+
+        public int getId() {
+            return mId;
+        }
+
+        public void setId(int id) {
+            mId = id;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public void setName(String name) {
+            mName = name;
+        }
+    }
+}
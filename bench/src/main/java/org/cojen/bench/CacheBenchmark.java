@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import org.cojen.util.BoundedCache;
+import org.cojen.util.Cache;
+import org.cojen.util.SoftValueCache;
+import org.cojen.util.WeakIdentityCache;
+import org.cojen.util.WeakKeyCache;
+import org.cojen.util.WeakValueCache;
+
+/**
+ * Measures every Cache implementation with a mix of gets and puts, from one
+ * to 64 threads.
+ *
+ * @author Brian S O'Neill
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheBenchmark {
+    private static final int KEY_COUNT = 1 << 12;
+
+    @Param({"WeakValueCache", "SoftValueCache", "WeakKeyCache",
+            "WeakIdentityCache", "BoundedCache"})
+    String type;
+
+    // Percentage of operations which are puts.
+    @Param({"0", "10"})
+    int writePercent;
+
+    Cache<Integer, Object> mCache;
+    Integer[] mKeys;
+    Object[] mValues;
+
+    @Setup
+    public void setup() {
+        if (type.equals("WeakValueCache")) {
+            mCache = new WeakValueCache<Integer, Object>(KEY_COUNT);
+        } else if (type.equals("SoftValueCache")) {
+            mCache = new SoftValueCache<Integer, Object>(KEY_COUNT);
+        } else if (type.equals("WeakKeyCache")) {
+            mCache = new WeakKeyCache<Integer, Object>(KEY_COUNT);
+        } else if (type.equals("WeakIdentityCache")) {
+            mCache = new WeakIdentityCache<Integer, Object>(KEY_COUNT);
+        } else {
+            mCache = new BoundedCache<Integer, Object>(KEY_COUNT);
+        }
+
+        // Keys and values are strongly held here, so that nothing is evicted.
+        mKeys = new Integer[KEY_COUNT];
+        mValues = new Object[KEY_COUNT];
+        for (int i=0; i<KEY_COUNT; i++) {
+            mKeys[i] = Integer.valueOf(i);
+            mValues[i] = new Object();
+            mCache.put(mKeys[i], mValues[i]);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int mSeed = (int) System.nanoTime() | 1;
+
+        int next() {
+            // Xorshift random number generator.
+            int x = mSeed;
+            x ^= x << 13;
+            x ^= x >>> 17;
+            x ^= x << 5;
+            return mSeed = x;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object threads01(Cursor cursor) {
+        return operate(cursor);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object threads04(Cursor cursor) {
+        return operate(cursor);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Object threads16(Cursor cursor) {
+        return operate(cursor);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public Object threads64(Cursor cursor) {
+        return operate(cursor);
+    }
+
+    private Object operate(Cursor cursor) {
+        int r = cursor.next();
+        int index = r & (KEY_COUNT - 1);
+        if (((r >>> 16) % 100) < writePercent) {
+            return mCache.put(mKeys[index], mValues[index]);
+        } else {
+            return mCache.get(mKeys[index]);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import org.cojen.classfile.ClassFile;
+import org.cojen.classfile.CodeBuilder;
+import org.cojen.classfile.Label;
+import org.cojen.classfile.LocalVariable;
+import org.cojen.classfile.MethodInfo;
+import org.cojen.classfile.Modifiers;
+import org.cojen.classfile.Opcode;
+import org.cojen.classfile.RuntimeClassFile;
+import org.cojen.classfile.TypeDesc;
+
+/**
+ * Measures building, writing, reading and defining class files. The number
+ * of statements per method ranges from small to near the 64K code limit,
+ * which stresses branch resolution in the instruction list.
+ *
+ * @author Brian S O'Neill
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodeGenBenchmark {
+    @Param({"10", "200", "3000"})
+    int statements;
+
+    private byte[] mClassBytes;
+
+    @Setup
+    public void setup() throws IOException {
+        mClassBytes = toBytes(build(new ClassFile("Bench"), statements));
+    }
+
+    /**
+     * CodeBuilder and InstructionList resolution, which happens when the
+     * class file is written.
+     */
+    @Benchmark
+    public byte[] buildAndWrite() throws IOException {
+        return toBytes(build(new ClassFile("Bench"), statements));
+    }
+
+    @Benchmark
+    public ClassFile readFrom() throws IOException {
+        return ClassFile.readFrom(new ByteArrayInputStream(mClassBytes));
+    }
+
+    @Benchmark
+    public byte[] readAndWrite() throws IOException {
+        return toBytes(ClassFile.readFrom(new ByteArrayInputStream(mClassBytes)));
+    }
+
+    @Benchmark
+    public Class defineClass() {
+        // Each class is defined by a new loader, which can be unloaded.
+        RuntimeClassFile cf = new RuntimeClassFile("Bench", null, getClass().getClassLoader());
+        return build(cf, statements).defineClass();
+    }
+
+    static <C extends ClassFile> C build(C cf, int statements) {
+        cf.addDefaultConstructor();
+
+        MethodInfo mi = cf.addMethod(Modifiers.PUBLIC_STATIC, "run", TypeDesc.INT,
+                                     new TypeDesc[] {TypeDesc.INT});
+        CodeBuilder b = new CodeBuilder(mi);
+        LocalVariable x = b.getParameter(0);
+        Label end = b.createLabel();
+
+        for (int i=0; i<statements; i++) {
+            b.loadLocal(x);
+            b.loadConstant(i * 31);
+            b.math(Opcode.IADD);
+            b.storeLocal(x);
+            b.loadLocal(x);
+            // Forward branch, which becomes a wide jump in large methods.
+            b.ifZeroComparisonBranch(end, "<");
+        }
+
+        end.setLocation();
+        b.loadLocal(x);
+        b.returnValue(TypeDesc.INT);
+
+        return cf;
+    }
+
+    static byte[] toBytes(ClassFile cf) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cf.writeTo(out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.bench;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import org.cojen.util.KeyFactory;
+
+/**
+ * Measures creation and hashing of KeyFactory keys, comparing array keys
+ * against generated composite keys.
+ *
+ * @author Brian S O'Neill
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyFactoryBenchmark {
+    public static interface Keys {
+        Object key(String a, int b, long c);
+    }
+
+    @Param({"16", "256"})
+    int arrayLength;
+
+    private Keys mKeys;
+    private byte[] mBytes;
+    private Map<Object, Object> mMap;
+
+    @Setup
+    public void setup() {
+        mKeys = KeyFactory.getFactory(Keys.class);
+        mBytes = new byte[arrayLength];
+        new Random(arrayLength).nextBytes(mBytes);
+
+        mMap = new HashMap<Object, Object>();
+        for (int i=0; i<1000; i++) {
+            mMap.put(mKeys.key("name", i, i), i);
+            mMap.put(KeyFactory.createKey(new Object[] {"name", i, (long) i}), i);
+        }
+    }
+
+    @Benchmark
+    public int byteArrayKeyHash() {
+        return KeyFactory.createKey(mBytes).hashCode();
+    }
+
+    @Benchmark
+    public Object arrayKeyLookup() {
+        return mMap.get(KeyFactory.createKey(new Object[] {"name", 500, 500L}));
+    }
+
+    @Benchmark
+    public Object compositeKeyLookup() {
+        return mMap.get(mKeys.key("name", 500, 500L));
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.bench;
+
+import java.io.UnsupportedEncodingException;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import org.cojen.util.PatternMatcher;
+
+/**
+ * Measures lookups against generated pattern matchers.
+ *
+ * @author Brian S O'Neill
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PatternMatcherBenchmark {
+    @Param({"10", "200", "1000"})
+    int patterns;
+
+    @Param({"false", "true"})
+    boolean deterministic;
+
+    private PatternMatcher<Integer> mMatcher;
+    private String[] mLookups;
+    private byte[][] mByteLookups;
+    private List<String> mLookupList;
+    private int[] mIndexes;
+    private int mNext;
+
+    @Setup
+    public void setup() {
+        Map<String, Integer> map = new HashMap<String, Integer>();
+        for (int i=0; i<patterns; i++) {
+            map.put("/app/module" + i + "/*", i);
+            map.put("/app/module" + i + "/*.html", -i);
+        }
+        map.put("*", Integer.MAX_VALUE);
+        mMatcher = PatternMatcher.forPatterns(map, deterministic);
+
+        mLookups = new String[64];
+        for (int i=0; i<mLookups.length; i++) {
+            mLookups[i] = "/app/module" + (i * 7 % patterns) + "/page" + i +
+                (i % 2 == 0 ? ".html" : ".txt");
+        }
+
+        mLookupList = Arrays.asList(mLookups);
+        mIndexes = new int[mLookups.length];
+
+        mByteLookups = new byte[mLookups.length][];
+        for (int i=0; i<mLookups.length; i++) {
+            try {
+                mByteLookups[i] = mLookups[i].getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    @Benchmark
+    public Object getMatch() {
+        String lookup = mLookups[mNext++ & (mLookups.length - 1)];
+        return mMatcher.getMatch(lookup);
+    }
+
+    @Benchmark
+    public Object getMatchValue() {
+        String lookup = mLookups[mNext++ & (mLookups.length - 1)];
+        return mMatcher.getMatchValue(lookup);
+    }
+
+    @Benchmark
+    public Object getMatchValueBytes() {
+        byte[] lookup = mByteLookups[mNext++ & (mByteLookups.length - 1)];
+        return mMatcher.getMatchValue(lookup, 0, lookup.length);
+    }
+
+    @Benchmark
+    public Object matchAll() {
+        mMatcher.matchAll(mLookupList, mIndexes);
+        return mIndexes;
+    }
+
+    @Benchmark
+    public Object getMatches() {
+        String lookup = mLookups[mNext++ & (mLookups.length - 1)];
+        return mMatcher.getMatches(lookup, 10);
+    }
+}
@@ -23,12 +23,19 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.MissingResourceException;
 
+import org.cojen.util.Cache;
+import org.cojen.util.WeakIdentityCache;
+
 /**
  * 
  *
  * @author Brian S O'Neill
  */
 public abstract class AbstractCodeAssembler implements CodeAssembler {
+    // Maps inline code classes to their decoded "define" methods.
+    private static final Cache<Class, DecodedCode> cInlineTemplates =
+        new WeakIdentityCache<Class, DecodedCode>(17);
+
     protected AbstractCodeAssembler() {
     }
 
@@ -85,9 +92,34 @@ public abstract class AbstractCodeAssembler implements CodeAssembler {
     }
 
     public void inline(Object code) {
+        DecodedCode template = inlineTemplate(code.getClass());
+
+        // Copy stack arguments to expected local variables.
+        TypeDesc[] paramTypes = template.getParameterTypes();
+        LocalVariable[] paramVars = new LocalVariable[paramTypes.length];
+        for (int i=paramVars.length; --i>=0; ) {
+            LocalVariable paramVar = createLocalVariable(paramTypes[i]);
+            storeLocal(paramVar);
+            paramVars[i] = paramVar;
+        }
+
+        Label returnLocation = createLabel();
+        template.replay(this, paramVars, returnLocation);
+        returnLocation.setLocation();
+    }
+
+    /**
+     * Returns the decoded "define" method of the given inline code class,
+     * loading and disassembling it only upon first use.
+     */
+    private static DecodedCode inlineTemplate(Class codeClass) {
+        DecodedCode template = cInlineTemplates.get(codeClass);
+        if (template != null) {
+            return template;
+        }
+
         // First load the class for the inlined code.
 
-        Class codeClass = code.getClass();
         String className = codeClass.getName().replace('.', '/') + ".class";
         ClassLoader loader = codeClass.getClassLoader();
 
@@ -113,6 +145,11 @@ public abstract class AbstractCodeAssembler implements CodeAssembler {
             } catch (NoSuchMethodError e3) {
             }
             throw e2;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
         }
 
         // Now find the single "define" method.
@@ -134,19 +171,12 @@ public abstract class AbstractCodeAssembler implements CodeAssembler {
             throw new IllegalArgumentException("No define method found");
         }
 
-        // Copy stack arguments to expected local variables.
-        TypeDesc[] paramTypes = defineMethod.getMethodDescriptor().getParameterTypes();
-        LocalVariable[] paramVars = new LocalVariable[paramTypes.length];
-        for (int i=paramVars.length; --i>=0; ) {
-            LocalVariable paramVar = createLocalVariable(paramTypes[i]);
-            storeLocal(paramVar);
-            paramVars[i] = paramVar;
-        }
+        template = new CodeDisassembler(defineMethod).decode();
 
-        Label returnLocation = createLabel();
-        CodeDisassembler cd = new CodeDisassembler(defineMethod);
-        cd.disassemble(this, paramVars, returnLocation);
-        returnLocation.setLocation();
+        // Another thread may have decoded the same template concurrently, in
+        // which case either copy is equally valid.
+        DecodedCode existing = cInlineTemplates.putIfAbsent(codeClass, template);
+        return existing == null ? template : existing;
     }
 
     public void invoke(Method method) {
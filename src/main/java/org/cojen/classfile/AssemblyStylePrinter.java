@@ -25,7 +25,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
-import org.cojen.util.IntHashMap;
+import org.cojen.util.IntOpenHashMap;
 import org.cojen.classfile.attribute.Annotation;
 import org.cojen.classfile.attribute.CodeAttr;
 import org.cojen.classfile.attribute.LocalVariableTableAttr;
@@ -57,13 +57,16 @@ class AssemblyStylePrinter implements DisassemblyTool.Printer {
     // Current address being decompiled.
     private int mAddress;
 
+    // Placeholder value in mLabels for addresses which need a label.
+    private static final Object UNRESOLVED = new Object();
+
     // Maps int address keys to String labels.
-    private IntHashMap<Object> mLabels;
+    private IntOpenHashMap<Object> mLabels;
 
     private ExceptionHandler[] mExceptionHandlers;
 
     // Maps int catch locations to Lists of ExceptionHandler objects.
-    private IntHashMap<List<ExceptionHandler>> mCatchLocations;
+    private IntOpenHashMap<List<ExceptionHandler>> mCatchLocations;
 
     public AssemblyStylePrinter() {
     }
@@ -1140,9 +1143,9 @@ class AssemblyStylePrinter implements DisassemblyTool.Printer {
     }
 
     private void gatherLabels() {
-        mLabels = new IntHashMap<Object>();
-        mCatchLocations = new IntHashMap<List<ExceptionHandler>>
-            (mExceptionHandlers.length * 2 + 1);
+        mLabels = new IntOpenHashMap<Object>();
+        mCatchLocations = new IntOpenHashMap<List<ExceptionHandler>>
+            (mExceptionHandlers.length);
 
         // Gather labels for any exception handlers.
         for (int i = mExceptionHandlers.length - 1; i >= 0; i--) {
@@ -1404,8 +1407,7 @@ class AssemblyStylePrinter implements DisassemblyTool.Printer {
             } // end huge switch
         } // end for loop
 
-        Integer[] keys = new Integer[mLabels.size()];
-        keys = mLabels.keySet().toArray(keys);
+        int[] keys = mLabels.keys();
         Arrays.sort(keys);
         for (int i=0; i<keys.length; i++) {
             mLabels.put(keys[i], "L" + (i + 1) + '_' + keys[i]);
@@ -1413,7 +1415,7 @@ class AssemblyStylePrinter implements DisassemblyTool.Printer {
     }
 
     private void createLabel(int labelKey) {
-        mLabels.put(labelKey, (Object) labelKey);
+        mLabels.put(labelKey, UNRESOLVED);
     }
 
     private ConstantInfo getConstant(int index) {
@@ -62,9 +62,9 @@ public abstract class Attribute {
     public static final String RUNTIME_VISIBLE_ANNOTATIONS = "RuntimeVisibleAnnotations";
     public static final String RUNTIME_INVISIBLE_ANNOTATIONS = "RuntimeInvisibleAnnotations";
     public static final String RUNTIME_VISIBLE_PARAMETER_ANNOTATIONS =
-        "RuntimeVisibleParamaterAnnotations";
+        "RuntimeVisibleParameterAnnotations";
     public static final String RUNTIME_INVISIBLE_PARAMETER_ANNOTATIONS =
-        "RuntimeInvisibleParamaterAnnotations";
+        "RuntimeInvisibleParameterAnnotations";
     public static final String STACK_MAP_TABLE = "StackMapTable";
 
     /** The ConstantPool that this attribute is defined against. */
@@ -76,7 +76,7 @@ public abstract class Attribute {
     protected Attribute(ConstantPool cp, String name) {
         mCp = cp;
         mName = name;
-        mNameConstant = cp.addConstantUTF(name);
+        mNameConstant = cp.addAttributeName(name);
     }
 
     /**
@@ -134,12 +134,27 @@ public abstract class Attribute {
                                      DataInput din,
                                      AttributeFactory attrFactory)
         throws IOException
+    {
+        return readFrom(cp, din, attrFactory, false);
+    }
+
+    /**
+     * @param attrFactory optional factory for reading custom attributes
+     * @param deferCode when true, code attributes are not decoded until needed
+     */
+    static Attribute readFrom(ConstantPool cp,
+                              DataInput din,
+                              AttributeFactory attrFactory,
+                              boolean deferCode)
+        throws IOException
     {
         int index = din.readUnsignedShort();
-        String name = ((ConstantUTFInfo)cp.getConstant(index)).getValue();
+        ConstantUTFInfo nameConstant = (ConstantUTFInfo)cp.getConstant(index);
+        String name = nameConstant.getValue();
         int length = din.readInt();
 
-        attrFactory = new Factory(attrFactory);
+        cp.readingAttribute(nameConstant);
+        attrFactory = new Factory(attrFactory, deferCode);
         return attrFactory.createAttribute(cp, name, length, din);
     }
 
@@ -159,9 +174,11 @@ public abstract class Attribute {
 
     private static class Factory implements AttributeFactory {
         private final AttributeFactory mAttrFactory;
+        private final boolean mDeferCode;
 
-        public Factory(AttributeFactory attrFactory) {
+        public Factory(AttributeFactory attrFactory, boolean deferCode) {
             mAttrFactory = attrFactory;
+            mDeferCode = deferCode;
         }
 
         public Attribute createAttribute(ConstantPool cp, 
@@ -172,7 +189,7 @@ public abstract class Attribute {
                 switch (name.charAt(0)) {
                 case 'C':
                     if (name.equals(CODE)) {
-                        return new CodeAttr(cp, name, length, din, mAttrFactory);
+                        return new CodeAttr(cp, name, length, din, mAttrFactory, mDeferCode);
                     } else if (name.equals(CONSTANT_VALUE)) {
                         return new ConstantValueAttr(cp, name, length, din);
                     }
@@ -24,6 +24,7 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.io.ByteArrayInputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
@@ -132,7 +133,23 @@ public class ClassFile {
                                      AttributeFactory attrFactory)
         throws IOException
     {
-        return readFrom(din, loader, attrFactory, new HashMap<String, ClassFile>(11), null);
+        return readFrom(din, loader, attrFactory, new HashMap<String, ClassFile>(11), null, null);
+    }
+
+    /**
+     * Reads a ClassFile from the given data, deferring the decoding of method
+     * code until it is accessed. Code which is never accessed is written back
+     * out exactly as it was read, and so are the original constant pool
+     * entries. Inner classes are not loaded.
+     *
+     * @param data class file data, which must not be modified afterwards
+     * @param attrFactory optional factory for reading custom attributes
+     */
+    static ClassFile readDeferred(byte[] data, AttributeFactory attrFactory)
+        throws IOException
+    {
+        return readFrom(new DataInputStream(new ByteArrayInputStream(data)), null, attrFactory,
+                        new HashMap<String, ClassFile>(11), null, data);
     }
 
     /**
@@ -143,9 +160,15 @@ public class ClassFile {
                                       ClassFileDataLoader loader,
                                       AttributeFactory attrFactory,
                                       Map<String, ClassFile> loadedClassFiles,
-                                      ClassFile outerClass)
+                                      ClassFile outerClass,
+                                      byte[] deferData)
         throws IOException
     {
+        // When reading deferred data, the code is decoded lazily, and the
+        // original constant pool encoding is retained. The DataInput must be
+        // a stream over the data.
+        boolean deferCode = deferData != null;
+
         int magic = din.readInt();
         if (magic != MAGIC) {
             throw new IOException("Incorrect magic number: 0x" + 
@@ -155,7 +178,16 @@ public class ClassFile {
         short minor = din.readShort();
         short major = din.readShort();
 
-        ConstantPool cp = ConstantPool.readFrom(din);
+        ConstantPool cp;
+        if (deferData == null) {
+            cp = ConstantPool.readFrom(din);
+        } else {
+            // Constants start after magic, version and the constant count.
+            int start = 10;
+            cp = ConstantPool.readFrom(din);
+            int end = deferData.length - ((InputStream) din).available();
+            cp.retainOriginal(deferData, start, end - start);
+        }
         Modifiers modifiers = Modifiers.getInstance(din.readUnsignedShort())
             .toSynchronized(false);
 
@@ -177,7 +209,11 @@ public class ClassFile {
         for (int i=0; i<size; i++) {
             index = din.readUnsignedShort();
             ConstantClassInfo info = (ConstantClassInfo)cp.getConstant(index);
-            cf.addInterface(info.getType().getRootName());
+            String name = info.getType().getRootName();
+            if (cf.mInterfaceSet.add(name)) {
+                // Use the existing constant rather than looking it up.
+                cf.mInterfaces.add(info);
+            }
         }
         
         // Read fields.
@@ -189,7 +225,7 @@ public class ClassFile {
         // Read methods.
         size = din.readUnsignedShort();
         for (int i=0; i<size; i++) {
-            cf.mMethods.add(MethodInfo.readFrom(cf, din, attrFactory));
+            cf.mMethods.add(MethodInfo.readFrom(cf, din, attrFactory, deferCode));
         }
 
         // Read attributes.
@@ -272,7 +308,7 @@ public class ClassFile {
             in = new DataInputStream(in);
         }
 
-        return readFrom((DataInput)in, loader, attrFactory, loadedClassFiles, null);
+        return readFrom((DataInput)in, loader, attrFactory, loadedClassFiles, null, null);
     }
 
     private static ClassFile readInnerClass(ConstantClassInfo inner,
@@ -307,7 +343,7 @@ public class ClassFile {
             in = new DataInputStream(in);
         }
 
-        return readFrom((DataInput)in, loader, attrFactory, loadedClassFiles, outerClass);
+        return readFrom((DataInput)in, loader, attrFactory, loadedClassFiles, outerClass, null);
     }
 
     private int mVersion;
@@ -0,0 +1,132 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.classfile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams existing classes through a chain of {@link MethodTransformer
+ * MethodTransformers}. Only the methods accepted by a transformer are
+ * disassembled and re-assembled. The code of all other methods is never
+ * decoded, and it is copied out byte-for-byte. The original constant pool
+ * entries are also copied out unchanged, and new constants are appended at
+ * the end. This ensures that the copied code remains valid.
+ *
+ * <p>Transformers are applied in the order given: the first transformer sees
+ * the original code, and the last one feeds the new method body.
+ *
+ * @author Brian S O'Neill
+ */
+public class ClassRewriter {
+    private final MethodTransformer[] mTransformers;
+    private final AttributeFactory mAttrFactory;
+
+    public ClassRewriter(MethodTransformer... transformers) {
+        this(null, transformers);
+    }
+
+    /**
+     * @param attrFactory optional factory for reading custom attributes
+     */
+    public ClassRewriter(AttributeFactory attrFactory, MethodTransformer... transformers) {
+        for (int i=0; i<transformers.length; i++) {
+            if (transformers[i] == null) {
+                throw new IllegalArgumentException("Null transformer");
+            }
+        }
+        mTransformers = transformers.clone();
+        mAttrFactory = attrFactory;
+    }
+
+    /**
+     * Rewrites the given class file. If no methods were transformed, the
+     * original array is returned as-is.
+     *
+     * @param classFile class file data
+     * @throws IOException if class file is invalid
+     */
+    public byte[] rewrite(byte[] classFile) throws IOException {
+        ClassFile cf = ClassFile.readDeferred(classFile, mAttrFactory);
+
+        if (rewrite(cf) == 0) {
+            return classFile;
+        }
+
+        GenerationContext context = GenerationContext.get();
+        ByteArrayOutputStream out = context.takeOutput();
+        cf.writeTo(out);
+        byte[] bytes = out.toByteArray();
+        context.returnOutput(out);
+        return bytes;
+    }
+
+    /**
+     * Rewrites the methods of the given ClassFile in place. The ClassFile is
+     * typically read in via {@link ClassFile#readFrom ClassFile.readFrom},
+     * although {@link #rewrite(byte[])} is more efficient because it avoids
+     * decoding the code of untransformed methods.
+     *
+     * @return the number of methods transformed
+     */
+    public int rewrite(ClassFile cf) {
+        MethodTransformer[] transformers = mTransformers;
+        List<MethodTransformer> accepted = null;
+        int count = 0;
+
+        MethodInfo[] methods = cf.getMethods();
+        for (int i=0; i<methods.length; i++) {
+            MethodInfo method = methods[i];
+            if (method.getCodeAttr() == null) {
+                continue;
+            }
+
+            for (int j=0; j<transformers.length; j++) {
+                MethodTransformer transformer = transformers[j];
+                if (transformer.accepts(method)) {
+                    if (accepted == null) {
+                        accepted = new ArrayList<MethodTransformer>(transformers.length);
+                    }
+                    accepted.add(transformer);
+                }
+            }
+
+            if (accepted == null || accepted.isEmpty()) {
+                continue;
+            }
+
+            // Capture the original code before the builder replaces it.
+            CodeDisassembler cd = new CodeDisassembler(method);
+            CodeAssembler assembler = new CodeBuilder(method);
+            for (int j=accepted.size(); --j>=0; ) {
+                assembler = accepted.get(j).transform(method, assembler);
+                if (assembler == null) {
+                    throw new IllegalStateException
+                        ("Transformer returned null assembler: " + accepted.get(j));
+                }
+            }
+            cd.disassemble(assembler);
+
+            accepted.clear();
+            count++;
+        }
+
+        return count;
+    }
+}
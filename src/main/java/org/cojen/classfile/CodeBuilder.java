@@ -154,7 +154,8 @@ public class CodeBuilder extends AbstractCodeAssembler implements CodeBuffer, Co
      * executes; pass TypeDesc.VOID if nothing
      */
     private void addInstruction(int stackAdjust, TypeDesc pushed, byte opcode) {
-        mInstructions.new SimpleInstruction(stackAdjust, pushed, new byte[] {opcode});
+        mInstructions.new SimpleInstruction
+            (stackAdjust, pushed, InstructionList.opcodeBytes(opcode));
     }
 
     /**
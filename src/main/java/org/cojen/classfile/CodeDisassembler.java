@@ -20,8 +20,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Vector;
-import org.cojen.util.IntHashMap;
+import org.cojen.util.IntOpenHashMap;
 import org.cojen.classfile.attribute.CodeAttr;
 import org.cojen.classfile.constant.ConstantClassInfo;
 import org.cojen.classfile.constant.ConstantDoubleInfo;
@@ -40,6 +39,10 @@ import org.cojen.classfile.constant.ConstantStringInfo;
  * @author Brian S O'Neill
  */
 public class CodeDisassembler {
+    // Instance which receives error callbacks, which is the original instance
+    // when this is a private copy used for a single disassembly.
+    private final CodeDisassembler mOwner;
+
     private final MethodInfo mMethod;
     private final String mEnclosingClassName;
     private final String mSuperClassName;
@@ -51,20 +54,25 @@ public class CodeDisassembler {
     // Current CodeAssembler in use for disassembly.
     private CodeAssembler mAssembler;
 
+    private volatile DecodedCode mDecoded;
+
     // List of all the LocalVariable objects in use.
-    private Vector<Object> mLocals;
+    private ArrayList<Object> mLocals;
 
     // True if the method being decompiled still has a "this" reference.
     private boolean mHasThis;
 
     private Location mReturnLocation;
 
-    // Maps int address keys to itself, but to Label objects after first
+    // Placeholder value in mLabels for addresses which need a label.
+    private static final Object UNRESOLVED = new Object();
+
+    // Maps int address keys to UNRESOLVED, but to Label objects after first
     // needed.
-    private IntHashMap<Object> mLabels;
+    private IntOpenHashMap<Object> mLabels;
 
     // Maps int catch locations to Lists of ExceptionHandler objects.
-    private IntHashMap<List<ExceptionHandler>> mCatchLocations;
+    private IntOpenHashMap<List<ExceptionHandler>> mCatchLocations;
 
     // Current address being decompiled.
     private int mAddress;
@@ -73,6 +81,7 @@ public class CodeDisassembler {
      * @throws IllegalArgumentException if method has no code
      */
     public CodeDisassembler(MethodInfo method) throws IllegalArgumentException {
+        mOwner = this;
         mMethod = method;
         mEnclosingClassName = method.getClassFile().getClassName();
         mSuperClassName = method.getClassFile().getSuperClassName();
@@ -85,6 +94,38 @@ public class CodeDisassembler {
         mExceptionHandlers = buffer.getExceptionHandlers();
     }
 
+    /**
+     * Copy constructor which shares all the immutable state of the given
+     * disassembler.
+     */
+    private CodeDisassembler(CodeDisassembler owner) {
+        mOwner = owner;
+        mMethod = owner.mMethod;
+        mEnclosingClassName = owner.mEnclosingClassName;
+        mSuperClassName = owner.mSuperClassName;
+        mCode = owner.mCode;
+        mCp = owner.mCp;
+        mByteCodes = owner.mByteCodes;
+        mExceptionHandlers = owner.mExceptionHandlers;
+    }
+
+    /**
+     * Decodes the method into an immutable instruction stream, which can be
+     * replayed into any number of assemblers, concurrently if desired. The
+     * method is decoded only upon the first call, and the same instance is
+     * returned for subsequent calls.
+     */
+    public DecodedCode decode() {
+        DecodedCode decoded = mDecoded;
+        if (decoded == null) {
+            DecodedCode.Recorder recorder =
+                new DecodedCode.Recorder(mMethod.getMethodDescriptor().getParameterTypes());
+            disassemble(recorder);
+            mDecoded = decoded = recorder.finish();
+        }
+        return decoded;
+    }
+
     /**
      * Disassemble the MethodInfo into the given assembler.
      *
@@ -102,10 +143,17 @@ public class CodeDisassembler {
      * a return, leaving any arguments on the stack
      * @see CodeAssemblerPrinter
      */
-    public synchronized void disassemble(CodeAssembler assembler,
-                                         LocalVariable[] params, Location returnLocation) {
+    public void disassemble(CodeAssembler assembler,
+                            LocalVariable[] params, Location returnLocation) {
+        // Disassemble using a private copy of the mutable state, allowing
+        // this instance to be used by multiple threads concurrently.
+        new CodeDisassembler(this).disassembleInto(assembler, params, returnLocation);
+    }
+
+    private void disassembleInto(CodeAssembler assembler,
+                                 LocalVariable[] params, Location returnLocation) {
         mAssembler = assembler;
-        mLocals = new Vector<Object>();
+        mLocals = new ArrayList<Object>();
         if (mHasThis = !mMethod.getModifiers().isStatic()) {
             // Reserve a slot for "this" parameter.
             mLocals.add(null);
@@ -192,7 +240,7 @@ public class CodeDisassembler {
             switch (opcode) {
 
             default:
-                error(opcode, "Unknown opcode: " + (opcode & 0xff));
+                mOwner.error(opcode, "Unknown opcode: " + (opcode & 0xff));
                 break;
 
                 // Opcodes with no operands...
@@ -466,7 +514,7 @@ public class CodeDisassembler {
                 try {
                     ci = mCp.getConstant(index);
                 } catch (IndexOutOfBoundsException e) {
-                    error(opcode, "Undefined constant at index: " + index);
+                    mOwner.error(opcode, "Undefined constant at index: " + index);
                     break;
                 }
 
@@ -483,7 +531,7 @@ public class CodeDisassembler {
                 } else if (ci instanceof ConstantClassInfo) {
                     assembler.loadConstant(((ConstantClassInfo)ci).getType());
                 } else {
-                    error(opcode, "Invalid constant type for load: " + ci);
+                    mOwner.error(opcode, "Invalid constant type for load: " + ci);
                 }
                 break;
 
@@ -492,14 +540,14 @@ public class CodeDisassembler {
                 try {
                     ci = mCp.getConstant(index);
                 } catch (IndexOutOfBoundsException e) {
-                    error(opcode, "Undefined constant at index: " + index);
+                    mOwner.error(opcode, "Undefined constant at index: " + index);
                     break;
                 }
 
                 if (ci instanceof ConstantClassInfo) {
                     assembler.newObject(((ConstantClassInfo)ci).getType());
                 } else {
-                    error(opcode, "Invalid constant type for new: " + ci);
+                    mOwner.error(opcode, "Invalid constant type for new: " + ci);
                 }
                 break;
             case Opcode.ANEWARRAY:
@@ -507,7 +555,7 @@ public class CodeDisassembler {
                 try {
                     ci = mCp.getConstant(index);
                 } catch (IndexOutOfBoundsException e) {
-                    error(opcode, "Undefined constant at index: " + index);
+                    mOwner.error(opcode, "Undefined constant at index: " + index);
                     break;
                 }
 
@@ -515,7 +563,7 @@ public class CodeDisassembler {
                     type = ((ConstantClassInfo)ci).getType().toArrayType();
                     assembler.newObject(type);
                 } else {
-                    error(opcode, "Invalid constant type for new: " + ci);
+                    mOwner.error(opcode, "Invalid constant type for new: " + ci);
                 }
                 break;
             case Opcode.MULTIANEWARRAY:
@@ -523,7 +571,7 @@ public class CodeDisassembler {
                 try {
                     ci = mCp.getConstant(index);
                 } catch (IndexOutOfBoundsException e) {
-                    error(opcode, "Undefined constant at index: " + index);
+                    mOwner.error(opcode, "Undefined constant at index: " + index);
                     break;
                 }
 
@@ -532,7 +580,7 @@ public class CodeDisassembler {
                     type = ((ConstantClassInfo)ci).getType();
                     assembler.newObject(type, dims);
                 } else {
-                    error(opcode, "Invalid constant type for new: " + ci);
+                    mOwner.error(opcode, "Invalid constant type for new: " + ci);
                 }
                 break;
 
@@ -541,14 +589,14 @@ public class CodeDisassembler {
                 try {
                     ci = mCp.getConstant(index);
                 } catch (IndexOutOfBoundsException e) {
-                    error(opcode, "Undefined constant at index: " + index);
+                    mOwner.error(opcode, "Undefined constant at index: " + index);
                     break;
                 }
 
                 if (ci instanceof ConstantClassInfo) {
                     assembler.checkCast(((ConstantClassInfo)ci).getType());
                 } else {
-                    error(opcode, "Invalid constant type for checkcast: " + ci);
+                    mOwner.error(opcode, "Invalid constant type for checkcast: " + ci);
                 }
                 break;
             case Opcode.INSTANCEOF:
@@ -556,14 +604,14 @@ public class CodeDisassembler {
                 try {
                     ci = mCp.getConstant(index);
                 } catch (IndexOutOfBoundsException e) {
-                    error(opcode, "Undefined constant at index: " + index);
+                    mOwner.error(opcode, "Undefined constant at index: " + index);
                     break;
                 }
 
                 if (ci instanceof ConstantClassInfo) {
                     assembler.instanceOf(((ConstantClassInfo)ci).getType());
                 } else {
-                    error(opcode, "Invalid constant type for instanceof: " + ci);
+                    mOwner.error(opcode, "Invalid constant type for instanceof: " + ci);
                 }
                 break;
 
@@ -575,12 +623,12 @@ public class CodeDisassembler {
                 try {
                     ci = mCp.getConstant(index);
                 } catch (IndexOutOfBoundsException e) {
-                    error(opcode, "Undefined constant at index: " + index);
+                    mOwner.error(opcode, "Undefined constant at index: " + index);
                     break;
                 }
 
                 if (!(ci instanceof ConstantFieldInfo)) {
-                    error(opcode, "Invalid constant type for field access: " + ci);
+                    mOwner.error(opcode, "Invalid constant type for field access: " + ci);
                     break;
                 }
 
@@ -592,7 +640,7 @@ public class CodeDisassembler {
                 String fieldName = field.getNameAndType().getName();
                 Descriptor desc = field.getNameAndType().getType();
                 if (!(desc instanceof TypeDesc)) {
-                    error(opcode, "Invalid descriptor for field access: " + desc);
+                    mOwner.error(opcode, "Invalid descriptor for field access: " + desc);
                     break;
                 } else {
                     type = (TypeDesc)desc;
@@ -644,7 +692,7 @@ public class CodeDisassembler {
                 try {
                     ci = mCp.getConstant(index);
                 } catch (IndexOutOfBoundsException e) {
-                    error(opcode, "Undefined constant at index: " + index);
+                    mOwner.error(opcode, "Undefined constant at index: " + index);
                     break;
                 }
 
@@ -654,7 +702,7 @@ public class CodeDisassembler {
                     // Read and ignore nargs and padding byte.
                     readShort();
                     if (!(ci instanceof ConstantInterfaceMethodInfo)) {
-                        error(opcode, "Invalid constant type for method invocation: " + ci);
+                        mOwner.error(opcode, "Invalid constant type for method invocation: " + ci);
                         break;
                     }
                     ConstantInterfaceMethodInfo method = (ConstantInterfaceMethodInfo)ci;
@@ -668,7 +716,7 @@ public class CodeDisassembler {
                     nameAndType = method.getNameAndType();
                 } else {
                     if (!(ci instanceof ConstantMethodInfo)) {
-                        error(opcode, "Invalid constant type for method invocation: " + ci);
+                        mOwner.error(opcode, "Invalid constant type for method invocation: " + ci);
                         break;
                     }
                     ConstantMethodInfo method = (ConstantMethodInfo)ci;
@@ -682,7 +730,7 @@ public class CodeDisassembler {
                 String methodName = nameAndType.getName();
                 desc = nameAndType.getType();
                 if (!(desc instanceof MethodDesc)) {
-                    error(opcode, "Invalid descriptor for method invocation: " + desc);
+                    mOwner.error(opcode, "Invalid descriptor for method invocation: " + desc);
                     break;
                 }
                 TypeDesc ret = ((MethodDesc)desc).getReturnType();
@@ -1096,7 +1144,7 @@ public class CodeDisassembler {
                 }
 
                 if (type == null) {
-                    error(opcode, "Unknown primitive type for new array: " + atype);
+                    mOwner.error(opcode, "Unknown primitive type for new array: " + atype);
                     break;
                 }
 
@@ -1121,7 +1169,7 @@ public class CodeDisassembler {
                     try {
                         cases = new int[caseCount];
                     } catch (NegativeArraySizeException e) {
-                        error(opcode, "Negative case count for switch: " + caseCount);
+                        mOwner.error(opcode, "Negative case count for switch: " + caseCount);
                         break;
                     }
                     locations = new Location[caseCount];
@@ -1134,7 +1182,7 @@ public class CodeDisassembler {
                     try {
                         cases = new int[caseCount];
                     } catch (NegativeArraySizeException e) {
-                        error(opcode, "Negative case count for switch: " + caseCount);
+                        mOwner.error(opcode, "Negative case count for switch: " + caseCount);
                         break;
                     }
                     locations = new Location[caseCount];
@@ -1152,7 +1200,7 @@ public class CodeDisassembler {
                 switch (opcode) {
 
                 default:
-                    error(opcode, "Unknown wide instruction");
+                    mOwner.error(opcode, "Unknown wide instruction");
                     break;
 
                 case Opcode.ILOAD: case Opcode.ISTORE:
@@ -1235,18 +1283,18 @@ public class CodeDisassembler {
     }
 
     private void gatherLabels() {
-        mLabels = new IntHashMap<Object>();
-        mCatchLocations = new IntHashMap<List<ExceptionHandler>>
-            (mExceptionHandlers.length * 2 + 1);
+        mLabels = new IntOpenHashMap<Object>();
+        mCatchLocations = new IntOpenHashMap<List<ExceptionHandler>>
+            (mExceptionHandlers.length);
         int labelKey;
 
         // Gather labels for any exception handlers.
         for (int i = mExceptionHandlers.length - 1; i >= 0; i--) {
             ExceptionHandler handler = mExceptionHandlers[i];
             labelKey = handler.getStartLocation().getLocation();
-            mLabels.put(labelKey, (Object) labelKey);
+            mLabels.put(labelKey, UNRESOLVED);
             labelKey = handler.getEndLocation().getLocation();
-            mLabels.put(labelKey, (Object) labelKey);
+            mLabels.put(labelKey, UNRESOLVED);
             labelKey = handler.getCatchLocation().getLocation();
             List<ExceptionHandler> list = mCatchLocations.get(labelKey);
             if (list == null) {
@@ -1263,7 +1311,7 @@ public class CodeDisassembler {
             switch (opcode) {
 
             default:
-                error(opcode, "Unknown opcode: " + (opcode & 0xff));
+                mOwner.error(opcode, "Unknown opcode: " + (opcode & 0xff));
                 break;
 
                 // Opcodes that use labels.
@@ -1287,13 +1335,13 @@ public class CodeDisassembler {
             case Opcode.IF_ICMPGT:
             case Opcode.IF_ICMPLE:
                 labelKey = mAddress + readShort();
-                mLabels.put(labelKey, (Object) labelKey);
+                mLabels.put(labelKey, UNRESOLVED);
                 break;
 
             case Opcode.GOTO_W:
             case Opcode.JSR_W:
                 labelKey = mAddress + readInt();
-                mLabels.put(labelKey, (Object) labelKey);
+                mLabels.put(labelKey, UNRESOLVED);
                 break;
 
             case Opcode.TABLESWITCH:
@@ -1306,7 +1354,7 @@ public class CodeDisassembler {
                 
                 // Read the default location.
                 labelKey = opcodeAddress + readInt();
-                mLabels.put(labelKey, (Object) labelKey);
+                mLabels.put(labelKey, UNRESOLVED);
                 
                 if (opcode == Opcode.TABLESWITCH) {
                     int lowValue = readInt();
@@ -1316,7 +1364,7 @@ public class CodeDisassembler {
                     for (int i=0; i<caseCount; i++) {
                         // Read the branch location.
                         labelKey = opcodeAddress + readInt();
-                        mLabels.put(labelKey, (Object) labelKey);
+                        mLabels.put(labelKey, UNRESOLVED);
                     }
                 } else {
                     int caseCount = readInt();
@@ -1326,7 +1374,7 @@ public class CodeDisassembler {
                         mAddress += 4;
                         // Read the branch location.
                         labelKey = opcodeAddress + readInt();
-                        mLabels.put(labelKey, (Object) labelKey);
+                        mLabels.put(labelKey, UNRESOLVED);
                     }
                 }
                 break;
@@ -1536,9 +1584,11 @@ public class CodeDisassembler {
         LocalVariable local;
 
         if (index >= mLocals.size()) {
-            mLocals.setSize(index + 1);
+            while (mLocals.size() < index) {
+                mLocals.add(null);
+            }
             local = mAssembler.createLocalVariable(null, type);
-            mLocals.set(index, local);
+            mLocals.add(local);
             return local;
         }
 
@@ -1577,7 +1627,7 @@ public class CodeDisassembler {
         return local;
     }
 
-    private boolean compatibleType(TypeDesc a, TypeDesc b) {
+    static boolean compatibleType(TypeDesc a, TypeDesc b) {
         if (a == b  || (!a.isPrimitive() && !b.isPrimitive())) {
             return true;
         }
@@ -1587,7 +1637,7 @@ public class CodeDisassembler {
         return false;
     }
 
-    private boolean isIntType(TypeDesc type) {
+    private static boolean isIntType(TypeDesc type) {
         switch (type.getTypeCode()) {
         case TypeDesc.INT_CODE:
         case TypeDesc.BOOLEAN_CODE:
@@ -16,13 +16,14 @@
 
 package org.cojen.classfile;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Vector;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
@@ -53,26 +54,41 @@ import org.cojen.classfile.constant.ConstantUTFInfo;
  * @see Opcode
  */
 public class ConstantPool {
-    // A set of ConstantInfo objects.
-    private Map<ConstantInfo, ConstantInfo> mConstants = new HashMap<ConstantInfo, ConstantInfo>();
+    // A set of ConstantInfo objects. When the constant pool was read in, the
+    // set isn't built until first needed.
+    private Map<ConstantInfo, ConstantInfo> mConstants;
     // Indexed list of constants.
-    private Vector<ConstantInfo> mIndexedConstants;
+    private ArrayList<ConstantInfo> mIndexedConstants;
     private int mEntries;
 
     // Preserve the order only if the constant pool was read in.
     private boolean mPreserveOrder;
 
+    // Original encoded constants, which are written back out in bulk. Only
+    // constants with an index at or beyond mOriginalSize need to be encoded.
+    private byte[] mOriginalData;
+    private int mOriginalOffset;
+    private int mOriginalLength;
+    private int mOriginalSize;
+
+    // Name constant of the attribute being read, which avoids a lookup.
+    private ConstantUTFInfo mReadAttributeName;
+
+    // Class constants by type, which are found without first allocating a
+    // probe constant and its name.
+    private Map<TypeDesc, ConstantClassInfo> mClassConstants;
+
     ConstantPool() {
+        mConstants = new HashMap<ConstantInfo, ConstantInfo>();
     }
 
-    private ConstantPool(Vector<ConstantInfo> indexedConstants) {
+    private ConstantPool(ArrayList<ConstantInfo> indexedConstants) {
         mIndexedConstants = indexedConstants;
 
         int size = indexedConstants.size();
         for (int i=1; i<size; i++) {
             ConstantInfo ci = indexedConstants.get(i);
             if (ci != null) {
-                mConstants.put(ci, ci);
                 mEntries += ci.getEntryCount();
             }
         }
@@ -102,7 +118,7 @@ public class ConstantPool {
      * Returns all the constants in the pool, in no particular order.
      */
     public Set<ConstantInfo> getAllConstants() {
-        return Collections.unmodifiableSet(mConstants.keySet());
+        return Collections.unmodifiableSet(constants().keySet());
     }
 
     /**
@@ -116,7 +132,7 @@ public class ConstantPool {
      * Get or create a constant from the constant pool representing a class.
      */
     public ConstantClassInfo addConstantClass(String className) {
-        return (ConstantClassInfo)addConstant(new ConstantClassInfo(this, className));
+        return addConstantClass(TypeDesc.forClass(className));
     }
 
     /**
@@ -133,7 +149,16 @@ public class ConstantPool {
      * Get or create a constant from the constant pool representing a class.
      */
     public ConstantClassInfo addConstantClass(TypeDesc type) {
-        return (ConstantClassInfo)addConstant(new ConstantClassInfo(this, type));
+        Map<TypeDesc, ConstantClassInfo> classes = mClassConstants;
+        if (classes == null) {
+            mClassConstants = classes = new HashMap<TypeDesc, ConstantClassInfo>();
+        }
+        ConstantClassInfo info = classes.get(type);
+        if (info == null) {
+            info = (ConstantClassInfo)addConstant(new ConstantClassInfo(this, type));
+            classes.put(type, info);
+        }
+        return info;
     }
 
     /**
@@ -254,7 +279,9 @@ public class ConstantPool {
      * @return The actual constant in the pool.
      */
     public ConstantInfo addConstant(ConstantInfo constant) {
-        ConstantInfo info = mConstants.get(constant);
+        Map<ConstantInfo, ConstantInfo> constants = constants();
+
+        ConstantInfo info = constants.get(constant);
         if (info != null) {
             return info;
         }
@@ -263,17 +290,78 @@ public class ConstantPool {
 
         if (mIndexedConstants != null && mPreserveOrder) {
             int size = mIndexedConstants.size();
-            mIndexedConstants.setSize(size + entryCount);
-            mIndexedConstants.set(size, constant);
+            mIndexedConstants.add(constant);
+            if (entryCount > 1) {
+                // Reserve the slot for the least significant word.
+                mIndexedConstants.add(null);
+            }
             constant.mIndex = size;
         }
 
-        mConstants.put(constant, constant);
+        constants.put(constant, constant);
         mEntries += entryCount;
 
         return constant;
     }
 
+    /**
+     * Retains the original encoding of a constant pool which was read in,
+     * allowing it to be written back out with a single bulk copy. Constants
+     * added afterwards are appended.
+     *
+     * @param data source which contains the encoded constants, excluding
+     * the count
+     */
+    void retainOriginal(byte[] data, int offset, int length) {
+        if (mIndexedConstants == null || !mPreserveOrder) {
+            throw new IllegalStateException("Constant pool was not read in");
+        }
+        mOriginalData = data;
+        mOriginalOffset = offset;
+        mOriginalLength = length;
+        mOriginalSize = mIndexedConstants.size();
+    }
+
+    /**
+     * Called before reading an attribute, passing the name constant which was
+     * read in.
+     */
+    void readingAttribute(ConstantUTFInfo nameConstant) {
+        mReadAttributeName = nameConstant;
+    }
+
+    /**
+     * Get or create the name constant for a new attribute. If the attribute
+     * is being read in, its existing name constant is returned without a
+     * lookup.
+     */
+    ConstantUTFInfo addAttributeName(String name) {
+        ConstantUTFInfo nameConstant = mReadAttributeName;
+        if (nameConstant != null) {
+            mReadAttributeName = null;
+            if (nameConstant.getValue().equals(name)) {
+                return nameConstant;
+            }
+        }
+        return addConstantUTF(name);
+    }
+
+    private Map<ConstantInfo, ConstantInfo> constants() {
+        Map<ConstantInfo, ConstantInfo> constants = mConstants;
+        if (constants == null) {
+            int size = mIndexedConstants.size();
+            constants = new HashMap<ConstantInfo, ConstantInfo>(size + (size >> 1) + 1);
+            for (int i=1; i<size; i++) {
+                ConstantInfo ci = mIndexedConstants.get(i);
+                if (ci != null) {
+                    constants.put(ci, ci);
+                }
+            }
+            mConstants = constants;
+        }
+        return constants;
+    }
+
     public void writeTo(DataOutput dout) throws IOException {
         // Write out the size (number of entries) of the constant pool.
 
@@ -285,8 +373,7 @@ public class ConstantPool {
         dout.writeShort(size);
 
         if (mIndexedConstants == null || !mPreserveOrder) {
-            mIndexedConstants = new Vector<ConstantInfo>(size);
-            mIndexedConstants.setSize(size);
+            ConstantInfo[] indexed = new ConstantInfo[size];
             int index = 1; // one-based constant pool index
             
             // First write constants of higher priority -- String, Integer, 
@@ -295,44 +382,56 @@ public class ConstantPool {
             // more likely be used (one-byte index) than Opcode.LDC_W (two-byte
             // index).
             
-            Iterator it = mConstants.keySet().iterator();
+            Iterator it = constants().keySet().iterator();
             while (it.hasNext()) {
                 ConstantInfo constant = (ConstantInfo)it.next();
                 if (constant.hasPriority()) {
                     constant.mIndex = index;
-                    mIndexedConstants.set(index, constant);
+                    indexed[index] = constant;
                     index += constant.getEntryCount();
                 }
             }
             
             // Now write all non-priority constants.
             
-            it = mConstants.keySet().iterator();
+            it = constants().keySet().iterator();
             while (it.hasNext()) {
                 ConstantInfo constant = (ConstantInfo)it.next();
                 if (!constant.hasPriority()) {
                     constant.mIndex = index;
-                    mIndexedConstants.set(index, constant);
+                    indexed[index] = constant;
                     index += constant.getEntryCount();
                 }
             }
+
+            mIndexedConstants = new ArrayList<ConstantInfo>(Arrays.asList(indexed));
+        }
+
+        int start = 1;
+        if (mOriginalData != null) {
+            // Copy out the original constants unchanged, and then only encode
+            // the ones which were appended.
+            dout.write(mOriginalData, mOriginalOffset, mOriginalLength);
+            start = mOriginalSize;
         }
 
         // Now actually write out the constants since the indexes have been
         // resolved.
 
-        for (int i=1; i<size; i++) {
-            Object obj = mIndexedConstants.get(i);
-            if (obj != null) {
-                ((ConstantInfo)obj).writeTo(dout);
+        for (int i=start; i<size; i++) {
+            ConstantInfo constant = mIndexedConstants.get(i);
+            if (constant != null) {
+                constant.writeTo(dout);
             }
         }
     }
 
     public static ConstantPool readFrom(DataInput din) throws IOException {
         int size = din.readUnsignedShort();
-        Vector<ConstantInfo> constants = new Vector<ConstantInfo>(size);
-        constants.setSize(size);
+        ArrayList<ConstantInfo> constants = new ArrayList<ConstantInfo>(size);
+        for (int i=0; i<size; i++) {
+            constants.add(null);
+        }
 
         int index = 1;
         while (index < size) {
@@ -0,0 +1,1088 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.classfile;
+
+import java.util.Set;
+
+/**
+ * Immutable sequence of CodeAssembler operations, decoded once from a method
+ * and replayed any number of times. Operations are stored in flat arrays, and
+ * labels and local variables are referenced by index. They are created fresh
+ * on the target assembler for each replay, and so a DecodedCode instance can
+ * be replayed by multiple threads concurrently.
+ *
+ * @author Brian S O'Neill
+ * @see CodeDisassembler#decode
+ */
+public final class DecodedCode {
+    private static final byte
+        OP_MAP_LINE_NUMBER = 1,
+        OP_EXCEPTION_HANDLER = 2,
+        OP_SET_LABEL = 3,
+        OP_LOAD_NULL = 4,
+        OP_LOAD_STRING = 5,
+        OP_LOAD_TYPE = 6,
+        OP_LOAD_BOOLEAN = 7,
+        OP_LOAD_INT = 8,
+        OP_LOAD_LONG = 9,
+        OP_LOAD_FLOAT = 10,
+        OP_LOAD_DOUBLE = 11,
+        OP_LOAD_LOCAL = 12,
+        OP_LOAD_THIS = 13,
+        OP_STORE_LOCAL = 14,
+        OP_LOAD_FROM_ARRAY = 15,
+        OP_STORE_TO_ARRAY = 16,
+        OP_LOAD_FIELD = 17,
+        OP_LOAD_STATIC_FIELD = 18,
+        OP_STORE_FIELD = 19,
+        OP_STORE_STATIC_FIELD = 20,
+        OP_RETURN_VOID = 21,
+        OP_RETURN_VALUE = 22,
+        OP_CONVERT = 23,
+        OP_INVOKE_VIRTUAL = 24,
+        OP_INVOKE_STATIC = 25,
+        OP_INVOKE_INTERFACE = 26,
+        OP_INVOKE_PRIVATE = 27,
+        OP_INVOKE_SUPER = 28,
+        OP_INVOKE_CONSTRUCTOR = 29,
+        OP_INVOKE_SUPER_CONSTRUCTOR = 30,
+        OP_NEW_OBJECT = 31,
+        OP_DUP = 32,
+        OP_DUP_X1 = 33,
+        OP_DUP_X2 = 34,
+        OP_DUP2 = 35,
+        OP_DUP2_X1 = 36,
+        OP_DUP2_X2 = 37,
+        OP_POP = 38,
+        OP_POP2 = 39,
+        OP_SWAP = 40,
+        OP_SWAP2 = 41,
+        OP_BRANCH = 42,
+        OP_IF_NULL_BRANCH = 43,
+        OP_IF_EQUAL_BRANCH = 44,
+        OP_IF_ZERO_COMPARISON_BRANCH = 45,
+        OP_IF_COMPARISON_BRANCH = 46,
+        OP_SWITCH_BRANCH = 47,
+        OP_JSR = 48,
+        OP_RET = 49,
+        OP_MATH = 50,
+        OP_ARRAY_LENGTH = 51,
+        OP_THROW_OBJECT = 52,
+        OP_CHECK_CAST = 53,
+        OP_INSTANCE_OF = 54,
+        OP_INTEGER_INCREMENT = 55,
+        OP_MONITOR_ENTER = 56,
+        OP_MONITOR_EXIT = 57,
+        OP_NOP = 58,
+        OP_BREAKPOINT = 59;
+
+    private final TypeDesc[] mParamTypes;
+
+    // One entry per operation.
+    private final byte[] mOps;
+    // Integer operands, consumed in operation order.
+    private final int[] mInts;
+    // Object operands, consumed in operation order.
+    private final Object[] mRefs;
+
+    private final int mLabelCount;
+
+    // Local variables beyond the parameters, in order of creation.
+    private final String[] mLocalNames;
+    private final TypeDesc[] mLocalTypes;
+
+    private DecodedCode(TypeDesc[] paramTypes,
+                        byte[] ops, int[] ints, Object[] refs, int labelCount,
+                        String[] localNames, TypeDesc[] localTypes)
+    {
+        mParamTypes = paramTypes;
+        mOps = ops;
+        mInts = ints;
+        mRefs = refs;
+        mLabelCount = labelCount;
+        mLocalNames = localNames;
+        mLocalTypes = localTypes;
+    }
+
+    /**
+     * Returns the parameter types of the decoded method.
+     */
+    public TypeDesc[] getParameterTypes() {
+        return mParamTypes.clone();
+    }
+
+    /**
+     * Returns the number of operations which are replayed.
+     */
+    public int getOperationCount() {
+        return mOps.length;
+    }
+
+    /**
+     * Replay the decoded code into the given assembler.
+     */
+    public void replay(CodeAssembler assembler) {
+        replay(assembler, null, null);
+    }
+
+    /**
+     * Replay the decoded code into the given assembler.
+     *
+     * @param params if not null, override the local variables which hold parameter values
+     * @param returnLocation if not null, replay will branch to this location upon seeing
+     * a return, leaving any arguments on the stack
+     */
+    public void replay(CodeAssembler assembler,
+                       LocalVariable[] params, Location returnLocation) {
+        if (params == null) {
+            params = new LocalVariable[assembler.getParameterCount()];
+            for (int i=params.length; --i>=0; ) {
+                params[i] = assembler.getParameter(i);
+            }
+        }
+
+        TypeDesc[] paramTypes = mParamTypes;
+        if (paramTypes.length != params.length) {
+            throw new IllegalArgumentException
+                ("Method parameter count doesn't match given parameter count: "
+                 + paramTypes.length + " != " + params.length);
+        }
+
+        for (int i=0; i<paramTypes.length; i++) {
+            if (!CodeDisassembler.compatibleType(paramTypes[i], params[i].getType())) {
+                throw new IllegalArgumentException
+                    ("Method parameter type is not compatible with given type: "
+                     + paramTypes[i] + " != " + params[i].getType());
+            }
+        }
+
+        final byte[] ops = mOps;
+        final int[] ints = mInts;
+        final Object[] refs = mRefs;
+
+        Label[] labels = new Label[mLabelCount];
+        LocalVariable[] locals = new LocalVariable[paramTypes.length + mLocalTypes.length];
+        System.arraycopy(params, 0, locals, 0, params.length);
+
+        int ip = 0;
+        int rp = 0;
+
+        for (int i=0; i<ops.length; i++) {
+            switch (ops[i]) {
+            case OP_MAP_LINE_NUMBER:
+                assembler.mapLineNumber(ints[ip++]);
+                break;
+            case OP_EXCEPTION_HANDLER:
+                assembler.exceptionHandler(label(assembler, labels, ints[ip++]),
+                                           label(assembler, labels, ints[ip++]),
+                                           (String) refs[rp++]);
+                break;
+            case OP_SET_LABEL:
+                label(assembler, labels, ints[ip++]).setLocation();
+                break;
+
+            case OP_LOAD_NULL:
+                assembler.loadNull();
+                break;
+            case OP_LOAD_STRING:
+                assembler.loadConstant((String) refs[rp++]);
+                break;
+            case OP_LOAD_TYPE:
+                assembler.loadConstant((TypeDesc) refs[rp++]);
+                break;
+            case OP_LOAD_BOOLEAN:
+                assembler.loadConstant(ints[ip++] != 0);
+                break;
+            case OP_LOAD_INT:
+                assembler.loadConstant(ints[ip++]);
+                break;
+            case OP_LOAD_LONG:
+                assembler.loadConstant(readLong(ints, ip));
+                ip += 2;
+                break;
+            case OP_LOAD_FLOAT:
+                assembler.loadConstant(Float.intBitsToFloat(ints[ip++]));
+                break;
+            case OP_LOAD_DOUBLE:
+                assembler.loadConstant(Double.longBitsToDouble(readLong(ints, ip)));
+                ip += 2;
+                break;
+
+            case OP_LOAD_LOCAL:
+                assembler.loadLocal(local(assembler, locals, ints[ip++]));
+                break;
+            case OP_LOAD_THIS:
+                assembler.loadThis();
+                break;
+            case OP_STORE_LOCAL:
+                assembler.storeLocal(local(assembler, locals, ints[ip++]));
+                break;
+            case OP_LOAD_FROM_ARRAY:
+                assembler.loadFromArray((TypeDesc) refs[rp++]);
+                break;
+            case OP_STORE_TO_ARRAY:
+                assembler.storeToArray((TypeDesc) refs[rp++]);
+                break;
+
+            case OP_LOAD_FIELD: {
+                Object owner = refs[rp++];
+                String name = (String) refs[rp++];
+                TypeDesc type = (TypeDesc) refs[rp++];
+                if (owner == null) {
+                    assembler.loadField(name, type);
+                } else if (owner instanceof String) {
+                    assembler.loadField((String) owner, name, type);
+                } else {
+                    assembler.loadField((TypeDesc) owner, name, type);
+                }
+                break;
+            }
+            case OP_LOAD_STATIC_FIELD: {
+                Object owner = refs[rp++];
+                String name = (String) refs[rp++];
+                TypeDesc type = (TypeDesc) refs[rp++];
+                if (owner == null) {
+                    assembler.loadStaticField(name, type);
+                } else if (owner instanceof String) {
+                    assembler.loadStaticField((String) owner, name, type);
+                } else {
+                    assembler.loadStaticField((TypeDesc) owner, name, type);
+                }
+                break;
+            }
+            case OP_STORE_FIELD: {
+                Object owner = refs[rp++];
+                String name = (String) refs[rp++];
+                TypeDesc type = (TypeDesc) refs[rp++];
+                if (owner == null) {
+                    assembler.storeField(name, type);
+                } else if (owner instanceof String) {
+                    assembler.storeField((String) owner, name, type);
+                } else {
+                    assembler.storeField((TypeDesc) owner, name, type);
+                }
+                break;
+            }
+            case OP_STORE_STATIC_FIELD: {
+                Object owner = refs[rp++];
+                String name = (String) refs[rp++];
+                TypeDesc type = (TypeDesc) refs[rp++];
+                if (owner == null) {
+                    assembler.storeStaticField(name, type);
+                } else if (owner instanceof String) {
+                    assembler.storeStaticField((String) owner, name, type);
+                } else {
+                    assembler.storeStaticField((TypeDesc) owner, name, type);
+                }
+                break;
+            }
+
+            case OP_RETURN_VOID:
+                if (returnLocation != null) {
+                    assembler.branch(returnLocation);
+                } else {
+                    assembler.returnVoid();
+                }
+                break;
+            case OP_RETURN_VALUE:
+                if (returnLocation != null) {
+                    rp++;
+                    assembler.branch(returnLocation);
+                } else {
+                    assembler.returnValue((TypeDesc) refs[rp++]);
+                }
+                break;
+            case OP_CONVERT:
+                assembler.convert((TypeDesc) refs[rp++], (TypeDesc) refs[rp++], ints[ip++]);
+                break;
+
+            case OP_INVOKE_VIRTUAL: {
+                Object owner = refs[rp++];
+                String name = (String) refs[rp++];
+                TypeDesc ret = (TypeDesc) refs[rp++];
+                TypeDesc[] params2 = (TypeDesc[]) refs[rp++];
+                if (owner == null) {
+                    assembler.invokeVirtual(name, ret, params2);
+                } else if (owner instanceof String) {
+                    assembler.invokeVirtual((String) owner, name, ret, params2);
+                } else {
+                    assembler.invokeVirtual((TypeDesc) owner, name, ret, params2);
+                }
+                break;
+            }
+            case OP_INVOKE_STATIC: {
+                Object owner = refs[rp++];
+                String name = (String) refs[rp++];
+                TypeDesc ret = (TypeDesc) refs[rp++];
+                TypeDesc[] params2 = (TypeDesc[]) refs[rp++];
+                if (owner == null) {
+                    assembler.invokeStatic(name, ret, params2);
+                } else if (owner instanceof String) {
+                    assembler.invokeStatic((String) owner, name, ret, params2);
+                } else {
+                    assembler.invokeStatic((TypeDesc) owner, name, ret, params2);
+                }
+                break;
+            }
+            case OP_INVOKE_INTERFACE: {
+                Object owner = refs[rp++];
+                String name = (String) refs[rp++];
+                TypeDesc ret = (TypeDesc) refs[rp++];
+                TypeDesc[] params2 = (TypeDesc[]) refs[rp++];
+                if (owner instanceof String) {
+                    assembler.invokeInterface((String) owner, name, ret, params2);
+                } else {
+                    assembler.invokeInterface((TypeDesc) owner, name, ret, params2);
+                }
+                break;
+            }
+            case OP_INVOKE_PRIVATE:
+                assembler.invokePrivate((String) refs[rp++], (TypeDesc) refs[rp++],
+                                        (TypeDesc[]) refs[rp++]);
+                break;
+            case OP_INVOKE_SUPER: {
+                Object owner = refs[rp++];
+                String name = (String) refs[rp++];
+                TypeDesc ret = (TypeDesc) refs[rp++];
+                TypeDesc[] params2 = (TypeDesc[]) refs[rp++];
+                if (owner instanceof String) {
+                    assembler.invokeSuper((String) owner, name, ret, params2);
+                } else {
+                    assembler.invokeSuper((TypeDesc) owner, name, ret, params2);
+                }
+                break;
+            }
+            case OP_INVOKE_CONSTRUCTOR: {
+                Object owner = refs[rp++];
+                TypeDesc[] params2 = (TypeDesc[]) refs[rp++];
+                if (owner == null) {
+                    assembler.invokeConstructor(params2);
+                } else if (owner instanceof String) {
+                    assembler.invokeConstructor((String) owner, params2);
+                } else {
+                    assembler.invokeConstructor((TypeDesc) owner, params2);
+                }
+                break;
+            }
+            case OP_INVOKE_SUPER_CONSTRUCTOR:
+                assembler.invokeSuperConstructor((TypeDesc[]) refs[rp++]);
+                break;
+            case OP_NEW_OBJECT: {
+                TypeDesc type = (TypeDesc) refs[rp++];
+                int dimensions = ints[ip++];
+                if (dimensions < 0) {
+                    assembler.newObject(type);
+                } else {
+                    assembler.newObject(type, dimensions);
+                }
+                break;
+            }
+
+            case OP_DUP:
+                assembler.dup();
+                break;
+            case OP_DUP_X1:
+                assembler.dupX1();
+                break;
+            case OP_DUP_X2:
+                assembler.dupX2();
+                break;
+            case OP_DUP2:
+                assembler.dup2();
+                break;
+            case OP_DUP2_X1:
+                assembler.dup2X1();
+                break;
+            case OP_DUP2_X2:
+                assembler.dup2X2();
+                break;
+            case OP_POP:
+                assembler.pop();
+                break;
+            case OP_POP2:
+                assembler.pop2();
+                break;
+            case OP_SWAP:
+                assembler.swap();
+                break;
+            case OP_SWAP2:
+                assembler.swap2();
+                break;
+
+            case OP_BRANCH:
+                assembler.branch(label(assembler, labels, ints[ip++]));
+                break;
+            case OP_IF_NULL_BRANCH:
+                assembler.ifNullBranch(label(assembler, labels, ints[ip++]), ints[ip++] != 0);
+                break;
+            case OP_IF_EQUAL_BRANCH:
+                assembler.ifEqualBranch(label(assembler, labels, ints[ip++]), ints[ip++] != 0);
+                break;
+            case OP_IF_ZERO_COMPARISON_BRANCH:
+                assembler.ifZeroComparisonBranch(label(assembler, labels, ints[ip++]),
+                                                 (String) refs[rp++]);
+                break;
+            case OP_IF_COMPARISON_BRANCH:
+                assembler.ifComparisonBranch(label(assembler, labels, ints[ip++]),
+                                             (String) refs[rp++]);
+                break;
+            case OP_SWITCH_BRANCH: {
+                int[] cases = (int[]) refs[rp++];
+                Location defaultLocation = label(assembler, labels, ints[ip++]);
+                Location[] locations = new Location[cases.length];
+                for (int j=0; j<locations.length; j++) {
+                    locations[j] = label(assembler, labels, ints[ip++]);
+                }
+                assembler.switchBranch(cases.clone(), locations, defaultLocation);
+                break;
+            }
+            case OP_JSR:
+                assembler.jsr(label(assembler, labels, ints[ip++]));
+                break;
+            case OP_RET:
+                assembler.ret(local(assembler, locals, ints[ip++]));
+                break;
+
+            case OP_MATH:
+                assembler.math((byte) ints[ip++]);
+                break;
+            case OP_ARRAY_LENGTH:
+                assembler.arrayLength();
+                break;
+            case OP_THROW_OBJECT:
+                assembler.throwObject();
+                break;
+            case OP_CHECK_CAST:
+                assembler.checkCast((TypeDesc) refs[rp++]);
+                break;
+            case OP_INSTANCE_OF:
+                assembler.instanceOf((TypeDesc) refs[rp++]);
+                break;
+            case OP_INTEGER_INCREMENT:
+                assembler.integerIncrement(local(assembler, locals, ints[ip++]), ints[ip++]);
+                break;
+            case OP_MONITOR_ENTER:
+                assembler.monitorEnter();
+                break;
+            case OP_MONITOR_EXIT:
+                assembler.monitorExit();
+                break;
+            case OP_NOP:
+                assembler.nop();
+                break;
+            case OP_BREAKPOINT:
+                assembler.breakpoint();
+                break;
+
+            default:
+                throw new IllegalStateException("Unknown operation: " + ops[i]);
+            }
+        }
+    }
+
+    private static Label label(CodeAssembler assembler, Label[] labels, int index) {
+        Label label = labels[index];
+        if (label == null) {
+            labels[index] = label = assembler.createLabel();
+        }
+        return label;
+    }
+
+    private LocalVariable local(CodeAssembler assembler, LocalVariable[] locals, int index) {
+        LocalVariable local = locals[index];
+        if (local == null) {
+            int i = index - mParamTypes.length;
+            locals[index] = local = assembler.createLocalVariable(mLocalNames[i], mLocalTypes[i]);
+        }
+        return local;
+    }
+
+    private static long readLong(int[] ints, int ip) {
+        return (((long) ints[ip]) << 32) | (ints[ip + 1] & 0xffffffffL);
+    }
+
+    /**
+     * CodeAssembler which captures operations into a DecodedCode.
+     */
+    static class Recorder extends AbstractCodeAssembler {
+        private final TypeDesc[] mParamTypes;
+        private final LocalVariable[] mParams;
+
+        private byte[] mOps = new byte[64];
+        private int mOpCount;
+        private int[] mInts = new int[64];
+        private int mIntCount;
+        private Object[] mRefs = new Object[64];
+        private int mRefCount;
+
+        private int mLabelCount;
+
+        private String[] mLocalNames = new String[8];
+        private TypeDesc[] mLocalTypes = new TypeDesc[8];
+        private int mLocalCount;
+
+        Recorder(TypeDesc[] paramTypes) {
+            mParamTypes = paramTypes;
+            mParams = new LocalVariable[paramTypes.length];
+            for (int i=0; i<paramTypes.length; i++) {
+                mParams[i] = new Local(i, null, paramTypes[i]);
+            }
+        }
+
+        DecodedCode finish() {
+            byte[] ops = new byte[mOpCount];
+            System.arraycopy(mOps, 0, ops, 0, ops.length);
+            int[] ints = new int[mIntCount];
+            System.arraycopy(mInts, 0, ints, 0, ints.length);
+            Object[] refs = new Object[mRefCount];
+            System.arraycopy(mRefs, 0, refs, 0, refs.length);
+            String[] localNames = new String[mLocalCount];
+            System.arraycopy(mLocalNames, 0, localNames, 0, localNames.length);
+            TypeDesc[] localTypes = new TypeDesc[mLocalCount];
+            System.arraycopy(mLocalTypes, 0, localTypes, 0, localTypes.length);
+            return new DecodedCode(mParamTypes.clone(), ops, ints, refs, mLabelCount,
+                                   localNames, localTypes);
+        }
+
+        public int getParameterCount() {
+            return mParams.length;
+        }
+
+        public LocalVariable getParameter(int index) {
+            return mParams[index];
+        }
+
+        public LocalVariable createLocalVariable(String name, TypeDesc type) {
+            if (mLocalCount >= mLocalTypes.length) {
+                String[] names = new String[mLocalCount * 2];
+                System.arraycopy(mLocalNames, 0, names, 0, mLocalCount);
+                mLocalNames = names;
+                TypeDesc[] types = new TypeDesc[mLocalCount * 2];
+                System.arraycopy(mLocalTypes, 0, types, 0, mLocalCount);
+                mLocalTypes = types;
+            }
+            mLocalNames[mLocalCount] = name;
+            mLocalTypes[mLocalCount] = type;
+            return new Local(mParams.length + mLocalCount++, name, type);
+        }
+
+        public Label createLabel() {
+            return new RecordedLabel(mLabelCount++);
+        }
+
+        public void exceptionHandler(Location startLocation,
+                                     Location endLocation,
+                                     String catchClassName) {
+            op(OP_EXCEPTION_HANDLER);
+            label(startLocation);
+            label(endLocation);
+            ref(catchClassName);
+        }
+
+        public void mapLineNumber(int lineNumber) {
+            op(OP_MAP_LINE_NUMBER);
+            i(lineNumber);
+        }
+
+        public void loadNull() {
+            op(OP_LOAD_NULL);
+        }
+
+        public void loadConstant(String value) {
+            op(OP_LOAD_STRING);
+            ref(value);
+        }
+
+        public void loadConstant(TypeDesc type) {
+            op(OP_LOAD_TYPE);
+            ref(type);
+        }
+
+        public void loadConstant(boolean value) {
+            op(OP_LOAD_BOOLEAN);
+            i(value ? 1 : 0);
+        }
+
+        public void loadConstant(int value) {
+            op(OP_LOAD_INT);
+            i(value);
+        }
+
+        public void loadConstant(long value) {
+            op(OP_LOAD_LONG);
+            i((int) (value >> 32));
+            i((int) value);
+        }
+
+        public void loadConstant(float value) {
+            op(OP_LOAD_FLOAT);
+            i(Float.floatToRawIntBits(value));
+        }
+
+        public void loadConstant(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            op(OP_LOAD_DOUBLE);
+            i((int) (bits >> 32));
+            i((int) bits);
+        }
+
+        public void loadLocal(LocalVariable local) {
+            op(OP_LOAD_LOCAL);
+            local(local);
+        }
+
+        public void loadThis() {
+            op(OP_LOAD_THIS);
+        }
+
+        public void storeLocal(LocalVariable local) {
+            op(OP_STORE_LOCAL);
+            local(local);
+        }
+
+        public void loadFromArray(TypeDesc type) {
+            op(OP_LOAD_FROM_ARRAY);
+            ref(type);
+        }
+
+        public void storeToArray(TypeDesc type) {
+            op(OP_STORE_TO_ARRAY);
+            ref(type);
+        }
+
+        public void loadField(String fieldName, TypeDesc type) {
+            field(OP_LOAD_FIELD, null, fieldName, type);
+        }
+
+        public void loadField(String className, String fieldName, TypeDesc type) {
+            field(OP_LOAD_FIELD, className, fieldName, type);
+        }
+
+        public void loadField(TypeDesc classDesc, String fieldName, TypeDesc type) {
+            field(OP_LOAD_FIELD, classDesc, fieldName, type);
+        }
+
+        public void loadStaticField(String fieldName, TypeDesc type) {
+            field(OP_LOAD_STATIC_FIELD, null, fieldName, type);
+        }
+
+        public void loadStaticField(String className, String fieldName, TypeDesc type) {
+            field(OP_LOAD_STATIC_FIELD, className, fieldName, type);
+        }
+
+        public void loadStaticField(TypeDesc classDesc, String fieldName, TypeDesc type) {
+            field(OP_LOAD_STATIC_FIELD, classDesc, fieldName, type);
+        }
+
+        public void storeField(String fieldName, TypeDesc type) {
+            field(OP_STORE_FIELD, null, fieldName, type);
+        }
+
+        public void storeField(String className, String fieldName, TypeDesc type) {
+            field(OP_STORE_FIELD, className, fieldName, type);
+        }
+
+        public void storeField(TypeDesc classDesc, String fieldName, TypeDesc type) {
+            field(OP_STORE_FIELD, classDesc, fieldName, type);
+        }
+
+        public void storeStaticField(String fieldName, TypeDesc type) {
+            field(OP_STORE_STATIC_FIELD, null, fieldName, type);
+        }
+
+        public void storeStaticField(String className, String fieldName, TypeDesc type) {
+            field(OP_STORE_STATIC_FIELD, className, fieldName, type);
+        }
+
+        public void storeStaticField(TypeDesc classDesc, String fieldName, TypeDesc type) {
+            field(OP_STORE_STATIC_FIELD, classDesc, fieldName, type);
+        }
+
+        public void returnVoid() {
+            op(OP_RETURN_VOID);
+        }
+
+        public void returnValue(TypeDesc type) {
+            op(OP_RETURN_VALUE);
+            ref(type);
+        }
+
+        public void convert(TypeDesc fromType, TypeDesc toType) {
+            convert(fromType, toType, CONVERT_FP_NORMAL);
+        }
+
+        public void convert(TypeDesc fromType, TypeDesc toType, int fpConvertMode) {
+            op(OP_CONVERT);
+            ref(fromType);
+            ref(toType);
+            i(fpConvertMode);
+        }
+
+        public void invokeVirtual(String methodName, TypeDesc ret, TypeDesc[] params) {
+            invoke(OP_INVOKE_VIRTUAL, null, methodName, ret, params);
+        }
+
+        public void invokeVirtual(String className, String methodName,
+                                  TypeDesc ret, TypeDesc[] params) {
+            invoke(OP_INVOKE_VIRTUAL, className, methodName, ret, params);
+        }
+
+        public void invokeVirtual(TypeDesc classDesc, String methodName,
+                                  TypeDesc ret, TypeDesc[] params) {
+            invoke(OP_INVOKE_VIRTUAL, classDesc, methodName, ret, params);
+        }
+
+        public void invokeStatic(String methodName, TypeDesc ret, TypeDesc[] params) {
+            invoke(OP_INVOKE_STATIC, null, methodName, ret, params);
+        }
+
+        public void invokeStatic(String className, String methodName,
+                                 TypeDesc ret, TypeDesc[] params) {
+            invoke(OP_INVOKE_STATIC, className, methodName, ret, params);
+        }
+
+        public void invokeStatic(TypeDesc classDesc, String methodName,
+                                 TypeDesc ret, TypeDesc[] params) {
+            invoke(OP_INVOKE_STATIC, classDesc, methodName, ret, params);
+        }
+
+        public void invokeInterface(String className, String methodName,
+                                    TypeDesc ret, TypeDesc[] params) {
+            invoke(OP_INVOKE_INTERFACE, className, methodName, ret, params);
+        }
+
+        public void invokeInterface(TypeDesc classDesc, String methodName,
+                                    TypeDesc ret, TypeDesc[] params) {
+            invoke(OP_INVOKE_INTERFACE, classDesc, methodName, ret, params);
+        }
+
+        public void invokePrivate(String methodName, TypeDesc ret, TypeDesc[] params) {
+            op(OP_INVOKE_PRIVATE);
+            ref(methodName);
+            ref(ret);
+            ref(copy(params));
+        }
+
+        public void invokeSuper(String superClassName, String methodName,
+                                TypeDesc ret, TypeDesc[] params) {
+            invoke(OP_INVOKE_SUPER, superClassName, methodName, ret, params);
+        }
+
+        public void invokeSuper(TypeDesc superClassDesc, String methodName,
+                                TypeDesc ret, TypeDesc[] params) {
+            invoke(OP_INVOKE_SUPER, superClassDesc, methodName, ret, params);
+        }
+
+        public void invokeConstructor(TypeDesc[] params) {
+            op(OP_INVOKE_CONSTRUCTOR);
+            ref(null);
+            ref(copy(params));
+        }
+
+        public void invokeConstructor(String className, TypeDesc[] params) {
+            op(OP_INVOKE_CONSTRUCTOR);
+            ref(className);
+            ref(copy(params));
+        }
+
+        public void invokeConstructor(TypeDesc classDesc, TypeDesc[] params) {
+            op(OP_INVOKE_CONSTRUCTOR);
+            ref(classDesc);
+            ref(copy(params));
+        }
+
+        public void invokeSuperConstructor(TypeDesc[] params) {
+            op(OP_INVOKE_SUPER_CONSTRUCTOR);
+            ref(copy(params));
+        }
+
+        public void newObject(TypeDesc type) {
+            // Negative dimensions select the single argument form.
+            newObject(type, -1);
+        }
+
+        public void newObject(TypeDesc type, int dimensions) {
+            op(OP_NEW_OBJECT);
+            ref(type);
+            i(dimensions);
+        }
+
+        public void dup() {
+            op(OP_DUP);
+        }
+
+        public void dupX1() {
+            op(OP_DUP_X1);
+        }
+
+        public void dupX2() {
+            op(OP_DUP_X2);
+        }
+
+        public void dup2() {
+            op(OP_DUP2);
+        }
+
+        public void dup2X1() {
+            op(OP_DUP2_X1);
+        }
+
+        public void dup2X2() {
+            op(OP_DUP2_X2);
+        }
+
+        public void pop() {
+            op(OP_POP);
+        }
+
+        public void pop2() {
+            op(OP_POP2);
+        }
+
+        public void swap() {
+            op(OP_SWAP);
+        }
+
+        public void swap2() {
+            op(OP_SWAP2);
+        }
+
+        public void branch(Location location) {
+            op(OP_BRANCH);
+            label(location);
+        }
+
+        public void ifNullBranch(Location location, boolean choice) {
+            op(OP_IF_NULL_BRANCH);
+            label(location);
+            i(choice ? 1 : 0);
+        }
+
+        public void ifEqualBranch(Location location, boolean choice) {
+            op(OP_IF_EQUAL_BRANCH);
+            label(location);
+            i(choice ? 1 : 0);
+        }
+
+        public void ifZeroComparisonBranch(Location location, String choice) {
+            op(OP_IF_ZERO_COMPARISON_BRANCH);
+            label(location);
+            ref(choice);
+        }
+
+        public void ifComparisonBranch(Location location, String choice) {
+            op(OP_IF_COMPARISON_BRANCH);
+            label(location);
+            ref(choice);
+        }
+
+        public void switchBranch(int[] cases, Location[] locations, Location defaultLocation) {
+            op(OP_SWITCH_BRANCH);
+            ref(cases.clone());
+            label(defaultLocation);
+            for (int i=0; i<locations.length; i++) {
+                label(locations[i]);
+            }
+        }
+
+        public void jsr(Location location) {
+            op(OP_JSR);
+            label(location);
+        }
+
+        public void ret(LocalVariable local) {
+            op(OP_RET);
+            local(local);
+        }
+
+        public void math(byte opcode) {
+            op(OP_MATH);
+            i(opcode);
+        }
+
+        public void arrayLength() {
+            op(OP_ARRAY_LENGTH);
+        }
+
+        public void throwObject() {
+            op(OP_THROW_OBJECT);
+        }
+
+        public void checkCast(TypeDesc type) {
+            op(OP_CHECK_CAST);
+            ref(type);
+        }
+
+        public void instanceOf(TypeDesc type) {
+            op(OP_INSTANCE_OF);
+            ref(type);
+        }
+
+        public void integerIncrement(LocalVariable local, int amount) {
+            op(OP_INTEGER_INCREMENT);
+            local(local);
+            i(amount);
+        }
+
+        public void monitorEnter() {
+            op(OP_MONITOR_ENTER);
+        }
+
+        public void monitorExit() {
+            op(OP_MONITOR_EXIT);
+        }
+
+        public void nop() {
+            op(OP_NOP);
+        }
+
+        public void breakpoint() {
+            op(OP_BREAKPOINT);
+        }
+
+        private void field(byte op, Object owner, String fieldName, TypeDesc type) {
+            op(op);
+            ref(owner);
+            ref(fieldName);
+            ref(type);
+        }
+
+        private void invoke(byte op, Object owner, String methodName,
+                            TypeDesc ret, TypeDesc[] params) {
+            op(op);
+            ref(owner);
+            ref(methodName);
+            ref(ret);
+            ref(copy(params));
+        }
+
+        private static TypeDesc[] copy(TypeDesc[] params) {
+            return params == null ? null : params.clone();
+        }
+
+        private void op(byte op) {
+            if (mOpCount >= mOps.length) {
+                byte[] ops = new byte[mOpCount * 2];
+                System.arraycopy(mOps, 0, ops, 0, mOpCount);
+                mOps = ops;
+            }
+            mOps[mOpCount++] = op;
+        }
+
+        private void i(int value) {
+            if (mIntCount >= mInts.length) {
+                int[] ints = new int[mIntCount * 2];
+                System.arraycopy(mInts, 0, ints, 0, mIntCount);
+                mInts = ints;
+            }
+            mInts[mIntCount++] = value;
+        }
+
+        private void ref(Object value) {
+            if (mRefCount >= mRefs.length) {
+                Object[] refs = new Object[mRefCount * 2];
+                System.arraycopy(mRefs, 0, refs, 0, mRefCount);
+                mRefs = refs;
+            }
+            mRefs[mRefCount++] = value;
+        }
+
+        private void label(Location location) {
+            if (!(location instanceof RecordedLabel)) {
+                throw new IllegalArgumentException("Foreign location: " + location);
+            }
+            i(((RecordedLabel) location).mIndex);
+        }
+
+        private void local(LocalVariable local) {
+            if (!(local instanceof Local)) {
+                throw new IllegalArgumentException("Foreign local variable: " + local);
+            }
+            i(((Local) local).mIndex);
+        }
+
+        private class RecordedLabel implements Label {
+            final int mIndex;
+
+            RecordedLabel(int index) {
+                mIndex = index;
+            }
+
+            public Label setLocation() {
+                op(OP_SET_LABEL);
+                i(mIndex);
+                return this;
+            }
+
+            public int getLocation() {
+                return -1;
+            }
+
+            public int compareTo(Location other) {
+                if (this == other) {
+                    return 0;
+                }
+                if (other instanceof RecordedLabel) {
+                    int a = mIndex;
+                    int b = ((RecordedLabel) other).mIndex;
+                    return a < b ? -1 : (a > b ? 1 : 0);
+                }
+                return -1;
+            }
+        }
+    }
+
+    private static class Local implements LocalVariable {
+        final int mIndex;
+        private final TypeDesc mType;
+        private String mName;
+
+        Local(int index, String name, TypeDesc type) {
+            mIndex = index;
+            mName = name;
+            mType = type;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public void setName(String name) {
+            mName = name;
+        }
+
+        public TypeDesc getType() {
+            return mType;
+        }
+
+        public boolean isDoubleWord() {
+            return mType.isDoubleWord();
+        }
+
+        public int getNumber() {
+            return -1;
+        }
+
+        public Set<LocationRange> getLocationRangeSet() {
+            return null;
+        }
+
+        public String toString() {
+            return "local_" + mIndex;
+        }
+    }
+}
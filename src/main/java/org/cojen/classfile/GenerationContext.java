@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.classfile;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Per-thread scratch buffers which are reused between generated classes, so
+ * that generating a class mostly allocates just its final byte arrays.
+ * Buffers are taken out of the context while in use, and so nested use on
+ * the same thread simply allocates new ones.
+ *
+ * @author Brian S O'Neill
+ */
+final class GenerationContext {
+    // Buffers which grow larger than this are not retained.
+    private static final int MAX_RETAINED = 1 << 20;
+
+    private static final ThreadLocal<GenerationContext> cContext =
+        new ThreadLocal<GenerationContext>()
+    {
+        @Override
+        protected GenerationContext initialValue() {
+            return new GenerationContext();
+        }
+    };
+
+    static GenerationContext get() {
+        return cContext.get();
+    }
+
+    private byte[] mCode;
+    private Output mOutput;
+
+    private GenerationContext() {
+    }
+
+    /**
+     * Returns a scratch buffer for assembling byte codes, which has at least
+     * the given capacity.
+     */
+    byte[] takeCode(int capacity) {
+        byte[] code = mCode;
+        if (code != null && code.length >= capacity) {
+            mCode = null;
+            return code;
+        }
+        return new byte[capacity];
+    }
+
+    void returnCode(byte[] code) {
+        if (code.length <= MAX_RETAINED && (mCode == null || mCode.length < code.length)) {
+            mCode = code;
+        }
+    }
+
+    /**
+     * Returns an empty scratch stream for writing out a class file.
+     */
+    ByteArrayOutputStream takeOutput() {
+        Output out = mOutput;
+        if (out == null) {
+            return new Output();
+        }
+        mOutput = null;
+        out.reset();
+        return out;
+    }
+
+    void returnOutput(ByteArrayOutputStream out) {
+        if (out instanceof Output && ((Output)out).capacity() <= MAX_RETAINED) {
+            mOutput = (Output)out;
+        }
+    }
+
+    private static final class Output extends ByteArrayOutputStream {
+        Output() {
+            super(1024);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+}
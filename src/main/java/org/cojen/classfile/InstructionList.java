@@ -66,6 +66,17 @@ class InstructionList implements CodeBuffer {
         DO_LIVENESS_ANALYSIS = doLiveness;
     }
 
+    // Byte codes of instructions which consist of just an opcode, shared by
+    // all instances since they are never modified.
+    private static final byte[][] cOpcodeBytes;
+
+    static {
+        cOpcodeBytes = new byte[256][];
+        for (int i=0; i<256; i++) {
+            cOpcodeBytes[i] = new byte[] {(byte)i};
+        }
+    }
+
     private final boolean mSaveLocalVariableInfo;
 
     private Boolean mReduceLocalVariables;
@@ -385,11 +396,15 @@ class InstructionList implements CodeBuffer {
         // locations of other instructions, so that is why additional passes
         // are required.
             
+        // Assemble into a reused scratch buffer, and then copy out the
+        // exact byte codes at the end.
+        GenerationContext context = GenerationContext.get();
+        mByteCodes = context.takeCode(instrCount * 2); // estimate
+
         boolean passAgain;
         do {
             passAgain = false;
             
-            mByteCodes = new byte[instrCount * 2]; // estimate
             mBufferLength = 0;
             
             for (Instruction instr = mFirst; instr != null; instr = instr.mNext) {
@@ -425,11 +440,10 @@ class InstructionList implements CodeBuffer {
             }
         } while (passAgain); // do {} while ();
         
-        if (mBufferLength != mByteCodes.length) {
-            byte[] newBytes = new byte[mBufferLength];
-            System.arraycopy(mByteCodes, 0, newBytes, 0, mBufferLength);
-            mByteCodes = newBytes;
-        }
+        byte[] scratch = mByteCodes;
+        mByteCodes = new byte[mBufferLength];
+        System.arraycopy(scratch, 0, mByteCodes, 0, mBufferLength);
+        context.returnCode(scratch);
 
         // Set resolved at end because during resolution, this field gets
         // set false again while changes are being made to the list
@@ -1267,6 +1281,14 @@ class InstructionList implements CodeBuffer {
         }
     }
 
+    /**
+     * Returns a shared array containing just the given opcode, which must not
+     * be modified.
+     */
+    static byte[] opcodeBytes(byte opcode) {
+        return cOpcodeBytes[opcode & 0xff];
+    }
+
     static int calcInvokeAdjust(byte opcode, TypeDesc ret, TypeDesc[] params) {
         int stackAdjust = returnSize(ret) - argSize(params);
 
@@ -2249,7 +2271,7 @@ class InstructionList implements CodeBuffer {
      */
     public class StackOperationInstruction extends CodeInstruction {
         public StackOperationInstruction(byte opcode) {
-            super(calcStackOperationAdjust(opcode), new byte[] {opcode});
+            super(calcStackOperationAdjust(opcode), opcodeBytes(opcode));
         }
 
         @Override
@@ -442,6 +442,18 @@ public class MethodInfo {
                                DataInput din,
                                AttributeFactory attrFactory)
         throws IOException
+    {
+        return readFrom(parent, din, attrFactory, false);
+    }
+
+    /**
+     * @param deferCode when true, the code attribute is not decoded until needed
+     */
+    static MethodInfo readFrom(ClassFile parent, 
+                               DataInput din,
+                               AttributeFactory attrFactory,
+                               boolean deferCode)
+        throws IOException
     {
         ConstantPool cp = parent.getConstantPool();
 
@@ -457,7 +469,7 @@ public class MethodInfo {
         // Read attributes.
         int size = din.readUnsignedShort();
         for (int i=0; i<size; i++) {
-            info.addAttribute(Attribute.readFrom(cp, din, attrFactory));
+            info.addAttribute(Attribute.readFrom(cp, din, attrFactory, deferCode));
         }
 
         return info;
@@ -0,0 +1,44 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.classfile;
+
+/**
+ * Method-level transformation step used by a {@link ClassRewriter}.
+ *
+ * @author Brian S O'Neill
+ */
+public interface MethodTransformer {
+    /**
+     * Returns true if the given method is to be transformed. This method is
+     * called before the method's code is decoded, and so it should only
+     * examine the method's name, descriptor, modifiers and attributes.
+     *
+     * @param method method which has code
+     */
+    boolean accepts(MethodInfo method);
+
+    /**
+     * Returns a CodeAssembler which receives the disassembled code of the
+     * original method, passing its possibly altered instructions to the given
+     * assembler. A {@link DelegatedCodeAssembler} is the typical base class
+     * for returned assemblers.
+     *
+     * @param method method being transformed
+     * @param assembler receives the transformed code
+     */
+    CodeAssembler transform(MethodInfo method, CodeAssembler assembler);
+}
@@ -37,7 +37,7 @@ import java.security.ProtectionDomain;
 import java.security.cert.Certificate;
 
 import org.cojen.util.Cache;
-import org.cojen.util.KeyFactory;
+import org.cojen.util.GeneratorMetrics;
 import org.cojen.util.WeakKeyCache;
 import org.cojen.util.WeakValueCache;
 
@@ -139,8 +139,9 @@ public class RuntimeClassFile extends ClassFile {
      */
     public Class defineClass() {
         byte[] bytes;
+        GenerationContext context = GenerationContext.get();
+        ByteArrayOutputStream bout = context.takeOutput();
         try {
-            ByteArrayOutputStream bout = new ByteArrayOutputStream();
             writeTo(bout);
             bytes = bout.toByteArray();
         } catch (IOException e) {
@@ -148,6 +149,7 @@ public class RuntimeClassFile extends ClassFile {
             ie.initCause(e);
             throw ie;
         }
+        context.returnOutput(bout);
 
         if (DEBUG) {
             File file = new File(getClassName().replace('.', '/') + ".class");
@@ -167,7 +169,15 @@ public class RuntimeClassFile extends ClassFile {
             }
         }
 
-        return mLoader.define(getClassName(), bytes);
+        GeneratorMetrics metrics = GeneratorMetrics.getInstance();
+        if (metrics == null) {
+            return mLoader.define(getClassName(), bytes);
+        }
+
+        long start = System.nanoTime();
+        Class clazz = mLoader.define(getClassName(), bytes);
+        metrics.classDefined(getSourceFile(), clazz, bytes.length, System.nanoTime() - start);
+        return clazz;
     }
 
     /**
@@ -284,9 +294,69 @@ public class RuntimeClassFile extends ClassFile {
             }
         }
 
-        return KeyFactory.createKey(new Object[] {
-            parentLoader, packageName, domainKey, csKey, permsKey, principalsKey
-        });
+        return new LoaderKey(parentLoader, packageName, domainKey, csKey, permsKey, principalsKey);
+    }
+
+    /**
+     * Key for selecting a Loader. None of the components are arrays, and so
+     * their own equals and hashCode methods suffice.
+     */
+    private static final class LoaderKey {
+        private final ClassLoader mParentLoader;
+        private final String mPackageName;
+        private final Object mDomainKey;
+        private final Object mCsKey;
+        private final Object mPermsKey;
+        private final Object mPrincipalsKey;
+        private final int mHash;
+
+        LoaderKey(ClassLoader parentLoader, String packageName, Object domainKey,
+                  Object csKey, Object permsKey, Object principalsKey)
+        {
+            mParentLoader = parentLoader;
+            mPackageName = packageName;
+            mDomainKey = domainKey;
+            mCsKey = csKey;
+            mPermsKey = permsKey;
+            mPrincipalsKey = principalsKey;
+
+            int hash = packageName.hashCode();
+            hash = hash * 31 + hash(parentLoader);
+            hash = hash * 31 + hash(domainKey);
+            hash = hash * 31 + hash(csKey);
+            hash = hash * 31 + hash(permsKey);
+            hash = hash * 31 + hash(principalsKey);
+            mHash = hash;
+        }
+
+        public int hashCode() {
+            return mHash;
+        }
+
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof LoaderKey)) {
+                return false;
+            }
+            LoaderKey other = (LoaderKey) obj;
+            return mHash == other.mHash
+                && mParentLoader == other.mParentLoader
+                && mPackageName.equals(other.mPackageName)
+                && equals(mDomainKey, other.mDomainKey)
+                && equals(mCsKey, other.mCsKey)
+                && equals(mPermsKey, other.mPermsKey)
+                && equals(mPrincipalsKey, other.mPrincipalsKey);
+        }
+
+        private static int hash(Object obj) {
+            return obj == null ? 0 : obj.hashCode();
+        }
+
+        private static boolean equals(Object a, Object b) {
+            return a == null ? b == null : a.equals(b);
+        }
     }
 
     private static final class Loader extends ClassLoader {
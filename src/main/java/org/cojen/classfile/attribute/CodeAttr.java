@@ -18,7 +18,9 @@ package org.cojen.classfile.attribute;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.io.ByteArrayInputStream;
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.IOException;
 import org.cojen.classfile.Attribute;
@@ -53,6 +55,11 @@ public class CodeAttr extends Attribute {
     private StackMapTableAttr mOldStackMapTable;
     private StackMapTableAttr mStackMapTable;
 
+    // Undecoded attribute data, when decoding was deferred.
+    private byte[] mRawData;
+    private AttributeFactory mAttrFactory;
+    private MethodInfo mInitialFrameMethod;
+
     public CodeAttr(ConstantPool cp) {
         super(cp, CODE);
     }
@@ -66,7 +73,30 @@ public class CodeAttr extends Attribute {
         throws IOException
     {
         super(cp, name);
+        readData(cp, din, attrFactory);
+    }
 
+    /**
+     * @param defer when true, the attribute data is captured but not decoded
+     * until first needed, and it is written back out unchanged if never decoded
+     */
+    public CodeAttr(ConstantPool cp, String name, int length,
+                    DataInput din, AttributeFactory attrFactory, boolean defer)
+        throws IOException
+    {
+        super(cp, name);
+        if (defer) {
+            mRawData = new byte[length];
+            din.readFully(mRawData);
+            mAttrFactory = attrFactory;
+        } else {
+            readData(cp, din, attrFactory);
+        }
+    }
+
+    private void readData(ConstantPool cp, DataInput din, AttributeFactory attrFactory)
+        throws IOException
+    {
         final int maxStackDepth = din.readUnsignedShort();
         final int maxLocals = din.readUnsignedShort();
 
@@ -105,10 +135,52 @@ public class CodeAttr extends Attribute {
         }
     }
 
+    /**
+     * Returns true if the attribute data was read in with decoding deferred,
+     * and it still hasn't been decoded.
+     */
+    public boolean isDeferred() {
+        return mRawData != null;
+    }
+
+    /**
+     * Decodes the deferred attribute data, if necessary.
+     */
+    private void decode() {
+        byte[] raw = mRawData;
+        if (raw == null) {
+            return;
+        }
+
+        mRawData = null;
+        AttributeFactory attrFactory = mAttrFactory;
+        mAttrFactory = null;
+
+        try {
+            readData(getConstantPool(), new DataInputStream(new ByteArrayInputStream(raw)),
+                     attrFactory);
+        } catch (IOException e) {
+            IllegalStateException e2 = new IllegalStateException
+                ("Error decoding code attribute: " + e.getMessage());
+            try {
+                e2.initCause(e);
+            } catch (NoSuchMethodError e3) {
+            }
+            throw e2;
+        }
+
+        MethodInfo method = mInitialFrameMethod;
+        if (method != null) {
+            mInitialFrameMethod = null;
+            setInitialStackMapFrame(method);
+        }
+    }
+
     /**
      * Returns null if no CodeBuffer is defined for this CodeAttr.
      */
     public CodeBuffer getCodeBuffer() {
+        decode();
         return mCodeBuffer;
     }
 
@@ -117,6 +189,7 @@ public class CodeAttr extends Attribute {
      * variable tables are created.
      */
     public void setCodeBuffer(CodeBuffer code) {
+        decode();
         mCodeBuffer = code;
         mOldLineNumberTable = mLineNumberTable;
         mOldLocalVariableTable = mLocalVariableTable;
@@ -136,6 +209,7 @@ public class CodeAttr extends Attribute {
      * @return -1 if no line number is mapped for the start_pc.
      */
     public int getLineNumber(Location start) {
+        decode();
         LineNumberTableAttr table = mOldLineNumberTable;
         if (table == null) {
             table = mLineNumberTable;
@@ -168,6 +242,7 @@ public class CodeAttr extends Attribute {
      * @return null if unknown
      */
     public LocalVariable getLocalVariable(int useLocation, int number) {
+        decode();
         LocalVariableTableAttr table = mOldLocalVariableTable;
         if (table == null) {
             table = mLocalVariableTable;
@@ -185,6 +260,7 @@ public class CodeAttr extends Attribute {
      * as a debugging aid.
      */
     public void mapLineNumber(Location start, int line_number) {
+        decode();
         if (mLineNumberTable == null) {
             addAttribute(new LineNumberTableAttr(getConstantPool()));
         }
@@ -198,6 +274,7 @@ public class CodeAttr extends Attribute {
      * This method should be called at most once per LocalVariable instance.
      */
     public void localVariableUse(LocalVariable localVar) {
+        decode();
         if (mLocalVariableTable == null) {
             addAttribute(new LocalVariableTableAttr(getConstantPool()));
         }
@@ -205,10 +282,16 @@ public class CodeAttr extends Attribute {
     }
 
     public StackMapTableAttr getStackMapTable() {
+        decode();
         return mStackMapTable;
     }
 
     public void setInitialStackMapFrame(MethodInfo method) {
+        if (mRawData != null) {
+            // Apply after decoding.
+            mInitialFrameMethod = method;
+            return;
+        }
         if (mStackMapTable == null) {
             mStackMapTable = new StackMapTableAttr(getConstantPool());
         }
@@ -216,6 +299,7 @@ public class CodeAttr extends Attribute {
     }
 
     public void addAttribute(Attribute attr) {
+        decode();
         if (attr instanceof LineNumberTableAttr) {
             if (mLineNumberTable != null) {
                 mAttributes.remove(mLineNumberTable);
@@ -237,6 +321,7 @@ public class CodeAttr extends Attribute {
     }
     
     public Attribute[] getAttributes() {
+        decode();
         return mAttributes.toArray(new Attribute[mAttributes.size()]);
     }
 
@@ -244,6 +329,10 @@ public class CodeAttr extends Attribute {
      * Returns the length (in bytes) of this object in the class file.
      */
     public int getLength() {
+        if (mRawData != null) {
+            return mRawData.length;
+        }
+
         int length = 12;
 
         if (mCodeBuffer != null) {
@@ -264,6 +353,12 @@ public class CodeAttr extends Attribute {
     }
 
     public void writeDataTo(DataOutput dout) throws IOException {
+        if (mRawData != null) {
+            // Never decoded, so copy out the original data unchanged.
+            dout.write(mRawData);
+            return;
+        }
+
         if (mCodeBuffer == null) {
             throw new IllegalStateException("CodeAttr has no CodeBuffer set");
         }
@@ -79,6 +79,14 @@ public abstract class ParameterAnnotationsAttr extends Attribute {
         return mParameterAnnotations.size();
     }
 
+    /**
+     * Sets the number of parameters, which should match the method
+     * descriptor. Annotations of removed parameters are discarded.
+     */
+    public void setParameterCount(int count) {
+        mParameterAnnotations.setSize(count);
+    }
+
     /**
      * @param parameter zero-based parameter number
      */
@@ -96,7 +104,7 @@ public abstract class ParameterAnnotationsAttr extends Attribute {
      */
     public void addAnnotation(int parameter, Annotation annotation) {
         if (parameter >= mParameterAnnotations.size()) {
-            mParameterAnnotations.setSize(parameter);
+            mParameterAnnotations.setSize(parameter + 1);
         }
         Vector<Annotation> annotations = mParameterAnnotations.get(parameter);
         if (annotations == null) {
@@ -109,9 +117,12 @@ public abstract class ParameterAnnotationsAttr extends Attribute {
     public int getLength() {
         int length = 1;
         for (int i=mParameterAnnotations.size(); --i>=0; ) {
+            length += 2;
             Vector<Annotation> annotations = mParameterAnnotations.get(i);
-            for (int j=annotations.size(); --j>=0; ) {
-                length += 2 + annotations.get(j).getLength();
+            if (annotations != null) {
+                for (int j=annotations.size(); --j>=0; ) {
+                    length += annotations.get(j).getLength();
+                }
             }
         }
         return length;
@@ -122,6 +133,10 @@ public abstract class ParameterAnnotationsAttr extends Attribute {
         dout.writeByte(size);
         for (int i=0; i<size; i++) {
             Vector<Annotation> annotations = mParameterAnnotations.get(i);
+            if (annotations == null) {
+                dout.writeShort(0);
+                continue;
+            }
             int subSize = annotations.size();
             dout.writeShort(subSize);
             for (int j=0; j<subSize; j++) {
@@ -0,0 +1,237 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cojen.classfile.TypeDesc;
+import org.cojen.classfile.attribute.Annotation;
+
+// Import the tags.
+import static org.cojen.util.AnnotationDescPrinter.*;
+
+/**
+ * Decodes a binary annotation descriptor directly into a Cojen Annotation
+ * definition.
+ *
+ * @author Brian S O'Neill
+ * @see AnnotationDescEncoder
+ */
+public class AnnotationDescDecoder {
+    private final byte[] mDesc;
+
+    private int mPos;
+    private List<String> mStrings;
+
+    /**
+     * @param desc binary annotation descriptor to decode
+     */
+    public AnnotationDescDecoder(byte[] desc) {
+        mDesc = desc;
+    }
+
+    /**
+     * Decodes the descriptor, returning the root annotation that received the
+     * results.
+     *
+     * @param rootAnnotation root annotation
+     * @return root annotation
+     * @throws IllegalArgumentException if descriptor is malformed
+     */
+    public Annotation parse(Annotation rootAnnotation) {
+        mPos = 0;
+        mStrings = new ArrayList<String>();
+
+        try {
+            if (readByte() != AnnotationDescEncoder.VERSION) {
+                throw error("Unsupported version");
+            }
+
+            TypeDesc rootAnnotationType = TypeDesc.forDescriptor(readString());
+
+            if (rootAnnotation == null) {
+                rootAnnotation = buildRootAnnotation(rootAnnotationType);
+            } else if (!rootAnnotationType.equals(rootAnnotation.getType())) {
+                throw new IllegalArgumentException
+                    ("Annotation type of \"" + rootAnnotationType +
+                     "\" does not match expected type of \"" + rootAnnotation.getType());
+            }
+
+            readMembers(rootAnnotation);
+
+            if (mPos != mDesc.length) {
+                throw error("Unexpected trailing bytes");
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw error("Too short");
+        }
+
+        return rootAnnotation;
+    }
+
+    /**
+     * Override this method if a root annotation is not provided, as it must be
+     * built after decoding the root annotation type. By default, this method
+     * throws UnsupportedOperationException.
+     */
+    protected Annotation buildRootAnnotation(TypeDesc rootAnnotationType) {
+        throw new UnsupportedOperationException();
+    }
+
+    private void readMembers(Annotation dest) {
+        int tag;
+        while ((tag = readByte()) != 0) {
+            String name = readString();
+            dest.putMemberValue(name, readValue(dest, (char) tag));
+        }
+    }
+
+    private Annotation.MemberValue readValue(Annotation dest, char tag) {
+        switch (tag) {
+        default:
+            throw error("Invalid tag");
+
+        case TAG_BOOLEAN:
+            return dest.makeMemberValue(readByte() != 0);
+
+        case TAG_BYTE:
+            return dest.makeMemberValue((byte) readByte());
+
+        case TAG_SHORT:
+            return dest.makeMemberValue((short) readSignedVarLong());
+
+        case TAG_CHAR:
+            return dest.makeMemberValue((char) readVarInt());
+
+        case TAG_INT:
+            return dest.makeMemberValue((int) readSignedVarLong());
+
+        case TAG_LONG:
+            return dest.makeMemberValue(readSignedVarLong());
+
+        case TAG_FLOAT:
+            return dest.makeMemberValue(Float.intBitsToFloat((int) readFixed(4)));
+
+        case TAG_DOUBLE:
+            return dest.makeMemberValue(Double.longBitsToDouble(readFixed(8)));
+
+        case TAG_STRING:
+            return dest.makeMemberValue(readString());
+
+        case TAG_CLASS:
+            return dest.makeMemberValue(TypeDesc.forDescriptor(readString()));
+
+        case TAG_ENUM: {
+            TypeDesc enumType = TypeDesc.forDescriptor(readString());
+            return dest.makeMemberValue(enumType, readString());
+        }
+
+        case TAG_ANNOTATION: {
+            Annotation nested = dest.makeAnnotation();
+            nested.setType(TypeDesc.forDescriptor(readString()));
+            readMembers(nested);
+            return dest.makeMemberValue(nested);
+        }
+
+        case TAG_ARRAY: {
+            // Each element is encoded in at least one byte.
+            Annotation.MemberValue[] values =
+                new Annotation.MemberValue[readLength("Invalid array length")];
+            if (values.length > 0) {
+                char elementTag = (char) readByte();
+                if (elementTag == TAG_ARRAY) {
+                    throw error("Nested array");
+                }
+                for (int i=0; i<values.length; i++) {
+                    values[i] = readValue(dest, elementTag);
+                }
+            }
+            return dest.makeMemberValue(values);
+        }
+        }
+    }
+
+    private String readString() {
+        int ref = readVarInt();
+        if (ref != 0) {
+            try {
+                return mStrings.get(ref - 1);
+            } catch (IndexOutOfBoundsException e) {
+                throw error("Invalid string reference");
+            }
+        }
+        int length = readLength("Invalid string length");
+        String str = new String(mDesc, mPos, length, AnnotationDescEncoder.UTF_8);
+        mPos += length;
+        mStrings.add(str);
+        return str;
+    }
+
+    private int readByte() {
+        return mDesc[mPos++] & 0xff;
+    }
+
+    private int readVarInt() {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = mDesc[mPos++];
+            v |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return v;
+            }
+        }
+        throw error("Malformed length");
+    }
+
+    /**
+     * Reads a count or length, which cannot exceed the remaining bytes.
+     */
+    private int readLength(String message) {
+        int length = readVarInt();
+        if (length < 0 || length > mDesc.length - mPos) {
+            throw error(message);
+        }
+        return length;
+    }
+
+    private long readSignedVarLong() {
+        long v = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = mDesc[mPos++];
+            v |= (b & 0x7fL) << shift;
+            if (b >= 0) {
+                // Zig-zag decode.
+                return (v >>> 1) ^ -(v & 1);
+            }
+        }
+        throw error("Malformed number");
+    }
+
+    private long readFixed(int length) {
+        long v = 0;
+        for (int i=0; i<length; i++) {
+            v = (v << 8) | (mDesc[mPos++] & 0xff);
+        }
+        return v;
+    }
+
+    private IllegalArgumentException error(String message) {
+        message = "Illegal binary annotation descriptor: " + message + " at position " + mPos;
+        return new IllegalArgumentException(message);
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.util;
+
+import java.lang.annotation.Annotation;
+
+import java.nio.charset.Charset;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.cojen.classfile.TypeDesc;
+
+/**
+ * Encodes annotations into compact binary descriptors, which are an
+ * alternative to the String descriptors produced by {@link
+ * AnnotationDescPrinter}. Binary descriptors can be compared and hashed as
+ * byte arrays, and they are decoded without re-parsing text.
+ *
+ * <p>Lengths and integers are encoded as variable length quantities, and
+ * each distinct String (type, member name, or value) is written once and
+ * then referenced by number.
+ *
+ * @author Brian S O'Neill
+ * @see AnnotationDescDecoder
+ */
+public class AnnotationDescEncoder extends AnnotationVisitor<Object, Object> {
+    static final int VERSION = 1;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Returns a binary annotation descriptor, with members sorted by name.
+     */
+    public static byte[] encode(Annotation value) {
+        AnnotationDescEncoder encoder = new AnnotationDescEncoder(true);
+        encoder.visit(value);
+        return encoder.toByteArray();
+    }
+
+    private byte[] mBuffer;
+    private int mSize;
+
+    private Map<String, Integer> mStrings;
+
+    /**
+     * @param sort when true, sort annotation members by name (case sensitive)
+     */
+    public AnnotationDescEncoder(boolean sort) {
+        super(sort);
+        mBuffer = new byte[64];
+    }
+
+    /**
+     * Encodes the annotation, replacing any previous result.
+     *
+     * @param value Annotation to visit
+     * @return null
+     */
+    public Object visit(Annotation value) {
+        mSize = 0;
+        mStrings = null;
+        writeByte(VERSION);
+        return visit(value, null);
+    }
+
+    /**
+     * Returns a copy of the encoded descriptor.
+     */
+    public byte[] toByteArray() {
+        byte[] copy = new byte[mSize];
+        System.arraycopy(mBuffer, 0, copy, 0, mSize);
+        return copy;
+    }
+
+    public Object visit(String name, int pos, Annotation value, Object param) {
+        writeName(name, AnnotationDescPrinter.TAG_ANNOTATION);
+        writeString(TypeDesc.forClass(value.annotationType()).getDescriptor());
+        super.visit(name, pos, value, param);
+        // Terminate the member list.
+        writeByte(0);
+        return null;
+    }
+
+    public Object visit(String name, int pos, int value, Object param) {
+        writeName(name, AnnotationDescPrinter.TAG_INT);
+        writeSignedVarLong(value);
+        return null;
+    }
+
+    public Object visit(String name, int pos, long value, Object param) {
+        writeName(name, AnnotationDescPrinter.TAG_LONG);
+        writeSignedVarLong(value);
+        return null;
+    }
+
+    public Object visit(String name, int pos, float value, Object param) {
+        writeName(name, AnnotationDescPrinter.TAG_FLOAT);
+        writeFixed(Float.floatToRawIntBits(value), 4);
+        return null;
+    }
+
+    public Object visit(String name, int pos, double value, Object param) {
+        writeName(name, AnnotationDescPrinter.TAG_DOUBLE);
+        writeFixed(Double.doubleToRawLongBits(value), 8);
+        return null;
+    }
+
+    public Object visit(String name, int pos, boolean value, Object param) {
+        writeName(name, AnnotationDescPrinter.TAG_BOOLEAN);
+        writeByte(value ? 1 : 0);
+        return null;
+    }
+
+    public Object visit(String name, int pos, byte value, Object param) {
+        writeName(name, AnnotationDescPrinter.TAG_BYTE);
+        writeByte(value);
+        return null;
+    }
+
+    public Object visit(String name, int pos, short value, Object param) {
+        writeName(name, AnnotationDescPrinter.TAG_SHORT);
+        writeSignedVarLong(value);
+        return null;
+    }
+
+    public Object visit(String name, int pos, char value, Object param) {
+        writeName(name, AnnotationDescPrinter.TAG_CHAR);
+        writeVarInt(value);
+        return null;
+    }
+
+    public Object visit(String name, int pos, String value, Object param) {
+        writeName(name, AnnotationDescPrinter.TAG_STRING);
+        writeString(value);
+        return null;
+    }
+
+    public Object visit(String name, int pos, Class value, Object param) {
+        writeName(name, AnnotationDescPrinter.TAG_CLASS);
+        writeString(TypeDesc.forClass(value).getDescriptor());
+        return null;
+    }
+
+    public Object visit(String name, int pos, Enum value, Object param) {
+        writeName(name, AnnotationDescPrinter.TAG_ENUM);
+        writeString(TypeDesc.forClass(value.getDeclaringClass()).getDescriptor());
+        writeString(value.name());
+        return null;
+    }
+
+    public Object visit(String name, int pos, Annotation[] value, Object param) {
+        writeArray(name, value.length, AnnotationDescPrinter.TAG_ANNOTATION);
+        return super.visit(name, pos, value, param);
+    }
+
+    public Object visit(String name, int pos, int[] value, Object param) {
+        writeArray(name, value.length, AnnotationDescPrinter.TAG_INT);
+        return super.visit(name, pos, value, param);
+    }
+
+    public Object visit(String name, int pos, long[] value, Object param) {
+        writeArray(name, value.length, AnnotationDescPrinter.TAG_LONG);
+        return super.visit(name, pos, value, param);
+    }
+
+    public Object visit(String name, int pos, float[] value, Object param) {
+        writeArray(name, value.length, AnnotationDescPrinter.TAG_FLOAT);
+        return super.visit(name, pos, value, param);
+    }
+
+    public Object visit(String name, int pos, double[] value, Object param) {
+        writeArray(name, value.length, AnnotationDescPrinter.TAG_DOUBLE);
+        return super.visit(name, pos, value, param);
+    }
+
+    public Object visit(String name, int pos, boolean[] value, Object param) {
+        writeArray(name, value.length, AnnotationDescPrinter.TAG_BOOLEAN);
+        return super.visit(name, pos, value, param);
+    }
+
+    public Object visit(String name, int pos, byte[] value, Object param) {
+        writeArray(name, value.length, AnnotationDescPrinter.TAG_BYTE);
+        return super.visit(name, pos, value, param);
+    }
+
+    public Object visit(String name, int pos, short[] value, Object param) {
+        writeArray(name, value.length, AnnotationDescPrinter.TAG_SHORT);
+        return super.visit(name, pos, value, param);
+    }
+
+    public Object visit(String name, int pos, char[] value, Object param) {
+        writeArray(name, value.length, AnnotationDescPrinter.TAG_CHAR);
+        return super.visit(name, pos, value, param);
+    }
+
+    public Object visit(String name, int pos, String[] value, Object param) {
+        writeArray(name, value.length, AnnotationDescPrinter.TAG_STRING);
+        return super.visit(name, pos, value, param);
+    }
+
+    public Object visit(String name, int pos, Class[] value, Object param) {
+        writeArray(name, value.length, AnnotationDescPrinter.TAG_CLASS);
+        return super.visit(name, pos, value, param);
+    }
+
+    public Object visit(String name, int pos, Enum[] value, Object param) {
+        writeArray(name, value.length, AnnotationDescPrinter.TAG_ENUM);
+        return super.visit(name, pos, value, param);
+    }
+
+    /**
+     * Writes the tag and name of a member. Array elements have neither.
+     */
+    private void writeName(String name, char tag) {
+        if (name != null) {
+            writeByte(tag);
+            writeString(name);
+        }
+    }
+
+    private void writeArray(String name, int length, char elementTag) {
+        writeName(name, AnnotationDescPrinter.TAG_ARRAY);
+        writeVarInt(length);
+        if (length > 0) {
+            writeByte(elementTag);
+        }
+    }
+
+    /**
+     * Writes a reference to a previously written String, or else writes a
+     * zero followed by the String itself.
+     */
+    private void writeString(String str) {
+        Map<String, Integer> strings = mStrings;
+        if (strings == null) {
+            mStrings = strings = new HashMap<String, Integer>();
+        } else {
+            Integer ref = strings.get(str);
+            if (ref != null) {
+                writeVarInt(ref);
+                return;
+            }
+        }
+
+        strings.put(str, strings.size() + 1);
+        writeVarInt(0);
+
+        byte[] bytes = str.getBytes(UTF_8);
+        writeVarInt(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, mBuffer, mSize, bytes.length);
+        mSize += bytes.length;
+    }
+
+    private void writeByte(int b) {
+        ensureCapacity(1);
+        mBuffer[mSize++] = (byte) b;
+    }
+
+    private void writeVarInt(int v) {
+        ensureCapacity(5);
+        byte[] buffer = mBuffer;
+        int size = mSize;
+        while ((v & ~0x7f) != 0) {
+            buffer[size++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        buffer[size++] = (byte) v;
+        mSize = size;
+    }
+
+    private void writeSignedVarLong(long v) {
+        // Zig-zag encode, to keep small negative values short.
+        v = (v << 1) ^ (v >> 63);
+        ensureCapacity(10);
+        byte[] buffer = mBuffer;
+        int size = mSize;
+        while ((v & ~0x7fL) != 0) {
+            buffer[size++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        buffer[size++] = (byte) v;
+        mSize = size;
+    }
+
+    private void writeFixed(long v, int length) {
+        ensureCapacity(length);
+        byte[] buffer = mBuffer;
+        int size = mSize;
+        for (int shift = (length - 1) * 8; shift >= 0; shift -= 8) {
+            buffer[size++] = (byte) (v >> shift);
+        }
+        mSize = size;
+    }
+
+    private void ensureCapacity(int amount) {
+        int required = mSize + amount;
+        if (required > mBuffer.length) {
+            byte[] newBuffer = new byte[Math.max(required, mBuffer.length << 1)];
+            System.arraycopy(mBuffer, 0, newBuffer, 0, mSize);
+            mBuffer = newBuffer;
+        }
+    }
+}
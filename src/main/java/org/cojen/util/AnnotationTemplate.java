@@ -0,0 +1,548 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.util;
+
+import java.lang.ref.WeakReference;
+
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cojen.classfile.Attribute;
+import org.cojen.classfile.ClassFile;
+import org.cojen.classfile.ConstantInfo;
+import org.cojen.classfile.ConstantPool;
+import org.cojen.classfile.FieldInfo;
+import org.cojen.classfile.MethodInfo;
+import org.cojen.classfile.TypeDesc;
+import org.cojen.classfile.attribute.Annotation;
+import org.cojen.classfile.attribute.ParameterAnnotationsAttr;
+import org.cojen.classfile.attribute.RuntimeVisibleParameterAnnotationsAttr;
+import org.cojen.classfile.constant.ConstantUTFInfo;
+
+/**
+ * Captures the runtime annotations of a reflected element, independent of
+ * any constant pool, such that they can be copied onto many generated
+ * classes, methods and fields. Annotations are visited only once, when the
+ * template is constructed, and each copy interns the required constants
+ * only once per distinct value. Templates are immutable and thread-safe.
+ *
+ * @author Brian S O'Neill
+ * @see AnnotationBuilder
+ */
+public class AnnotationTemplate {
+    private static final Node[] NO_NODES = new Node[0];
+
+    // Pool-independent constant values, which are String, Integer, Long,
+    // Float or Double. Strings are all interned as UTF constants.
+    private final Object[] mConstants;
+
+    // Element annotations only use constants below this slot. The rest are
+    // used just by parameter annotations, and so they aren't interned when
+    // applying to a class or field.
+    private final int mAnnotationConstantCount;
+
+    private final Node[] mAnnotations;
+
+    // Is null if element has no parameters.
+    private final Node[][] mParameterAnnotations;
+
+    // Constants interned into the most recently used pool.
+    private volatile Interned mInterned;
+
+    /**
+     * Captures the annotations of the given element. If a method or
+     * constructor, parameter annotations are captured too.
+     */
+    public AnnotationTemplate(AnnotatedElement element) {
+        Builder builder = new Builder();
+
+        mAnnotations = builder.build(element.getAnnotations());
+        mAnnotationConstantCount = builder.constantCount();
+
+        java.lang.annotation.Annotation[][] paramAnns;
+        if (element instanceof Method) {
+            paramAnns = ((Method) element).getParameterAnnotations();
+        } else if (element instanceof Constructor) {
+            paramAnns = ((Constructor) element).getParameterAnnotations();
+        } else {
+            paramAnns = null;
+        }
+
+        if (paramAnns == null || paramAnns.length == 0) {
+            mParameterAnnotations = null;
+        } else {
+            mParameterAnnotations = new Node[paramAnns.length][];
+            for (int i=0; i<paramAnns.length; i++) {
+                mParameterAnnotations[i] = builder.build(paramAnns[i]);
+            }
+        }
+
+        mConstants = builder.constants();
+    }
+
+    /**
+     * Captures the given annotations.
+     */
+    public AnnotationTemplate(java.lang.annotation.Annotation... annotations) {
+        Builder builder = new Builder();
+        mAnnotations = builder.build(annotations);
+        mParameterAnnotations = null;
+        mConstants = builder.constants();
+        mAnnotationConstantCount = mConstants.length;
+    }
+
+    /**
+     * Returns true if no annotations were captured.
+     */
+    public boolean isEmpty() {
+        if (mAnnotations.length != 0) {
+            return false;
+        }
+        if (mParameterAnnotations != null) {
+            for (Node[] nodes : mParameterAnnotations) {
+                if (nodes.length != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds the captured annotations to the given class as runtime visible
+     * annotations.
+     */
+    public void applyTo(ClassFile cf) {
+        if (mAnnotations.length == 0) {
+            return;
+        }
+        ConstantInfo[] constants = intern(cf.getConstantPool(), mAnnotationConstantCount);
+        for (Node node : mAnnotations) {
+            node.fill(cf.addRuntimeVisibleAnnotation(node.mType), constants);
+        }
+    }
+
+    /**
+     * Adds the captured annotations to the given method as runtime visible
+     * annotations. Captured parameter annotations are added too, up to the
+     * number of parameters the method has.
+     */
+    public void applyTo(MethodInfo mi) {
+        if (isEmpty()) {
+            return;
+        }
+
+        ConstantPool cp = mi.getClassFile().getConstantPool();
+        ConstantInfo[] constants = intern(cp, mAnnotationConstantCount);
+
+        for (Node node : mAnnotations) {
+            node.fill(mi.addRuntimeVisibleAnnotation(node.mType), constants);
+        }
+
+        Node[][] paramAnns = mParameterAnnotations;
+        if (paramAnns == null) {
+            return;
+        }
+
+        int paramCount = mi.getMethodDescriptor().getParameterCount();
+        ParameterAnnotationsAttr attr = null;
+
+        for (int i=0; i<paramAnns.length && i<paramCount; i++) {
+            Node[] nodes = paramAnns[i];
+            if (nodes.length == 0) {
+                continue;
+            }
+            if (attr == null) {
+                attr = parameterAnnotationsAttr(mi, paramCount);
+                constants = intern(cp, mConstants.length);
+            }
+            for (Node node : nodes) {
+                Annotation ann = new Annotation(cp);
+                ann.setTypeConstant((ConstantUTFInfo) constants[node.mTypeSlot]);
+                node.fill(ann, constants);
+                attr.addAnnotation(i, ann);
+            }
+        }
+    }
+
+    /**
+     * Adds the captured annotations to the given field as runtime visible
+     * annotations.
+     */
+    public void applyTo(FieldInfo fi) {
+        if (mAnnotations.length == 0) {
+            return;
+        }
+        ConstantInfo[] constants =
+            intern(fi.getClassFile().getConstantPool(), mAnnotationConstantCount);
+        for (Node node : mAnnotations) {
+            node.fill(fi.addRuntimeVisibleAnnotation(node.mType), constants);
+        }
+    }
+
+    private static ParameterAnnotationsAttr parameterAnnotationsAttr(MethodInfo mi,
+                                                                     int paramCount)
+    {
+        ParameterAnnotationsAttr attr = null;
+        for (Attribute a : mi.getAttributes()) {
+            if (a instanceof RuntimeVisibleParameterAnnotationsAttr) {
+                attr = (ParameterAnnotationsAttr) a;
+            }
+        }
+        if (attr == null) {
+            attr = new RuntimeVisibleParameterAnnotationsAttr(mi.getClassFile().getConstantPool());
+            mi.addAttribute(attr);
+        }
+        if (attr.getParameterCount() < paramCount) {
+            attr.setParameterCount(paramCount);
+        }
+        return attr;
+    }
+
+    /**
+     * Returns the template constants as interned into the given pool. Only
+     * the constants below the given count are guaranteed to be interned.
+     */
+    private ConstantInfo[] intern(ConstantPool cp, int count) {
+        Interned interned = mInterned;
+        if (interned == null || interned.get() != cp) {
+            interned = new Interned(cp, new ConstantInfo[mConstants.length]);
+            mInterned = interned;
+        }
+
+        Object[] values = mConstants;
+        ConstantInfo[] constants = interned.mConstants;
+        for (int i=interned.mCount; i<count; i++) {
+            Object value = values[i];
+            ConstantInfo constant;
+            if (value instanceof String) {
+                constant = cp.addConstantUTF((String) value);
+            } else if (value instanceof Integer) {
+                constant = cp.addConstantInteger((Integer) value);
+            } else if (value instanceof Long) {
+                constant = cp.addConstantLong((Long) value);
+            } else if (value instanceof Float) {
+                constant = cp.addConstantFloat((Float) value);
+            } else {
+                constant = cp.addConstantDouble((Double) value);
+            }
+            constants[i] = constant;
+        }
+
+        if (count > interned.mCount) {
+            interned.mCount = count;
+        }
+        return constants;
+    }
+
+    private static class Interned extends WeakReference<ConstantPool> {
+        final ConstantInfo[] mConstants;
+        // Number of leading constants interned so far.
+        int mCount;
+
+        Interned(ConstantPool cp, ConstantInfo[] constants) {
+            super(cp);
+            mConstants = constants;
+        }
+    }
+
+    /**
+     * Captured annotation.
+     */
+    private static class Node {
+        final TypeDesc mType;
+        final int mTypeSlot;
+        final String[] mNames;
+        final Value[] mValues;
+
+        Node(TypeDesc type, int typeSlot, String[] names, Value[] values) {
+            mType = type;
+            mTypeSlot = typeSlot;
+            mNames = names;
+            mValues = values;
+        }
+
+        void fill(Annotation ann, ConstantInfo[] constants) {
+            for (int i=0; i<mNames.length; i++) {
+                ann.putMemberValue(mNames[i], mValues[i].make(ann, constants));
+            }
+        }
+    }
+
+    /**
+     * Captured annotation member value.
+     */
+    private static class Value {
+        final char mTag;
+        // Constant slot, or enum type slot.
+        final int mSlot;
+        // Enum name slot.
+        final int mSlot2;
+        // Array elements or nested annotation.
+        final Object mNested;
+
+        Value(char tag, int slot, int slot2, Object nested) {
+            mTag = tag;
+            mSlot = slot;
+            mSlot2 = slot2;
+            mNested = nested;
+        }
+
+        Annotation.MemberValue make(Annotation ann, ConstantInfo[] constants) {
+            switch (mTag) {
+            default:
+                return new Annotation.MemberValue(mTag, constants[mSlot]);
+
+            case Annotation.MEMBER_TAG_ENUM:
+                return new Annotation.MemberValue
+                    (mTag, new Annotation.EnumConstValue((ConstantUTFInfo) constants[mSlot],
+                                                         (ConstantUTFInfo) constants[mSlot2]));
+
+            case Annotation.MEMBER_TAG_ARRAY: {
+                Value[] values = (Value[]) mNested;
+                Annotation.MemberValue[] mvs = new Annotation.MemberValue[values.length];
+                for (int i=0; i<values.length; i++) {
+                    mvs[i] = values[i].make(ann, constants);
+                }
+                return ann.makeMemberValue(mvs);
+            }
+
+            case Annotation.MEMBER_TAG_ANNOTATION: {
+                Node node = (Node) mNested;
+                Annotation nested = ann.makeAnnotation();
+                nested.setTypeConstant((ConstantUTFInfo) constants[node.mTypeSlot]);
+                node.fill(nested, constants);
+                return ann.makeMemberValue(nested);
+            }
+            }
+        }
+    }
+
+    /**
+     * Visits reflected annotations to build nodes, assigning a slot to each
+     * distinct constant.
+     */
+    private static class Builder extends AnnotationVisitor<Object, Builder.Members> {
+        private final Map<Object, Integer> mSlots = new HashMap<Object, Integer>();
+        private final List<Object> mConstants = new ArrayList<Object>();
+
+        Builder() {
+            super(false);
+        }
+
+        Node[] build(java.lang.annotation.Annotation[] annotations) {
+            if (annotations.length == 0) {
+                return NO_NODES;
+            }
+            Node[] nodes = new Node[annotations.length];
+            for (int i=0; i<annotations.length; i++) {
+                nodes[i] = node(annotations[i]);
+            }
+            return nodes;
+        }
+
+        int constantCount() {
+            return mConstants.size();
+        }
+
+        Object[] constants() {
+            return mConstants.toArray();
+        }
+
+        private Node node(java.lang.annotation.Annotation value) {
+            Members members = new Members();
+            super.visit(null, 0, value, members);
+            TypeDesc type = TypeDesc.forClass(value.annotationType());
+            return new Node(type, slot(type.getDescriptor()),
+                            members.mNames.toArray(new String[members.mNames.size()]),
+                            members.mValues.toArray(new Value[members.mValues.size()]));
+        }
+
+        private int slot(Object constant) {
+            Integer slot = mSlots.get(constant);
+            if (slot == null) {
+                slot = mConstants.size();
+                mConstants.add(constant);
+                mSlots.put(constant, slot);
+            }
+            return slot;
+        }
+
+        private Object put(String name, Members members, char tag, Object constant) {
+            members.add(name, new Value(tag, slot(constant), 0, null));
+            return null;
+        }
+
+        private Object putArray(String name, int pos, Members members, Object array) {
+            Members elements = new Members();
+            if (array instanceof int[]) {
+                super.visit(name, pos, (int[]) array, elements);
+            } else if (array instanceof long[]) {
+                super.visit(name, pos, (long[]) array, elements);
+            } else if (array instanceof float[]) {
+                super.visit(name, pos, (float[]) array, elements);
+            } else if (array instanceof double[]) {
+                super.visit(name, pos, (double[]) array, elements);
+            } else if (array instanceof boolean[]) {
+                super.visit(name, pos, (boolean[]) array, elements);
+            } else if (array instanceof byte[]) {
+                super.visit(name, pos, (byte[]) array, elements);
+            } else if (array instanceof short[]) {
+                super.visit(name, pos, (short[]) array, elements);
+            } else if (array instanceof char[]) {
+                super.visit(name, pos, (char[]) array, elements);
+            } else if (array instanceof String[]) {
+                super.visit(name, pos, (String[]) array, elements);
+            } else if (array instanceof Class[]) {
+                super.visit(name, pos, (Class[]) array, elements);
+            } else if (array instanceof Enum[]) {
+                super.visit(name, pos, (Enum[]) array, elements);
+            } else {
+                super.visit(name, pos, (java.lang.annotation.Annotation[]) array, elements);
+            }
+            Value[] values = elements.mValues.toArray(new Value[elements.mValues.size()]);
+            members.add(name, new Value(Annotation.MEMBER_TAG_ARRAY, 0, 0, values));
+            return null;
+        }
+
+        public Object visit(String name, int pos, java.lang.annotation.Annotation value,
+                            Members members)
+        {
+            members.add(name, new Value(Annotation.MEMBER_TAG_ANNOTATION, 0, 0, node(value)));
+            return null;
+        }
+
+        public Object visit(String name, int pos, int value, Members members) {
+            return put(name, members, Annotation.MEMBER_TAG_INT, value);
+        }
+
+        public Object visit(String name, int pos, long value, Members members) {
+            return put(name, members, Annotation.MEMBER_TAG_LONG, value);
+        }
+
+        public Object visit(String name, int pos, float value, Members members) {
+            return put(name, members, Annotation.MEMBER_TAG_FLOAT, value);
+        }
+
+        public Object visit(String name, int pos, double value, Members members) {
+            return put(name, members, Annotation.MEMBER_TAG_DOUBLE, value);
+        }
+
+        public Object visit(String name, int pos, boolean value, Members members) {
+            return put(name, members, Annotation.MEMBER_TAG_BOOLEAN, value ? 1 : 0);
+        }
+
+        public Object visit(String name, int pos, byte value, Members members) {
+            return put(name, members, Annotation.MEMBER_TAG_BYTE, (int) value);
+        }
+
+        public Object visit(String name, int pos, short value, Members members) {
+            return put(name, members, Annotation.MEMBER_TAG_SHORT, (int) value);
+        }
+
+        public Object visit(String name, int pos, char value, Members members) {
+            return put(name, members, Annotation.MEMBER_TAG_CHAR, (int) value);
+        }
+
+        public Object visit(String name, int pos, String value, Members members) {
+            return put(name, members, Annotation.MEMBER_TAG_STRING, value);
+        }
+
+        public Object visit(String name, int pos, Class value, Members members) {
+            return put(name, members, Annotation.MEMBER_TAG_CLASS,
+                       TypeDesc.forClass(value).getDescriptor());
+        }
+
+        public Object visit(String name, int pos, Enum value, Members members) {
+            String type = TypeDesc.forClass(value.getDeclaringClass()).getDescriptor();
+            members.add(name, new Value(Annotation.MEMBER_TAG_ENUM,
+                                        slot(type), slot(value.name()), null));
+            return null;
+        }
+
+        public Object visit(String name, int pos, java.lang.annotation.Annotation[] value,
+                            Members members)
+        {
+            return putArray(name, pos, members, value);
+        }
+
+        public Object visit(String name, int pos, int[] value, Members members) {
+            return putArray(name, pos, members, value);
+        }
+
+        public Object visit(String name, int pos, long[] value, Members members) {
+            return putArray(name, pos, members, value);
+        }
+
+        public Object visit(String name, int pos, float[] value, Members members) {
+            return putArray(name, pos, members, value);
+        }
+
+        public Object visit(String name, int pos, double[] value, Members members) {
+            return putArray(name, pos, members, value);
+        }
+
+        public Object visit(String name, int pos, boolean[] value, Members members) {
+            return putArray(name, pos, members, value);
+        }
+
+        public Object visit(String name, int pos, byte[] value, Members members) {
+            return putArray(name, pos, members, value);
+        }
+
+        public Object visit(String name, int pos, short[] value, Members members) {
+            return putArray(name, pos, members, value);
+        }
+
+        public Object visit(String name, int pos, char[] value, Members members) {
+            return putArray(name, pos, members, value);
+        }
+
+        public Object visit(String name, int pos, String[] value, Members members) {
+            return putArray(name, pos, members, value);
+        }
+
+        public Object visit(String name, int pos, Class[] value, Members members) {
+            return putArray(name, pos, members, value);
+        }
+
+        public Object visit(String name, int pos, Enum[] value, Members members) {
+            return putArray(name, pos, members, value);
+        }
+
+        /**
+         * Collects member values of an annotation, or elements of an array.
+         */
+        static class Members {
+            final List<String> mNames = new ArrayList<String>();
+            final List<Value> mValues = new ArrayList<Value>();
+
+            void add(String name, Value value) {
+                if (name != null) {
+                    mNames.add(name);
+                }
+                mValues.add(value);
+            }
+        }
+    }
+}
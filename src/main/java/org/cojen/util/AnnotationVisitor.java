@@ -35,9 +35,26 @@
 package org.cojen.util;
 
 import java.lang.annotation.Annotation;
+
+import java.lang.ref.SoftReference;
+
+import java.lang.reflect.Array;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.List;
+
+import org.cojen.classfile.CodeBuilder;
+import org.cojen.classfile.LocalVariable;
+import org.cojen.classfile.MethodInfo;
+import org.cojen.classfile.Modifiers;
+import org.cojen.classfile.RuntimeClassFile;
+import org.cojen.classfile.TypeDesc;
 
 /**
  * Generic annotation visitor. Override methods to capture specific elements.
@@ -46,18 +63,13 @@ import java.util.Comparator;
  * @since 2.1
  */
 public class AnnotationVisitor<R, P> {
-    private final Comparator<Method> mMethodComparator;
+    private final boolean mSort;
 
     /**
      * @param sort when true, sort annotation members by name (case sensitive)
      */
     public AnnotationVisitor(boolean sort) {
-        if (sort) {
-            mMethodComparator = BeanComparator
-                .forClass(Method.class).orderBy("name").caseSensitive();
-        } else {
-            mMethodComparator = null;
-        }
+        mSort = sort;
     }
 
     /**
@@ -83,94 +95,8 @@ public class AnnotationVisitor<R, P> {
      * @return custom result, null by default
      */
     public R visit(String name, int pos, Annotation value, P param) {
-        Class<? extends Annotation> annotationType = value.annotationType();
-
-        Method[] methods = annotationType.getMethods();
-
-        if (mMethodComparator != null) {
-            Arrays.sort(methods, mMethodComparator);
-        }
-
-        int i = 0;
-        for (Method m : methods) {
-            if (m.getDeclaringClass() != annotationType || m.getParameterTypes().length > 0) {
-                continue;
-            }
-
-            Class propType = m.getReturnType();
-            if (propType == void.class) {
-                continue;
-            }
-
-            String propName = m.getName();
-            Object propValue;
-            try {
-                propValue = m.invoke(value);
-            } catch (Exception e) {
-                ThrowUnchecked.fireRootCause(e);
-                return null;
-            }
-
-            if (propType.isArray()) {
-                if (propType.isPrimitive()) {
-                    propType = propType.getComponentType();
-                    if (propType == int.class) {
-                        visit(propName, i, (int[]) propValue, param);
-                    } else if (propType == long.class) {
-                        visit(propName, i, (long[]) propValue, param);
-                    } else if (propType == float.class) {
-                        visit(propName, i, (float[]) propValue, param);
-                    } else if (propType == double.class) {
-                        visit(propName, i, (double[]) propValue, param);
-                    } else if (propType == boolean.class) {
-                        visit(propName, i, (boolean[]) propValue, param);
-                    } else if (propType == byte.class) {
-                        visit(propName, i, (byte[]) propValue, param);
-                    } else if (propType == short.class) {
-                        visit(propName, i, (short[]) propValue, param);
-                    } else if (propType == char.class) {
-                        visit(propName, i, (char[]) propValue, param);
-                    }
-                } else if (propValue instanceof String[]) {
-                    visit(propName, i, (String[]) propValue, param);
-                } else if (propValue instanceof Class[]) {
-                    visit(propName, i, (Class[]) propValue, param);
-                } else if (propValue instanceof Enum[]) {
-                    visit(propName, i, (Enum[]) propValue, param);
-                } else if (propValue instanceof Annotation[]) {
-                    visit(propName, i, (Annotation[]) propValue, param);
-                }
-            } else if (propType.isPrimitive()) {
-                if (propType == int.class) {
-                    visit(propName, i, (Integer) propValue, param);
-                } else if (propType == long.class) {
-                    visit(propName, i, (Long) propValue, param);
-                } else if (propType == float.class) {
-                    visit(propName, i, (Float) propValue, param);
-                } else if (propType == double.class) {
-                    visit(propName, i, (Double) propValue, param);
-                } else if (propType == boolean.class) {
-                    visit(propName, i, (Boolean) propValue, param);
-                } else if (propType == byte.class) {
-                    visit(propName, i, (Byte) propValue, param);
-                } else if (propType == short.class) {
-                    visit(propName, i, (Short) propValue, param);
-                } else if (propType == char.class) {
-                    visit(propName, i, (Character) propValue, param);
-                }
-            } else if (propValue instanceof String) {
-                visit(propName, i, (String) propValue, param);
-            } else if (propValue instanceof Class) {
-                visit(propName, i, (Class) propValue, param);
-            } else if (propValue instanceof Enum) {
-                visit(propName, i, (Enum) propValue, param);
-            } else if (propValue instanceof Annotation) {
-                visit(propName, i, (Annotation) propValue, param);
-            }
-
-            i++;
-        }
-
+        MemberReader.forType(value.annotationType(), mSort)
+            .visitMembers(this, value, param);
         return null;
     }
 
@@ -508,4 +434,275 @@ public class AnnotationVisitor<R, P> {
         }
         return null;
     }
+
+    /**
+     * Visits all the members of an annotation by dispatching directly to the
+     * appropriate visit method. Readers are generated for each annotation
+     * type, and they are public only so that generated subclasses can access
+     * them.
+     */
+    public static abstract class MemberReader {
+        private static final Cache<Class, SoftReference<MemberReader>> cReaders =
+            new WeakIdentityCache<Class, SoftReference<MemberReader>>(17);
+        private static final Cache<Class, SoftReference<MemberReader>> cSortedReaders =
+            new WeakIdentityCache<Class, SoftReference<MemberReader>>(17);
+
+        /**
+         * Returns a new or cached MemberReader for the given annotation type.
+         *
+         * @param sort when true, visit annotation members by name (case sensitive)
+         */
+        public static MemberReader forType(Class<? extends Annotation> annotationType,
+                                           boolean sort)
+        {
+            Cache<Class, SoftReference<MemberReader>> readers = sort ? cSortedReaders : cReaders;
+
+            SoftReference<MemberReader> ref = readers.get(annotationType);
+            if (ref != null) {
+                MemberReader reader = ref.get();
+                if (reader != null) {
+                    return reader;
+                }
+            }
+
+            Method[] methods = memberMethods(annotationType, sort);
+
+            MemberReader reader = null;
+            if (Modifier.isPublic(annotationType.getModifiers())) {
+                try {
+                    reader = generate(annotationType, methods);
+                } catch (LinkageError e) {
+                    // Annotation type is likely not visible to this class
+                    // loader, so use reflection instead.
+                }
+            }
+
+            if (reader == null) {
+                reader = new Reflective(methods);
+            }
+
+            readers.put(annotationType, new SoftReference<MemberReader>(reader));
+            return reader;
+        }
+
+        private static Method[] memberMethods(Class<? extends Annotation> annotationType,
+                                              boolean sort)
+        {
+            Method[] methods = annotationType.getMethods();
+
+            if (sort) {
+                Arrays.sort(methods, BeanComparator
+                            .forClass(Method.class).orderBy("name").caseSensitive());
+            }
+
+            List<Method> members = new ArrayList<Method>(methods.length);
+            for (Method m : methods) {
+                if (m.getDeclaringClass() == annotationType && m.getParameterTypes().length == 0
+                    && m.getReturnType() != void.class && visitType(m.getReturnType()) != null)
+                {
+                    members.add(m);
+                }
+            }
+
+            return members.toArray(new Method[members.size()]);
+        }
+
+        /**
+         * Returns the value type accepted by the visit method for the given
+         * member type, or null if not supported.
+         */
+        private static Class visitType(Class type) {
+            if (type.isPrimitive() || type == String.class || type == Class.class) {
+                return type;
+            }
+            if (type.isEnum()) {
+                return Enum.class;
+            }
+            if (type.isAnnotation()) {
+                return Annotation.class;
+            }
+            if (type.isArray()) {
+                Class elementType = visitType(type.getComponentType());
+                if (elementType != null) {
+                    return Array.newInstance(elementType, 0).getClass();
+                }
+            }
+            return null;
+        }
+
+        private static MemberReader generate(final Class annotationType,
+                                             final Method[] methods)
+        {
+            return AccessController.doPrivileged(new PrivilegedAction<MemberReader>() {
+                public MemberReader run() {
+                    Class clazz = generateClassFile(annotationType, methods).defineClass();
+                    try {
+                        return (MemberReader) clazz.newInstance();
+                    } catch (InstantiationException e) {
+                        throw new InternalError(e.toString());
+                    } catch (IllegalAccessException e) {
+                        throw new InternalError(e.toString());
+                    }
+                }
+            });
+        }
+
+        private static RuntimeClassFile generateClassFile(Class annotationType,
+                                                          Method[] methods)
+        {
+            RuntimeClassFile cf = new RuntimeClassFile
+                (AnnotationVisitor.class.getName(),
+                 MemberReader.class.getName(),
+                 annotationType.getClassLoader());
+            cf.markSynthetic();
+            cf.setSourceFile(AnnotationVisitor.class.getName());
+            cf.setTarget("1.5");
+
+            MethodInfo mi = cf.addConstructor(Modifiers.PUBLIC, null);
+            mi.markSynthetic();
+            CodeBuilder b = new CodeBuilder(mi);
+            b.loadThis();
+            b.invokeSuperConstructor(null);
+            b.returnVoid();
+
+            TypeDesc visitorType = TypeDesc.forClass(AnnotationVisitor.class);
+            TypeDesc annType = TypeDesc.forClass(annotationType);
+
+            TypeDesc[] params = {visitorType, TypeDesc.forClass(Annotation.class), TypeDesc.OBJECT};
+            mi = cf.addMethod(Modifiers.PUBLIC, "visitMembers", null, params);
+            mi.markSynthetic();
+            b = new CodeBuilder(mi);
+
+            LocalVariable visitor = b.getParameter(0);
+            LocalVariable value = b.createLocalVariable(null, annType);
+            LocalVariable param = b.getParameter(2);
+
+            b.loadLocal(b.getParameter(1));
+            b.checkCast(annType);
+            b.storeLocal(value);
+
+            for (int i=0; i<methods.length; i++) {
+                Method m = methods[i];
+                TypeDesc memberType = TypeDesc.forClass(m.getReturnType());
+
+                b.loadLocal(visitor);
+                b.loadConstant(m.getName());
+                b.loadConstant(i);
+                b.loadLocal(value);
+                b.invokeInterface(annType, m.getName(), memberType, null);
+                b.loadLocal(param);
+
+                TypeDesc[] visitParams = {
+                    TypeDesc.STRING, TypeDesc.INT,
+                    TypeDesc.forClass(visitType(m.getReturnType())), TypeDesc.OBJECT
+                };
+                b.invokeVirtual(visitorType, "visit", TypeDesc.OBJECT, visitParams);
+                b.pop();
+            }
+
+            b.returnVoid();
+
+            return cf;
+        }
+
+        protected MemberReader() {
+        }
+
+        /**
+         * Visits all the members of the given annotation, in a fixed order.
+         */
+        public abstract <R, P> void visitMembers(AnnotationVisitor<R, P> visitor,
+                                                 Annotation value, P param);
+
+        /**
+         * Fallback used when a reader cannot be generated.
+         */
+        private static class Reflective extends MemberReader {
+            private final Method[] mMethods;
+
+            Reflective(Method[] methods) {
+                for (Method m : methods) {
+                    try {
+                        m.setAccessible(true);
+                    } catch (RuntimeException e) {
+                        // Not allowed, but invoke may still work.
+                    }
+                }
+                mMethods = methods;
+            }
+
+            public <R, P> void visitMembers(AnnotationVisitor<R, P> visitor,
+                                            Annotation value, P param)
+            {
+                Method[] methods = mMethods;
+                for (int i=0; i<methods.length; i++) {
+                    Method m = methods[i];
+
+                    Class propType = m.getReturnType();
+                    String propName = m.getName();
+                    Object propValue;
+                    try {
+                        propValue = m.invoke(value);
+                    } catch (Exception e) {
+                        ThrowUnchecked.fireRootCause(e);
+                        return;
+                    }
+
+                    if (propType.isArray()) {
+                        if (propValue instanceof int[]) {
+                            visitor.visit(propName, i, (int[]) propValue, param);
+                        } else if (propValue instanceof long[]) {
+                            visitor.visit(propName, i, (long[]) propValue, param);
+                        } else if (propValue instanceof float[]) {
+                            visitor.visit(propName, i, (float[]) propValue, param);
+                        } else if (propValue instanceof double[]) {
+                            visitor.visit(propName, i, (double[]) propValue, param);
+                        } else if (propValue instanceof boolean[]) {
+                            visitor.visit(propName, i, (boolean[]) propValue, param);
+                        } else if (propValue instanceof byte[]) {
+                            visitor.visit(propName, i, (byte[]) propValue, param);
+                        } else if (propValue instanceof short[]) {
+                            visitor.visit(propName, i, (short[]) propValue, param);
+                        } else if (propValue instanceof char[]) {
+                            visitor.visit(propName, i, (char[]) propValue, param);
+                        } else if (propValue instanceof String[]) {
+                            visitor.visit(propName, i, (String[]) propValue, param);
+                        } else if (propValue instanceof Class[]) {
+                            visitor.visit(propName, i, (Class[]) propValue, param);
+                        } else if (propValue instanceof Enum[]) {
+                            visitor.visit(propName, i, (Enum[]) propValue, param);
+                        } else if (propValue instanceof Annotation[]) {
+                            visitor.visit(propName, i, (Annotation[]) propValue, param);
+                        }
+                    } else if (propType.isPrimitive()) {
+                        if (propType == int.class) {
+                            visitor.visit(propName, i, (Integer) propValue, param);
+                        } else if (propType == long.class) {
+                            visitor.visit(propName, i, (Long) propValue, param);
+                        } else if (propType == float.class) {
+                            visitor.visit(propName, i, (Float) propValue, param);
+                        } else if (propType == double.class) {
+                            visitor.visit(propName, i, (Double) propValue, param);
+                        } else if (propType == boolean.class) {
+                            visitor.visit(propName, i, (Boolean) propValue, param);
+                        } else if (propType == byte.class) {
+                            visitor.visit(propName, i, (Byte) propValue, param);
+                        } else if (propType == short.class) {
+                            visitor.visit(propName, i, (Short) propValue, param);
+                        } else if (propType == char.class) {
+                            visitor.visit(propName, i, (Character) propValue, param);
+                        }
+                    } else if (propValue instanceof String) {
+                        visitor.visit(propName, i, (String) propValue, param);
+                    } else if (propValue instanceof Class) {
+                        visitor.visit(propName, i, (Class) propValue, param);
+                    } else if (propValue instanceof Enum) {
+                        visitor.visit(propName, i, (Enum) propValue, param);
+                    } else if (propValue instanceof Annotation) {
+                        visitor.visit(propName, i, (Annotation) propValue, param);
+                    }
+                }
+            }
+        }
+    }
 }
@@ -93,6 +93,11 @@ import org.cojen.classfile.TypeDesc;
  */
 public class BeanComparator<T> implements Comparator<T>, Serializable {
     // Maps Rules to auto-generated Comparators.
+    private static final String FACTORY = BeanComparator.class.getName();
+
+    // Maximum number of property rules to generate in one method.
+    private static final int RULES_PER_METHOD = 16;
+
     private static Cache cGeneratedComparatorCache;
 
     static {
@@ -438,11 +443,15 @@ public class BeanComparator<T> implements Comparator<T>, Serializable {
             Object c = cGeneratedComparatorCache.get(rules);
 
             if (c == null) {
+                long start = GeneratorMetrics.start(FACTORY);
                 clazz = generateComparatorClass(rules);
                 cGeneratedComparatorCache.put(rules, clazz);
+                GeneratorMetrics.miss(FACTORY, start);
             } else if (c instanceof Comparator) {
+                GeneratorMetrics.hit(FACTORY);
                 return (Comparator)c;
             } else {
+                GeneratorMetrics.hit(FACTORY);
                 clazz = (Class)c;
             }
 
@@ -609,138 +618,187 @@ public class BeanComparator<T> implements Comparator<T>, Serializable {
         builder.checkCast(type);
         builder.storeLocal(obj2);
 
-        // Generate code to perform comparisons against each property.
-        for (int i=1; i<ruleParts.length; i++) {
-            bc = ruleParts[i];
-
-            BeanProperty prop = 
-                (BeanProperty)bc.getProperties().get(bc.mOrderByName);
-            Class propertyClass = prop.getType();
-            TypeDesc propertyType = TypeDesc.forClass(propertyClass);
-
-            // Create local variable to hold property values.
-            LocalVariable p1 = builder.createLocalVariable("p1", propertyType);
-            LocalVariable p2 = builder.createLocalVariable("p2", propertyType);
-
-            // Access properties and store in local variables.
-            builder.loadLocal(obj1);
-            builder.invoke(prop.getReadMethod());
-            builder.storeLocal(p1);
-            builder.loadLocal(obj2);
-            builder.invoke(prop.getReadMethod());
-            builder.storeLocal(p2);
-
-            if ((bc.mFlags & 0x01) != 0) {
-                // Reverse properties.
-                LocalVariable temp = p1;
-                p1 = p2;
-                p2 = temp;
+        // Generate code to perform comparisons against each property. Large
+        // sets of rules are split into separate methods, keeping each one
+        // small enough to be compiled by the JIT.
+        int ruleCount = ruleParts.length - 1;
+        if (ruleCount <= RULES_PER_METHOD) {
+            for (int i=1; i<ruleParts.length; i++) {
+                generateRule(builder, ruleParts[i], i, i == ruleCount, obj1, obj2, result,
+                             compareMethod, compareToMethod);
             }
+        } else {
+            TypeDesc[] params = {type, type};
+            for (int i=1, m=0; i<ruleParts.length; i+=RULES_PER_METHOD, m++) {
+                String name = "compare$" + m;
+
+                MethodInfo helper = cf.addMethod(Modifiers.PRIVATE, name, TypeDesc.INT, params);
+                helper.markSynthetic();
+                CodeBuilder hb = new CodeBuilder(helper);
+                LocalVariable hresult = hb.createLocalVariable("result", TypeDesc.INT);
+                int end = Math.min(ruleParts.length, i + RULES_PER_METHOD);
+                for (int j=i; j<end; j++) {
+                    generateRule(hb, ruleParts[j], j, false,
+                                 hb.getParameter(0), hb.getParameter(1), hresult,
+                                 compareMethod, compareToMethod);
+                }
+                hb.loadConstant(0);
+                hb.returnValue(TypeDesc.INT);
 
-            Label nextLabel = builder.createLabel();
-
-            // Handle the case when p1 and p2 are the same (or both null)
-            if (!propertyClass.isPrimitive()) {
-                builder.loadLocal(p1);
-                builder.loadLocal(p2);
-                builder.ifEqualBranch(nextLabel, true);
-
-                // Do null order checks for properties.
-                nullHigh = (bc.mFlags & 0x02) == 0;
-                label = builder.createLabel();
-                builder.loadLocal(p1);
-                builder.ifNullBranch(label, false);
-                builder.loadConstant(nullHigh ? 1 : -1);
-                builder.returnValue(TypeDesc.INT);
-                label.setLocation();
+                builder.loadThis();
+                builder.loadLocal(obj1);
+                builder.loadLocal(obj2);
+                builder.invokePrivate(name, TypeDesc.INT, params);
+                builder.storeLocal(result);
+                builder.loadLocal(result);
                 label = builder.createLabel();
-                builder.loadLocal(p2);
-                builder.ifNullBranch(label, false);
-                builder.loadConstant(nullHigh ? -1 : 1);
+                builder.ifZeroComparisonBranch(label, "==");
+                builder.loadLocal(result);
                 builder.returnValue(TypeDesc.INT);
                 label.setLocation();
             }
+        }
 
-            // Call 'using' Comparator if one is provided, else assume
-            // Comparable.
-            if (bc.mUsingComparator != null) {
-                builder.loadThis();
-                builder.loadField("mUsingComparators", comparatorArrayType);
-                builder.loadConstant(i);
-                builder.loadFromArray(TypeDesc.forClass(Comparator.class));
-                builder.loadLocal(p1);
-                builder.convert(propertyType, propertyType.toObjectType());
-                builder.loadLocal(p2);
-                builder.convert(propertyType, propertyType.toObjectType());
-                builder.invoke(compareMethod);
-            } else {
-                // If case-sensitive is off and a collator is provided and
-                // property could be a String, apply collator.
-                if ((bc.mFlags & 0x04) == 0 && bc.mCollator != null &&
-                    propertyClass.isAssignableFrom(String.class)) {
-
-                    Label resultLabel = builder.createLabel();
-
-                    if (!String.class.isAssignableFrom(propertyClass)) {
-                        // Check if both property values are strings at
-                        // runtime. If they aren't, cast to Comparable and call
-                        // compareTo.
-
-                        TypeDesc stringType = TypeDesc.STRING;
-
-                        builder.loadLocal(p1);
-                        builder.instanceOf(stringType);
-                        Label notString = builder.createLabel();
-                        builder.ifZeroComparisonBranch(notString, "==");
-                        builder.loadLocal(p2);
-                        builder.instanceOf(stringType);
-                        Label isString = builder.createLabel();
-                        builder.ifZeroComparisonBranch(isString, "!=");
-
-                        notString.setLocation();
-                        generateComparableCompareTo
-                            (builder, propertyClass, compareToMethod,
-                             resultLabel, nextLabel, p1, p2);
-
-                        isString.setLocation();
-                    }
+        endLabel.setLocation();
+        builder.loadConstant(0);
+        builder.returnValue(TypeDesc.INT);
+
+        return cf.defineClass();
+    }
+
+    /**
+     * Generates code which compares one property, returning the result if
+     * not zero. When last, the result is always returned.
+     */
+    private static void generateRule(CodeBuilder builder, BeanComparator bc, int i,
+                                     boolean last,
+                                     LocalVariable obj1, LocalVariable obj2,
+                                     LocalVariable result,
+                                     Method compareMethod, Method compareToMethod)
+    {
+        TypeDesc comparatorArrayType = TypeDesc.forClass(Comparator.class).toArrayType();
+
+        BeanProperty prop = 
+            (BeanProperty)bc.getProperties().get(bc.mOrderByName);
+        Class propertyClass = prop.getType();
+        TypeDesc propertyType = TypeDesc.forClass(propertyClass);
+
+        // Create local variable to hold property values.
+        LocalVariable p1 = builder.createLocalVariable("p1", propertyType);
+        LocalVariable p2 = builder.createLocalVariable("p2", propertyType);
+
+        // Access properties and store in local variables.
+        builder.loadLocal(obj1);
+        builder.invoke(prop.getReadMethod());
+        builder.storeLocal(p1);
+        builder.loadLocal(obj2);
+        builder.invoke(prop.getReadMethod());
+        builder.storeLocal(p2);
+
+        if ((bc.mFlags & 0x01) != 0) {
+            // Reverse properties.
+            LocalVariable temp = p1;
+            p1 = p2;
+            p2 = temp;
+        }
+
+        Label nextLabel = builder.createLabel();
+
+        // Handle the case when p1 and p2 are the same (or both null)
+        if (!propertyClass.isPrimitive()) {
+            builder.loadLocal(p1);
+            builder.loadLocal(p2);
+            builder.ifEqualBranch(nextLabel, true);
+
+            // Do null order checks for properties.
+            boolean nullHigh = (bc.mFlags & 0x02) == 0;
+            Label label = builder.createLabel();
+            builder.loadLocal(p1);
+            builder.ifNullBranch(label, false);
+            builder.loadConstant(nullHigh ? 1 : -1);
+            builder.returnValue(TypeDesc.INT);
+            label.setLocation();
+            label = builder.createLabel();
+            builder.loadLocal(p2);
+            builder.ifNullBranch(label, false);
+            builder.loadConstant(nullHigh ? -1 : 1);
+            builder.returnValue(TypeDesc.INT);
+            label.setLocation();
+        }
+
+        // Call 'using' Comparator if one is provided, else assume
+        // Comparable.
+        if (bc.mUsingComparator != null) {
+            builder.loadThis();
+            builder.loadField("mUsingComparators", comparatorArrayType);
+            builder.loadConstant(i);
+            builder.loadFromArray(TypeDesc.forClass(Comparator.class));
+            builder.loadLocal(p1);
+            builder.convert(propertyType, propertyType.toObjectType());
+            builder.loadLocal(p2);
+            builder.convert(propertyType, propertyType.toObjectType());
+            builder.invoke(compareMethod);
+        } else {
+            // If case-sensitive is off and a collator is provided and
+            // property could be a String, apply collator.
+            if ((bc.mFlags & 0x04) == 0 && bc.mCollator != null &&
+                propertyClass.isAssignableFrom(String.class)) {
+
+                Label resultLabel = builder.createLabel();
+
+                if (!String.class.isAssignableFrom(propertyClass)) {
+                    // Check if both property values are strings at
+                    // runtime. If they aren't, cast to Comparable and call
+                    // compareTo.
+
+                    TypeDesc stringType = TypeDesc.STRING;
 
-                    builder.loadThis();
-                    builder.loadField("mCollators", comparatorArrayType);
-                    builder.loadConstant(i);
-                    builder.loadFromArray(TypeDesc.forClass(Comparator.class));
                     builder.loadLocal(p1);
+                    builder.instanceOf(stringType);
+                    Label notString = builder.createLabel();
+                    builder.ifZeroComparisonBranch(notString, "==");
                     builder.loadLocal(p2);
-                    builder.invoke(compareMethod);
+                    builder.instanceOf(stringType);
+                    Label isString = builder.createLabel();
+                    builder.ifZeroComparisonBranch(isString, "!=");
 
-                    resultLabel.setLocation();
-                } else if (propertyClass.isPrimitive()) {
-                    generatePrimitiveComparison(builder, propertyClass, p1,p2);
-                } else {
-                    // Assume properties are instances of Comparable.
+                    notString.setLocation();
                     generateComparableCompareTo
                         (builder, propertyClass, compareToMethod,
-                         null, nextLabel, p1, p2);
+                         resultLabel, nextLabel, p1, p2);
+
+                    isString.setLocation();
                 }
-            }
 
-            if (i < (ruleParts.length - 1)) {
-                builder.storeLocal(result);
-                builder.loadLocal(result);
-                builder.ifZeroComparisonBranch(nextLabel, "==");
-                builder.loadLocal(result);
-            }
-            builder.returnValue(TypeDesc.INT);
+                builder.loadThis();
+                builder.loadField("mCollators", comparatorArrayType);
+                builder.loadConstant(i);
+                builder.loadFromArray(TypeDesc.forClass(Comparator.class));
+                builder.loadLocal(p1);
+                builder.loadLocal(p2);
+                builder.invoke(compareMethod);
 
-            // The next property comparison will start here.
-            nextLabel.setLocation();
+                resultLabel.setLocation();
+            } else if (propertyClass.isPrimitive()) {
+                generatePrimitiveComparison(builder, propertyClass, p1,p2);
+            } else {
+                // Assume properties are instances of Comparable.
+                generateComparableCompareTo
+                    (builder, propertyClass, compareToMethod,
+                     null, nextLabel, p1, p2);
+            }
         }
 
-        endLabel.setLocation();
-        builder.loadConstant(0);
+        if (!last) {
+            builder.storeLocal(result);
+            builder.loadLocal(result);
+            builder.ifZeroComparisonBranch(nextLabel, "==");
+            builder.loadLocal(result);
+        }
         builder.returnValue(TypeDesc.INT);
 
-        return cf.defineClass();
+        // The next property comparison will start here.
+        nextLabel.setLocation();
     }
 
     private static void generatePrimitiveComparison(CodeBuilder builder,
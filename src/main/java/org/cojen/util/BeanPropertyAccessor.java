@@ -69,6 +69,8 @@ public abstract class BeanPropertyAccessor<B> {
     private static final int HAS_READ_METHOD = 5;
     private static final int HAS_WRITE_METHOD = 6;
 
+    private static final String FACTORY = BeanPropertyAccessor.class.getName();
+
     private static final
         Map<PropertySet, Cache<Class, SoftReference<BeanPropertyAccessor>>> cAccessors =
         new HashMap<PropertySet, Cache<Class, SoftReference<BeanPropertyAccessor>>>();
@@ -93,11 +95,14 @@ public abstract class BeanPropertyAccessor<B> {
             if (ref != null) {
                 bpa = ref.get();
                 if (bpa != null) {
+                    GeneratorMetrics.hit(FACTORY);
                     return bpa;
                 }
             }
+            long start = GeneratorMetrics.start(FACTORY);
             bpa = generate(clazz, set);
             accessors.put(clazz, new SoftReference<BeanPropertyAccessor>(bpa));
+            GeneratorMetrics.miss(FACTORY, start);
             return bpa;
         }
     }
@@ -45,6 +45,8 @@ import java.util.TreeSet;
  * @since 2.1
  */
 public abstract class BeanPropertyMapFactory<B> {
+    private static final String FACTORY = BeanPropertyMapFactory.class.getName();
+
     private static final Cache<Class, SoftReference<BeanPropertyMapFactory>> cFactories =
         new WeakIdentityCache<Class, SoftReference<BeanPropertyMapFactory>>(17);
 
@@ -58,10 +60,13 @@ public abstract class BeanPropertyMapFactory<B> {
             if (ref != null) {
                 factory = ref.get();
                 if (factory != null) {
+                    GeneratorMetrics.hit(FACTORY);
                     return factory;
                 }
             }
 
+            long start = GeneratorMetrics.start(FACTORY);
+
             final Map<String, BeanProperty> properties = BeanIntrospector.getAllProperties(clazz);
             Map<String, BeanProperty> supportedProperties = properties;
 
@@ -91,6 +96,7 @@ public abstract class BeanPropertyMapFactory<B> {
             }
 
             cFactories.put(clazz, new SoftReference<BeanPropertyMapFactory>(factory));
+            GeneratorMetrics.miss(FACTORY, start);
             return factory;
         }
     }
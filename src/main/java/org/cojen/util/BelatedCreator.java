@@ -34,14 +34,17 @@
 
 package org.cojen.util;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.Map;
 
 import java.lang.reflect.Method;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 
 import java.security.AccessController;
@@ -70,27 +73,44 @@ import org.cojen.classfile.TypeDesc;
  * @since 2.1
  */
 public abstract class BelatedCreator<T, E extends Exception> {
-    private static final String REF_FIELD_NAME = "ref";
+    private static final String TARGET_FIELD_NAME = "target";
+
+    private static final String FACTORY = BelatedCreator.class.getName();
 
     private static final Cache<Class<?>, Class<?>> cWrapperCache;
 
-    private static final ExecutorService cThreadPool;
+    private static final Executor cThreadPool;
 
     static {
         cWrapperCache = new SoftValueCache(17);
-        cThreadPool = Executors.newCachedThreadPool(new TFactory());
+
+        Executor pool;
+        try {
+            // Virtual threads are available in Java 21.
+            pool = (Executor) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            pool = Executors.newCachedThreadPool(new TFactory());
+        }
+        cThreadPool = pool;
     }
 
     private final Class<T> mType;
     final int mMinRetryDelayMillis;
+    private final Executor mExecutor;
 
-    private T mReal;
+    // Is only written while synchronized, but can be read without.
+    private volatile T mReal;
     private boolean mFailed;
     private Throwable mFailedError;
+    // True if mFailedError is also the cause of a failed future, and so other
+    // threads might be reading it.
+    private boolean mFailedErrorShared;
+    // Wrapper around the bogus object.
     private T mBogus;
-    private AtomicReference<T> mRef;
 
     private CreateThread mCreateThread;
+    private RealFuture mFuture;
 
     /**
      * @param type type of object created
@@ -99,6 +119,18 @@ public abstract class BelatedCreator<T, E extends Exception> {
      * @throws IllegalArgumentException if type is null or is not an interface
      */
     protected BelatedCreator(Class<T> type, int minRetryDelayMillis) {
+        this(type, minRetryDelayMillis, null);
+    }
+
+    /**
+     * @param type type of object created
+     * @param minRetryDelayMillis minimum milliseconds to wait before retrying
+     * to create object after failure; if negative, never retry
+     * @param executor runs the creation of the real object; pass null to use
+     * a shared executor, which runs on virtual threads when available
+     * @throws IllegalArgumentException if type is null or is not an interface
+     */
+    protected BelatedCreator(Class<T> type, int minRetryDelayMillis, Executor executor) {
         if (type == null) {
             throw new IllegalArgumentException("Type is null");
         }
@@ -107,6 +139,7 @@ public abstract class BelatedCreator<T, E extends Exception> {
         }
         mType = type;
         mMinRetryDelayMillis = minRetryDelayMillis;
+        mExecutor = executor == null ? cThreadPool : executor;
     }
 
     /**
@@ -120,7 +153,52 @@ public abstract class BelatedCreator<T, E extends Exception> {
      * returning bogus one; if negative, potentially wait forever
      * @throws E exception thrown from createReal
      */
-    public synchronized T get(final int timeoutMillis) throws E {
+    public T get(final int timeoutMillis) throws E {
+        T real = mReal;
+        if (real != null) {
+            return real;
+        }
+        return getSlow(timeoutMillis);
+    }
+
+    /**
+     * Returns a future which completes when the real object has been created.
+     * Unlike {@link #get get}, waiting for the future doesn't hold any locks.
+     * If the real object exists, the future is already done. If creation
+     * stops without producing the real object, the future fails, and the
+     * next call to this method starts creation again, unless retries are
+     * disabled.
+     *
+     * <p>The future is shared by all callers, and so it cannot be cancelled.
+     */
+    public Future<T> getFuture() {
+        T real = mReal;
+        if (real != null) {
+            RealFuture future = new RealFuture();
+            future.complete(real);
+            return future;
+        }
+
+        synchronized (this) {
+            if (mFuture == null) {
+                RealFuture future = new RealFuture();
+                if (mReal != null) {
+                    future.complete(mReal);
+                    return future;
+                }
+                if (mFailed && mMinRetryDelayMillis < 0 && mCreateThread == null) {
+                    future.fail(new IllegalStateException
+                                ("Real object not created, and retry is disabled"));
+                    return future;
+                }
+                mFuture = future;
+                startCreateThread();
+            }
+            return mFuture;
+        }
+    }
+
+    private synchronized T getSlow(final int timeoutMillis) throws E {
         if (mReal != null) {
             return mReal;
         }
@@ -129,10 +207,7 @@ public abstract class BelatedCreator<T, E extends Exception> {
             return mBogus;
         }
 
-        if (mCreateThread == null) {
-            mCreateThread = new CreateThread();
-            cThreadPool.submit(mCreateThread);
-        }
+        startCreateThread();
 
         if (timeoutMillis != 0) {
             final long start = System.nanoTime();
@@ -176,25 +251,27 @@ public abstract class BelatedCreator<T, E extends Exception> {
             Throwable error = mFailedError;
             mFailedError = null;
 
-            StackTraceElement[] trace = error.getStackTrace();
-            error.fillInStackTrace();
-            StackTraceElement[] localTrace = error.getStackTrace();
-            StackTraceElement[] completeTrace =
-                new StackTraceElement[trace.length + localTrace.length];
-            System.arraycopy(trace, 0, completeTrace, 0, trace.length);
-            System.arraycopy(localTrace, 0, completeTrace, trace.length, localTrace.length);
-            error.setStackTrace(completeTrace);
+            if (!mFailedErrorShared) {
+                StackTraceElement[] trace = error.getStackTrace();
+                error.fillInStackTrace();
+                StackTraceElement[] localTrace = error.getStackTrace();
+                StackTraceElement[] completeTrace =
+                    new StackTraceElement[trace.length + localTrace.length];
+                System.arraycopy(trace, 0, completeTrace, 0, trace.length);
+                System.arraycopy(localTrace, 0, completeTrace, trace.length, localTrace.length);
+                error.setStackTrace(completeTrace);
+            }
 
             ThrowUnchecked.fire(error);
         }
 
         if (mBogus == null) {
-            mRef = new AtomicReference<T>(createBogus());
+            final T bogus = createBogus();
 
             mBogus = AccessController.doPrivileged(new PrivilegedAction<T>() {
                 public T run() {
                     try {
-                        return getWrapper().newInstance(mRef);
+                        return getWrapper().newInstance(bogus);
                     } catch (Exception e) {
                         ThrowUnchecked.fire(e);
                         return null;
@@ -206,6 +283,13 @@ public abstract class BelatedCreator<T, E extends Exception> {
         return mBogus;
     }
 
+    private void startCreateThread() {
+        if (mCreateThread == null) {
+            mCreateThread = new CreateThread();
+            mExecutor.execute(mCreateThread);
+        }
+    }
+
     /**
      * Create instance of real object. If there is a recoverable error creating
      * the object, return null. Any error logging must be performed by the
@@ -240,15 +324,15 @@ public abstract class BelatedCreator<T, E extends Exception> {
     synchronized void created(T object) {
         mReal = object;
         if (mBogus != null) {
+            // Point the wrapper to the real object. It calls the target
+            // directly, and so it no longer behaves like the bogus object.
+            setTarget(mBogus, object);
             mBogus = null;
-            if (mRef != null) {
-                // Changing reference to real object. The ref object is also
-                // held by the auto-generated wrapper, so changing here changes
-                // the wrapper's behavior.
-                mRef.set(object);
-            }
         }
         mFailed = false;
+        if (mFuture != null) {
+            mFuture.complete(object);
+        }
         notifyAll();
         createdNotification(object);
     }
@@ -268,28 +352,53 @@ public abstract class BelatedCreator<T, E extends Exception> {
             mFailed = true;
             if (error != null) {
                 mFailedError = error;
+                mFailedErrorShared = mFuture != null;
+            }
+            if (mFuture != null) {
+                // Fail with a separate exception, since the error might be
+                // thrown by the get method too.
+                mFuture.fail(new IllegalStateException("Real object not created", error));
+                mFuture = null;
             }
         }
         mCreateThread = null;
         notifyAll();
     }
 
+    private static void setTarget(final Object wrapper, final Object target) {
+        AccessController.doPrivileged(new PrivilegedAction<Object>() {
+            public Object run() {
+                try {
+                    Field field = wrapper.getClass().getDeclaredField(TARGET_FIELD_NAME);
+                    field.setAccessible(true);
+                    field.set(wrapper, target);
+                } catch (Exception e) {
+                    ThrowUnchecked.fire(e);
+                }
+                return null;
+            }
+        });
+    }
+
     /**
-     * Returns a Constructor that accepts an AtomicReference to the wrapped
-     * object.
+     * Returns a Constructor that accepts the initial wrapped object.
      */
     private Constructor<T> getWrapper() {
         Class<T> clazz;
         synchronized (cWrapperCache) {
             clazz = (Class<T>) cWrapperCache.get(mType);
             if (clazz == null) {
+                long start = GeneratorMetrics.start(FACTORY);
                 clazz = createWrapper();
                 cWrapperCache.put(mType, clazz);
+                GeneratorMetrics.miss(FACTORY, start);
+            } else {
+                GeneratorMetrics.hit(FACTORY);
             }
         }
 
         try {
-            return clazz.getConstructor(AtomicReference.class);
+            return clazz.getConstructor(mType);
         } catch (NoSuchMethodException e) {
             ThrowUnchecked.fire(e);
             return null;
@@ -303,17 +412,21 @@ public abstract class BelatedCreator<T, E extends Exception> {
         cf.setSourceFile(BelatedCreator.class.getName());
         cf.setTarget("1.5");
 
-        final TypeDesc atomicRefType = TypeDesc.forClass(AtomicReference.class);
+        final TypeDesc targetType = TypeDesc.forClass(mType);
 
-        cf.addField(Modifiers.PRIVATE.toFinal(true), REF_FIELD_NAME, atomicRefType);
+        // Wrapped object is held directly, rather than in a holder object,
+        // and so each call costs a single volatile field load. The field is
+        // private, and it is set by reflection when the real object is created.
+        cf.addField(Modifiers.PRIVATE.toVolatile(true), TARGET_FIELD_NAME, targetType)
+            .markSynthetic();
 
         CodeBuilder b = new CodeBuilder(cf.addConstructor(Modifiers.PUBLIC,
-                                                          new TypeDesc[] {atomicRefType}));
+                                                          new TypeDesc[] {targetType}));
         b.loadThis();
         b.invokeSuperConstructor(null);
         b.loadThis();
         b.loadLocal(b.getParameter(0));
-        b.storeField(REF_FIELD_NAME, atomicRefType);
+        b.storeField(TARGET_FIELD_NAME, targetType);
         b.returnVoid();
 
         // Now define all interface methods to call wrapped object.
@@ -378,13 +491,11 @@ public abstract class BelatedCreator<T, E extends Exception> {
             isInstance.setLocation();
         }
 
-        final TypeDesc atomicRefType = TypeDesc.forClass(AtomicReference.class);
+        final TypeDesc targetType = TypeDesc.forClass(mType);
 
         // Load wrapped object...
         b.loadThis();
-        b.loadField(REF_FIELD_NAME, atomicRefType);
-        b.invokeVirtual(atomicRefType, "get", TypeDesc.OBJECT, null);
-        b.checkCast(TypeDesc.forClass(mType));
+        b.loadField(TARGET_FIELD_NAME, targetType);
 
         // Load parameters...
         for (int i=0; i<b.getParameterCount(); i++) {
@@ -395,9 +506,7 @@ public abstract class BelatedCreator<T, E extends Exception> {
         if (isEqualsMethod) {
             // Extract wrapped object.
             b.checkCast(cf.getType());
-            b.loadField(REF_FIELD_NAME, atomicRefType);
-            b.invokeVirtual(atomicRefType, "get", TypeDesc.OBJECT, null);
-            b.checkCast(TypeDesc.forClass(mType));
+            b.loadField(TARGET_FIELD_NAME, targetType);
         }
 
         // Invoke wrapped method...
@@ -436,6 +545,38 @@ public abstract class BelatedCreator<T, E extends Exception> {
         }
     }
 
+    private class RealFuture extends FutureTask<T> {
+        RealFuture() {
+            super(new Callable<T>() {
+                public T call() {
+                    // Completed by the creation thread instead.
+                    throw new IllegalStateException();
+                }
+            });
+        }
+
+        void complete(T real) {
+            set(real);
+        }
+
+        void fail(Throwable error) {
+            setException(error);
+        }
+
+        /**
+         * Always returns false, because one caller must not cancel the
+         * future which other callers are waiting on.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public void run() {
+        }
+    }
+
     private static class TFactory implements ThreadFactory {
         private static int cCount;
 
@@ -0,0 +1,259 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import static java.util.AbstractMap.SimpleImmutableEntry;
+
+/**
+ * Thread-safe cache which holds strong references to at most a fixed number of
+ * entries. Unlike the reference based caches, entries are never cleared by the
+ * garbage collector, and so the cost of recreating them is predictable. Cache
+ * permits null keys, but not null values.
+ *
+ * <p>Eviction follows the CLOCK algorithm, with a small saturating use
+ * counter per entry. Frequently used entries survive several sweeps of the
+ * clock hand, and entries used just once are evicted first. Reads don't
+ * acquire any locks, as they only bump the use counter of an entry.
+ *
+ * @author Brian S O'Neill
+ * @see SoftValueCache
+ * @see WeakValueCache
+ */
+public class BoundedCache<K, V> implements Cache<K, V> {
+    private static final Object NULL_KEY = new Object();
+
+    // Maximum use count, which is the number of extra sweeps an entry survives.
+    private static final int MAX_USES = 3;
+
+    private final ConcurrentHashMap<Object, Node<K, V>> mMap;
+
+    // Clock of entries; access guarded by this.
+    private final Node<K, V>[] mClock;
+    private final int[] mFreeSlots;
+    private int mFreeCount;
+    private int mHand;
+
+    /**
+     * @param maxSize maximum number of entries to retain
+     * @throws IllegalArgumentException if maxSize is less than one
+     */
+    public BoundedCache(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Maximum size must be at least one: " + maxSize);
+        }
+        mMap = new ConcurrentHashMap<Object, Node<K, V>>(Math.min(maxSize, 16));
+        mClock = new Node[maxSize];
+        mFreeSlots = new int[maxSize];
+        clearSlots();
+    }
+
+    /**
+     * Returns the maximum number of entries this cache retains.
+     */
+    public int maxSize() {
+        return mClock.length;
+    }
+
+    public int size() {
+        return mMap.size();
+    }
+
+    public boolean isEmpty() {
+        return mMap.isEmpty();
+    }
+
+    public V get(K key) {
+        Node<K, V> node = mMap.get(mask(key));
+        if (node == null) {
+            return null;
+        }
+        node.used();
+        return node.mValue;
+    }
+
+    public synchronized V put(K key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null value");
+        }
+        Object masked = mask(key);
+        Node<K, V> node = mMap.get(masked);
+        if (node != null) {
+            V old = node.mValue;
+            node.mValue = value;
+            node.used();
+            return old;
+        }
+        node = new Node<K, V>(key, value);
+        node.mSlot = allocateSlot();
+        mClock[node.mSlot] = node;
+        mMap.put(masked, node);
+        return null;
+    }
+
+    public synchronized V putIfAbsent(K key, V value) {
+        V existing = get(key);
+        return existing == null ? put(key, value) : existing;
+    }
+
+    public synchronized V remove(K key) {
+        Node<K, V> node = mMap.remove(mask(key));
+        if (node == null) {
+            return null;
+        }
+        freeSlot(node.mSlot);
+        return node.mValue;
+    }
+
+    public synchronized boolean remove(K key, V value) {
+        V existing = get(key);
+        if (existing != null && existing.equals(value)) {
+            remove(key);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    public synchronized boolean replace(K key, V oldValue, V newValue) {
+        V existing = get(key);
+        if (existing != null && existing.equals(oldValue)) {
+            put(key, newValue);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    public synchronized V replace(K key, V value) {
+        return get(key) == null ? null : put(key, value);
+    }
+
+    public void copyKeysInto(Collection<? super K> c) {
+        for (Node<K, V> node : mMap.values()) {
+            c.add(node.mKey);
+        }
+    }
+
+    public void copyValuesInto(Collection<? super V> c) {
+        for (Node<K, V> node : mMap.values()) {
+            c.add(node.mValue);
+        }
+    }
+
+    public void copyEntriesInto(Collection<? super Map.Entry<K, V>> c) {
+        for (Node<K, V> node : mMap.values()) {
+            c.add(new SimpleImmutableEntry<K, V>(node.mKey, node.mValue));
+        }
+    }
+
+    public synchronized void clear() {
+        mMap.clear();
+        Arrays.fill(mClock, null);
+        clearSlots();
+    }
+
+    @Override
+    public String toString() {
+        if (isEmpty()) {
+            return "{}";
+        }
+
+        StringBuilder b = new StringBuilder();
+        b.append('{');
+
+        boolean any = false;
+        for (Node<K, V> node : mMap.values()) {
+            if (any) {
+                b.append(',').append(' ');
+            }
+            b.append(node.mKey).append('=').append(node.mValue);
+            any = true;
+        }
+
+        b.append('}');
+        return b.toString();
+    }
+
+    private static Object mask(Object key) {
+        return key == null ? NULL_KEY : key;
+    }
+
+    /**
+     * Returns a free slot in the clock, evicting an entry if necessary.
+     */
+    private int allocateSlot() {
+        if (mFreeCount > 0) {
+            return mFreeSlots[--mFreeCount];
+        }
+
+        Node<K, V>[] clock = mClock;
+        int hand = mHand;
+        while (true) {
+            Node<K, V> node = clock[hand];
+            if (++hand >= clock.length) {
+                hand = 0;
+            }
+            if (node.mUses > 0) {
+                // Give it another chance.
+                node.mUses--;
+            } else {
+                mHand = hand;
+                mMap.remove(mask(node.mKey), node);
+                return node.mSlot;
+            }
+        }
+    }
+
+    private void freeSlot(int slot) {
+        mClock[slot] = null;
+        mFreeSlots[mFreeCount++] = slot;
+    }
+
+    private void clearSlots() {
+        // Hand out slots in ascending order.
+        int[] free = mFreeSlots;
+        for (int i=free.length, slot=0; --i>=0; ) {
+            free[i] = slot++;
+        }
+        mFreeCount = free.length;
+        mHand = 0;
+    }
+
+    private static class Node<K, V> {
+        final K mKey;
+        volatile V mValue;
+        // Racy updates to the use count are harmless.
+        int mUses;
+        // Slot in the clock; access guarded by cache.
+        int mSlot;
+
+        Node(K key, V value) {
+            mKey = key;
+            mValue = value;
+        }
+
+        void used() {
+            if (mUses < MAX_USES) {
+                mUses++;
+            }
+        }
+    }
+}
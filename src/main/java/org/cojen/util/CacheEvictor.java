@@ -16,23 +16,62 @@
 
 package org.cojen.util;
 
+import java.lang.management.ManagementFactory;
+
+import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
 /**
- * Singleton background thread which clears entries from caching classes. All cached
- * entries must implement the Ref interface.
+ * Singleton background service which clears entries from caching classes. All
+ * cached entries must implement the Ref interface.
+ *
+ * <p>Cleared references are drained in batches, and all the references in a
+ * batch which belong to the same cache are removed while holding its lock
+ * just once. The evictor is configured with these system properties:
+ *
+ * <ul>
+ * <li>org.cojen.util.CacheEvictor.THREADS - number of worker threads (default 1)
+ * <li>org.cojen.util.CacheEvictor.BATCH_SIZE - maximum references drained per
+ * batch (default 1000)
+ * <li>org.cojen.util.CacheEvictor.JMX - when true, register the {@link
+ * CacheEvictorMBean} with the platform MBean server (default false)
+ * </ul>
  *
  * @author Brian S O'Neill
  */
-class CacheEvictor extends Thread {
+class CacheEvictor implements CacheEvictorMBean {
     private final static CacheEvictor cEvictor;
 
     static {
-        CacheEvictor evictor = new CacheEvictor();
-        evictor.setName("Cache Evictor");
-        evictor.setDaemon(true);
-        evictor.setPriority(Thread.MAX_PRIORITY);
-        evictor.start();
+        int threads = Math.max(1, Integer.getInteger
+                               ("org.cojen.util.CacheEvictor.THREADS", 1));
+        int batchSize = Math.max(1, Integer.getInteger
+                                 ("org.cojen.util.CacheEvictor.BATCH_SIZE", 1000));
+
+        CacheEvictor evictor = new CacheEvictor(threads, batchSize);
+
+        for (int i=0; i<threads; i++) {
+            Thread t = evictor.new Worker();
+            t.setName(threads == 1 ? "Cache Evictor" : ("Cache Evictor-" + i));
+            t.setDaemon(true);
+            t.setPriority(Thread.MAX_PRIORITY);
+            t.start();
+        }
+
+        if (Boolean.getBoolean("org.cojen.util.CacheEvictor.JMX")) {
+            evictor.register();
+        }
+
         cEvictor = evictor;
     }
 
@@ -41,25 +80,163 @@ class CacheEvictor extends Thread {
     }
 
     private final ReferenceQueue<Object> mQueue;
+    private final int mWorkerCount;
+    private final int mBatchSize;
+
+    private final AtomicLong mClearedCount = new AtomicLong();
+    private final AtomicLong mBatchCount = new AtomicLong();
+    private final AtomicLong mDrainNanos = new AtomicLong();
+    private final AtomicLong mMaxDrainNanos = new AtomicLong();
+    private volatile int mLastBatchSize;
+    private volatile int mMaxBatchSize;
 
-    private CacheEvictor() {
+    private CacheEvictor(int workerCount, int batchSize) {
         mQueue = new ReferenceQueue<Object>();
+        mWorkerCount = workerCount;
+        mBatchSize = batchSize;
+    }
+
+    public int getWorkerCount() {
+        return mWorkerCount;
+    }
+
+    public int getBatchSize() {
+        return mBatchSize;
+    }
+
+    public long getClearedCount() {
+        return mClearedCount.get();
+    }
+
+    public long getBatchCount() {
+        return mBatchCount.get();
+    }
+
+    public int getLastBatchSize() {
+        return mLastBatchSize;
+    }
+
+    public int getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+
+    public long getAverageDrainNanos() {
+        long batches = mBatchCount.get();
+        return batches == 0 ? 0 : (mDrainNanos.get() / batches);
+    }
+
+    public long getMaxDrainNanos() {
+        return mMaxDrainNanos.get();
     }
 
-    @Override
-    public void run() {
+    public void resetCounters() {
+        mClearedCount.set(0);
+        mBatchCount.set(0);
+        mDrainNanos.set(0);
+        mMaxDrainNanos.set(0);
+        mLastBatchSize = 0;
+        mMaxBatchSize = 0;
+    }
+
+    private void register() {
         try {
-            while (true) {
-                ((Ref) mQueue.remove()).remove();
+            ManagementFactory.getPlatformMBeanServer().registerMBean
+                (new StandardMBean(this, CacheEvictorMBean.class),
+                 new ObjectName("org.cojen.util:type=CacheEvictor"));
+        } catch (Exception e) {
+            // Already registered by another class loader, or not permitted.
+        } catch (LinkageError e) {
+            // Management classes are not available.
+        }
+    }
+
+    /**
+     * Removes the first count references in the batch, locking each distinct
+     * owner just once. References are grouped by owner before any lock is
+     * acquired. Elements of the batch are cleared, and the groups map is
+     * left empty.
+     */
+    private static void removeAll(Ref[] batch, int count, Map<Object, List<Ref>> groups) {
+        for (int i=0; i<count; i++) {
+            Ref ref = batch[i];
+            batch[i] = null;
+            Object owner = ref.owner();
+            List<Ref> group = groups.get(owner);
+            if (group == null) {
+                group = new ArrayList<Ref>(4);
+                groups.put(owner, group);
+            }
+            group.add(ref);
+        }
+
+        for (Map.Entry<Object, List<Ref>> entry : groups.entrySet()) {
+            List<Ref> group = entry.getValue();
+            synchronized (entry.getKey()) {
+                for (int i=0; i<group.size(); i++) {
+                    group.get(i).remove();
+                }
+            }
+        }
+
+        groups.clear();
+    }
+
+    private void record(int count, long nanos) {
+        mClearedCount.addAndGet(count);
+        mBatchCount.incrementAndGet();
+        mDrainNanos.addAndGet(nanos);
+
+        long max;
+        while (nanos > (max = mMaxDrainNanos.get())) {
+            if (mMaxDrainNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+
+        mLastBatchSize = count;
+        if (count > mMaxBatchSize) {
+            // Racy update is acceptable for a statistic.
+            mMaxBatchSize = count;
+        }
+    }
+
+    private class Worker extends Thread {
+        @Override
+        public void run() {
+            ReferenceQueue<Object> queue = mQueue;
+            Ref[] batch = new Ref[mBatchSize];
+            Map<Object, List<Ref>> groups = new IdentityHashMap<Object, List<Ref>>();
+
+            try {
+                while (true) {
+                    batch[0] = (Ref) queue.remove();
+                    int count = 1;
+                    Reference<?> ref;
+                    while (count < batch.length && (ref = queue.poll()) != null) {
+                        batch[count++] = (Ref) ref;
+                    }
+
+                    long start = System.nanoTime();
+                    removeAll(batch, count, groups);
+                    record(count, System.nanoTime() - start);
+                }
+            } catch (ClassCastException e) {
+                Thread t = Thread.currentThread();
+                t.getThreadGroup().uncaughtException(t, e);
+            } catch (InterruptedException e) {
             }
-        } catch (ClassCastException e) {
-            Thread t = Thread.currentThread();
-            t.getThreadGroup().uncaughtException(t, e);
-        } catch (InterruptedException e) {
         }
     }
 
     static interface Ref {
+        /**
+         * Returns the object which is locked when removing this reference.
+         */
+        Object owner();
+
+        /**
+         * Removes this cleared reference from its owner.
+         */
         void remove();
     }
 }
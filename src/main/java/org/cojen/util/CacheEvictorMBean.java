@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.util;
+
+/**
+ * Management interface for the background thread which evicts cleared
+ * entries from {@link WeakValueCache}, {@link SoftValueCache}, {@link
+ * WeakKeyCache} and {@link WeakCanonicalSet}. When the system property
+ * "org.cojen.util.CacheEvictor.JMX" is true, it is registered with the
+ * platform MBean server as "org.cojen.util:type=CacheEvictor".
+ *
+ * @author Brian S O'Neill
+ */
+public interface CacheEvictorMBean {
+    /**
+     * Returns the number of worker threads draining the reference queue.
+     */
+    int getWorkerCount();
+
+    /**
+     * Returns the maximum number of cleared references removed per batch.
+     */
+    int getBatchSize();
+
+    /**
+     * Returns the total number of cleared references removed.
+     */
+    long getClearedCount();
+
+    /**
+     * Returns the total number of batches drained.
+     */
+    long getBatchCount();
+
+    /**
+     * Returns the number of cleared references removed by the most recent
+     * batch, which is at most the batch size.
+     */
+    int getLastBatchSize();
+
+    /**
+     * Returns the largest number of cleared references removed by one batch.
+     */
+    int getMaxBatchSize();
+
+    /**
+     * Returns the average time spent removing a batch, in nanoseconds.
+     */
+    long getAverageDrainNanos();
+
+    /**
+     * Returns the longest time spent removing a batch, in nanoseconds.
+     */
+    long getMaxDrainNanos();
+
+    /**
+     * Resets all counters to zero.
+     */
+    void resetCounters();
+}
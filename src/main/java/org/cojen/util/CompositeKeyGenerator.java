@@ -0,0 +1,332 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.util;
+
+import java.lang.ref.SoftReference;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.UndeclaredThrowableException;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cojen.classfile.CodeBuilder;
+import org.cojen.classfile.Label;
+import org.cojen.classfile.LocalVariable;
+import org.cojen.classfile.MethodInfo;
+import org.cojen.classfile.Modifiers;
+import org.cojen.classfile.Opcode;
+import org.cojen.classfile.RuntimeClassFile;
+import org.cojen.classfile.TypeDesc;
+
+/**
+ * Generates composite key classes and factories for them.
+ *
+ * @author Brian S O'Neill
+ * @see KeyFactory#getFactory
+ */
+class CompositeKeyGenerator {
+    // Generated classes have KeyFactory as their source file.
+    private static final String FACTORY = KeyFactory.class.getName();
+
+    private static final Cache<Class<?>, SoftReference<Object>> cCache =
+        new WeakIdentityCache<Class<?>, SoftReference<Object>>(17);
+
+    private static final TypeDesc COMPOSITE_KEY = TypeDesc.forClass(KeyFactory.CompositeKey.class);
+
+    @SuppressWarnings("unchecked")
+    static synchronized <F> F getInstance(final Class<F> factory) {
+        SoftReference<Object> ref = cCache.get(factory);
+        if (ref != null) {
+            Object instance = ref.get();
+            if (instance != null) {
+                GeneratorMetrics.hit(FACTORY);
+                return (F) instance;
+            }
+        }
+
+        if (factory == null) {
+            throw new IllegalArgumentException("No factory type");
+        }
+        if (!factory.isInterface()) {
+            throw new IllegalArgumentException("Factory must be an interface");
+        }
+
+        long start = GeneratorMetrics.start(FACTORY);
+
+        F instance = AccessController.doPrivileged(new PrivilegedAction<F>() {
+            public F run() {
+                return generate(factory);
+            }
+        });
+
+        cCache.put(factory, new SoftReference<Object>(instance));
+
+        GeneratorMetrics.miss(FACTORY, start);
+
+        return instance;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <F> F generate(Class<F> factory) {
+        ClassLoader loader = factory.getClassLoader();
+
+        // Key classes, shared by methods with the same shape.
+        Map<List<Class<?>>, TypeDesc> keyTypes = new HashMap<List<Class<?>>, TypeDesc>();
+
+        RuntimeClassFile cf = null;
+
+        for (Method method : factory.getMethods()) {
+            if (!Modifier.isAbstract(method.getModifiers())) {
+                continue;
+            }
+
+            if (!method.getReturnType().isAssignableFrom(KeyFactory.CompositeKey.class)) {
+                throw new IllegalArgumentException
+                    ("Method return type must be Object or Comparable: " + method);
+            }
+
+            List<Class<?>> shape = Arrays.<Class<?>>asList(method.getParameterTypes());
+            if (shape.size() == 0) {
+                throw new IllegalArgumentException("Method must have parameters: " + method);
+            }
+
+            TypeDesc keyType = keyTypes.get(shape);
+            if (keyType == null) {
+                keyType = TypeDesc.forClass(generateKeyClass(loader, shape).defineClass());
+                keyTypes.put(shape, keyType);
+            }
+
+            if (cf == null) {
+                cf = new RuntimeClassFile(KeyFactory.class.getName(), null, loader);
+                cf.setSourceFile(KeyFactory.class.getName());
+                cf.setTarget("1.5");
+                cf.addInterface(factory);
+                cf.markSynthetic();
+                cf.addDefaultConstructor();
+            }
+
+            CodeBuilder b = new CodeBuilder(cf.addMethod(method));
+            b.newObject(keyType);
+            b.dup();
+            int count = b.getParameterCount();
+            TypeDesc[] params = new TypeDesc[count];
+            for (int i=0; i<count; i++) {
+                LocalVariable param = b.getParameter(i);
+                params[i] = param.getType();
+                b.loadLocal(param);
+            }
+            b.invokeConstructor(keyType, params);
+            b.returnValue(TypeDesc.OBJECT);
+        }
+
+        if (cf == null) {
+            // No methods found to implement.
+            throw new IllegalArgumentException("No methods in factory to implement");
+        }
+
+        try {
+            return (F) cf.defineClass().newInstance();
+        } catch (IllegalAccessException e) {
+            throw new UndeclaredThrowableException(e);
+        } catch (InstantiationException e) {
+            throw new UndeclaredThrowableException(e);
+        }
+    }
+
+    private static RuntimeClassFile generateKeyClass(ClassLoader loader, List<Class<?>> shape) {
+        RuntimeClassFile cf = new RuntimeClassFile
+            (KeyFactory.class.getName(), KeyFactory.CompositeKey.class.getName(), loader);
+        cf.setSourceFile(KeyFactory.class.getName());
+        cf.setTarget("1.5");
+        cf.setModifiers(Modifiers.PUBLIC.toFinal(true));
+        cf.markSynthetic();
+
+        TypeDesc keyType = cf.getType();
+        int count = shape.size();
+
+        TypeDesc[] types = new TypeDesc[count];
+        for (int i=0; i<count; i++) {
+            types[i] = TypeDesc.forClass(shape.get(i));
+            cf.addField(Modifiers.PRIVATE.toFinal(true), field(i), types[i]);
+        }
+        cf.addField(Modifiers.PRIVATE.toFinal(true), "hash", TypeDesc.INT);
+
+        // Constructor stores the components and computes the hashcode.
+        {
+            MethodInfo mi = cf.addConstructor(Modifiers.PUBLIC, types);
+            CodeBuilder b = new CodeBuilder(mi);
+            b.loadThis();
+            b.invokeSuperConstructor(null);
+
+            b.loadThis();
+            b.loadConstant(count);
+            for (int i=0; i<count; i++) {
+                b.loadThis();
+                b.loadLocal(b.getParameter(i));
+                b.storeField(field(i), types[i]);
+
+                b.loadLocal(b.getParameter(i));
+                switch (types[i].getTypeCode()) {
+                case TypeDesc.INT_CODE: case TypeDesc.SHORT_CODE:
+                case TypeDesc.BYTE_CODE: case TypeDesc.CHAR_CODE:
+                    break;
+                case TypeDesc.OBJECT_CODE:
+                    b.invokeStatic(COMPOSITE_KEY, "hash", TypeDesc.INT,
+                                   new TypeDesc[] {TypeDesc.OBJECT});
+                    break;
+                default:
+                    b.invokeStatic(COMPOSITE_KEY, "hash", TypeDesc.INT,
+                                   new TypeDesc[] {types[i]});
+                    break;
+                }
+                b.math(Opcode.IADD);
+                b.loadConstant(KeyFactory.CompositeKey.MIX);
+                b.math(Opcode.IMUL);
+            }
+            b.invokeStatic(COMPOSITE_KEY, "finish", TypeDesc.INT, new TypeDesc[] {TypeDesc.INT});
+            b.storeField("hash", TypeDesc.INT);
+            b.returnVoid();
+        }
+
+        // hashCode method
+        {
+            MethodInfo mi = cf.addMethod(Modifiers.PUBLIC, "hashCode", TypeDesc.INT, null);
+            CodeBuilder b = new CodeBuilder(mi);
+            b.loadThis();
+            b.loadField("hash", TypeDesc.INT);
+            b.returnValue(TypeDesc.INT);
+        }
+
+        // equals method
+        {
+            MethodInfo mi = cf.addMethod(Modifiers.PUBLIC, "equals", TypeDesc.BOOLEAN,
+                                         new TypeDesc[] {TypeDesc.OBJECT});
+            CodeBuilder b = new CodeBuilder(mi);
+            Label notEqual = b.createLabel();
+
+            Label notSame = b.createLabel();
+            b.loadThis();
+            b.loadLocal(b.getParameter(0));
+            b.ifEqualBranch(notSame, false);
+            b.loadConstant(true);
+            b.returnValue(TypeDesc.BOOLEAN);
+            notSame.setLocation();
+
+            b.loadLocal(b.getParameter(0));
+            b.instanceOf(keyType);
+            b.ifZeroComparisonBranch(notEqual, "==");
+
+            LocalVariable other = b.createLocalVariable("other", keyType);
+            b.loadLocal(b.getParameter(0));
+            b.checkCast(keyType);
+            b.storeLocal(other);
+
+            // Cheap rejection by hashcode first.
+            b.loadThis();
+            b.loadField("hash", TypeDesc.INT);
+            b.loadLocal(other);
+            b.loadField("hash", TypeDesc.INT);
+            b.ifComparisonBranch(notEqual, "!=");
+
+            for (int i=0; i<count; i++) {
+                TypeDesc type = types[i];
+                b.loadThis();
+                b.loadField(field(i), type);
+                b.loadLocal(other);
+                b.loadField(field(i), type);
+                switch (type.getTypeCode()) {
+                case TypeDesc.INT_CODE: case TypeDesc.SHORT_CODE:
+                case TypeDesc.BYTE_CODE: case TypeDesc.CHAR_CODE:
+                case TypeDesc.BOOLEAN_CODE: case TypeDesc.LONG_CODE:
+                    b.ifComparisonBranch(notEqual, "!=", type);
+                    break;
+                case TypeDesc.OBJECT_CODE:
+                    type = TypeDesc.OBJECT;
+                    // Fall through.
+                default:
+                    b.invokeStatic(COMPOSITE_KEY, "equals", TypeDesc.BOOLEAN,
+                                   new TypeDesc[] {type, type});
+                    b.ifZeroComparisonBranch(notEqual, "==");
+                    break;
+                }
+            }
+
+            b.loadConstant(true);
+            b.returnValue(TypeDesc.BOOLEAN);
+
+            notEqual.setLocation();
+            b.loadConstant(false);
+            b.returnValue(TypeDesc.BOOLEAN);
+        }
+
+        // compareTo method
+        {
+            MethodInfo mi = cf.addMethod(Modifiers.PUBLIC, "compareTo", TypeDesc.INT,
+                                         new TypeDesc[] {TypeDesc.OBJECT});
+            CodeBuilder b = new CodeBuilder(mi);
+
+            LocalVariable other = b.createLocalVariable("other", keyType);
+            b.loadLocal(b.getParameter(0));
+            b.checkCast(keyType);
+            b.storeLocal(other);
+
+            LocalVariable result = b.createLocalVariable("result", TypeDesc.INT);
+
+            for (int i=0; i<count; i++) {
+                TypeDesc type = types[i];
+                b.loadThis();
+                b.loadField(field(i), type);
+                b.loadLocal(other);
+                b.loadField(field(i), type);
+                switch (type.getTypeCode()) {
+                case TypeDesc.SHORT_CODE: case TypeDesc.BYTE_CODE: case TypeDesc.CHAR_CODE:
+                    type = TypeDesc.INT;
+                    break;
+                case TypeDesc.OBJECT_CODE:
+                    type = TypeDesc.OBJECT;
+                    break;
+                }
+                b.invokeStatic(COMPOSITE_KEY, "compare", TypeDesc.INT,
+                               new TypeDesc[] {type, type});
+                if (i == count - 1) {
+                    b.returnValue(TypeDesc.INT);
+                } else {
+                    Label next = b.createLabel();
+                    b.storeLocal(result);
+                    b.loadLocal(result);
+                    b.ifZeroComparisonBranch(next, "==");
+                    b.loadLocal(result);
+                    b.returnValue(TypeDesc.INT);
+                    next.setLocation();
+                }
+            }
+        }
+
+        return cf;
+    }
+
+    private static String field(int i) {
+        return "c" + i;
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.util;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Collects counters and latency histograms for each code generating factory,
+ * registering a {@link GeneratorMetricsMBean} for each one as it is first
+ * seen. Classes defined by any other source, such as a RuntimeClassFile with
+ * an arbitrary source file, are all counted under the factory name "other".
+ *
+ * @author Brian S O'Neill
+ */
+public class DefaultGeneratorMetrics extends GeneratorMetrics {
+    private static final int HISTOGRAM_SIZE = 20;
+
+    private static final String OTHER = "other";
+
+    private final ConcurrentMap<String, Stats> mStats;
+    private final boolean mRegister;
+
+    /**
+     * Creates metrics which register with the platform MBean server.
+     */
+    public DefaultGeneratorMetrics() {
+        this(true);
+    }
+
+    /**
+     * @param register when false, don't register any MBeans
+     */
+    public DefaultGeneratorMetrics(boolean register) {
+        mStats = new ConcurrentHashMap<String, Stats>();
+        mRegister = register;
+    }
+
+    /**
+     * Returns the metrics collected for the given factory, or null if none.
+     */
+    public GeneratorMetricsMBean getMetrics(String factory) {
+        return mStats.get(factory);
+    }
+
+    /**
+     * Returns the metrics collected for all factories seen so far.
+     */
+    public List<GeneratorMetricsMBean> getAllMetrics() {
+        return new ArrayList<GeneratorMetricsMBean>(mStats.values());
+    }
+
+    public void cacheHit(String factory) {
+        stats(factory).mHits.incrementAndGet();
+    }
+
+    public void cacheMiss(String factory, long nanos) {
+        Stats stats = stats(factory);
+        stats.mMisses.incrementAndGet();
+        stats.mGenerationNanos.addAndGet(nanos);
+        max(stats.mMaxGenerationNanos, nanos);
+        int bucket = Math.max(0, 63 - Long.numberOfLeadingZeros(nanos) - 10);
+        stats.mHistogram.incrementAndGet(Math.min(bucket, HISTOGRAM_SIZE - 1));
+    }
+
+    public void classDefined(String factory, Class<?> clazz, int bytes, long nanos) {
+        // Only factories which reported themselves get their own stats, which
+        // keeps the number of registered MBeans bounded.
+        Stats stats = factory == null ? null : mStats.get(factory);
+        if (stats == null) {
+            stats = stats(OTHER);
+        }
+        stats.mDefined.incrementAndGet();
+        stats.mDefinedBytes.addAndGet(bytes);
+        stats.mDefineNanos.addAndGet(nanos);
+        synchronized (stats.mLiveClasses) {
+            stats.mLiveClasses.put(clazz, Boolean.TRUE);
+        }
+    }
+
+    void generating(String factory) {
+        stats(factory);
+    }
+
+    private Stats stats(String factory) {
+        Stats stats = mStats.get(factory);
+        if (stats == null) {
+            Stats newStats = new Stats(factory);
+            stats = mStats.putIfAbsent(factory, newStats);
+            if (stats == null) {
+                stats = newStats;
+                if (mRegister) {
+                    register(stats);
+                }
+            }
+        }
+        return stats;
+    }
+
+    private static void register(Stats stats) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName
+                ("org.cojen.util:type=GeneratorMetrics,name=" +
+                 ObjectName.quote(stats.mFactory));
+            StandardMBean mbean = new StandardMBean(stats, GeneratorMetricsMBean.class);
+            try {
+                server.registerMBean(mbean, name);
+            } catch (InstanceAlreadyExistsException e) {
+                // Replace the MBean of previously installed metrics.
+                server.unregisterMBean(name);
+                server.registerMBean(mbean, name);
+            }
+        } catch (Exception e) {
+            // Not permitted.
+        } catch (LinkageError e) {
+            // Management classes are not available.
+        }
+    }
+
+    private static void max(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+
+    private static class Stats implements GeneratorMetricsMBean {
+        final String mFactory;
+
+        final AtomicLong mHits = new AtomicLong();
+        final AtomicLong mMisses = new AtomicLong();
+        final AtomicLong mGenerationNanos = new AtomicLong();
+        final AtomicLong mMaxGenerationNanos = new AtomicLong();
+        final AtomicLongArray mHistogram = new AtomicLongArray(HISTOGRAM_SIZE);
+
+        final AtomicLong mDefined = new AtomicLong();
+        final AtomicLong mDefinedBytes = new AtomicLong();
+        final AtomicLong mDefineNanos = new AtomicLong();
+
+        // Access guarded by itself.
+        final Map<Class<?>, Object> mLiveClasses = new WeakIdentityMap<Class<?>, Object>();
+
+        Stats(String factory) {
+            mFactory = factory;
+        }
+
+        public String getFactory() {
+            return mFactory;
+        }
+
+        public long getHitCount() {
+            return mHits.get();
+        }
+
+        public long getMissCount() {
+            return mMisses.get();
+        }
+
+        public long getAverageGenerationNanos() {
+            long misses = mMisses.get();
+            return misses == 0 ? 0 : (mGenerationNanos.get() / misses);
+        }
+
+        public long getMaxGenerationNanos() {
+            return mMaxGenerationNanos.get();
+        }
+
+        public long[] getGenerationHistogram() {
+            long[] histogram = new long[HISTOGRAM_SIZE];
+            for (int i=0; i<histogram.length; i++) {
+                histogram[i] = mHistogram.get(i);
+            }
+            return histogram;
+        }
+
+        public long getDefinedCount() {
+            return mDefined.get();
+        }
+
+        public long getDefinedBytes() {
+            return mDefinedBytes.get();
+        }
+
+        public long getAverageDefineNanos() {
+            long defined = mDefined.get();
+            return defined == 0 ? 0 : (mDefineNanos.get() / defined);
+        }
+
+        public int getLiveClassCount() {
+            synchronized (mLiveClasses) {
+                return mLiveClasses.size();
+            }
+        }
+
+        public String[] getLiveClassesPerLoader() {
+            Map<ClassLoader, Integer> counts = new IdentityHashMap<ClassLoader, Integer>();
+            synchronized (mLiveClasses) {
+                for (Class<?> clazz : mLiveClasses.keySet()) {
+                    if (clazz != null) {
+                        ClassLoader loader = clazz.getClassLoader();
+                        Integer count = counts.get(loader);
+                        counts.put(loader, count == null ? 1 : (count + 1));
+                    }
+                }
+            }
+
+            String[] result = new String[counts.size()];
+            int i = 0;
+            for (Map.Entry<ClassLoader, Integer> entry : counts.entrySet()) {
+                result[i++] = entry.getKey() + "=" + entry.getValue();
+            }
+            return result;
+        }
+
+        public void resetCounters() {
+            mHits.set(0);
+            mMisses.set(0);
+            mGenerationNanos.set(0);
+            mMaxGenerationNanos.set(0);
+            for (int i=0; i<HISTOGRAM_SIZE; i++) {
+                mHistogram.set(i, 0);
+            }
+            mDefined.set(0);
+            mDefinedBytes.set(0);
+            mDefineNanos.set(0);
+        }
+    }
+}
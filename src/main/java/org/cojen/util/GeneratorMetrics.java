@@ -0,0 +1,117 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.util;
+
+/**
+ * Receives events from the code generating factories, such as {@link
+ * BeanPropertyAccessor} and {@link PatternMatcher}. Factories are identified
+ * by their class name, which is also the source file of the classes they
+ * generate. No metrics are collected until an instance is {@link #install
+ * installed}. Setting the system property
+ * "org.cojen.util.GeneratorMetrics.JMX" to true installs a {@link
+ * DefaultGeneratorMetrics} at startup.
+ *
+ * <p>Implementations must be thread-safe, and they should not block.
+ *
+ * @author Brian S O'Neill
+ */
+public abstract class GeneratorMetrics {
+    private static volatile GeneratorMetrics cInstance;
+
+    static {
+        if (Boolean.getBoolean("org.cojen.util.GeneratorMetrics.JMX")) {
+            cInstance = new DefaultGeneratorMetrics();
+        }
+    }
+
+    /**
+     * Returns the installed metrics, or null if none.
+     */
+    public static GeneratorMetrics getInstance() {
+        return cInstance;
+    }
+
+    /**
+     * Installs metrics to receive all subsequent events.
+     *
+     * @param metrics metrics to install; pass null to stop collecting
+     */
+    public static void install(GeneratorMetrics metrics) {
+        cInstance = metrics;
+    }
+
+    static void hit(String factory) {
+        GeneratorMetrics metrics = cInstance;
+        if (metrics != null) {
+            metrics.cacheHit(factory);
+        }
+    }
+
+    /**
+     * Returns a start time to pass to the miss method, or zero if no metrics
+     * are installed.
+     */
+    static long start(String factory) {
+        GeneratorMetrics metrics = cInstance;
+        if (metrics == null) {
+            return 0;
+        }
+        metrics.generating(factory);
+        return System.nanoTime();
+    }
+
+    /**
+     * Called before a factory generates what it needs, and so before any
+     * classes it defines are reported.
+     */
+    void generating(String factory) {
+    }
+
+    static void miss(String factory, long start) {
+        GeneratorMetrics metrics = cInstance;
+        if (metrics != null && start != 0) {
+            metrics.cacheMiss(factory, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Called when a factory finds what it needs in its cache.
+     *
+     * @param factory name of factory
+     */
+    public abstract void cacheHit(String factory);
+
+    /**
+     * Called when a factory had to generate what it needs, after it has been
+     * generated and cached.
+     *
+     * @param factory name of factory
+     * @param nanos total generation time, including class definition
+     */
+    public abstract void cacheMiss(String factory, long nanos);
+
+    /**
+     * Called after a generated class has been defined.
+     *
+     * @param factory name of factory, which is the class file's source file,
+     * and so it might not be a factory at all, or it might be null
+     * @param clazz newly defined class
+     * @param bytes size of class file
+     * @param nanos time spent defining the class
+     */
+    public abstract void classDefined(String factory, Class<?> clazz, int bytes, long nanos);
+}
@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.util;
+
+/**
+ * Management interface for the metrics of one code generating factory, as
+ * collected by {@link DefaultGeneratorMetrics}. Each factory is registered
+ * with the platform MBean server as
+ * "org.cojen.util:type=GeneratorMetrics,name=<i>quoted factory class name</i>".
+ *
+ * @author Brian S O'Neill
+ */
+public interface GeneratorMetricsMBean {
+    /**
+     * Returns the name of the factory.
+     */
+    String getFactory();
+
+    /**
+     * Returns the number of requests served from the factory's cache.
+     */
+    long getHitCount();
+
+    /**
+     * Returns the number of requests which required code generation.
+     */
+    long getMissCount();
+
+    /**
+     * Returns the average generation time of a cache miss, in nanoseconds.
+     */
+    long getAverageGenerationNanos();
+
+    /**
+     * Returns the longest generation time of a cache miss, in nanoseconds.
+     */
+    long getMaxGenerationNanos();
+
+    /**
+     * Returns a histogram of generation times. Element i counts the misses
+     * which took less than 2<sup>i + 11</sup> nanoseconds, but not less than
+     * the bound of element i - 1. The last element counts all longer misses.
+     */
+    long[] getGenerationHistogram();
+
+    /**
+     * Returns the number of classes defined.
+     */
+    long getDefinedCount();
+
+    /**
+     * Returns the total size of all class files defined, in bytes.
+     */
+    long getDefinedBytes();
+
+    /**
+     * Returns the average time spent defining a class, in nanoseconds.
+     */
+    long getAverageDefineNanos();
+
+    /**
+     * Returns the number of defined classes which have not been unloaded.
+     */
+    int getLiveClassCount();
+
+    /**
+     * Returns the number of live classes per ClassLoader, as strings of the
+     * form "<i>loader</i>=<i>count</i>".
+     */
+    String[] getLiveClassesPerLoader();
+
+    /**
+     * Resets all counters to zero. Live classes are still tracked.
+     */
+    void resetCounters();
+}
@@ -0,0 +1,362 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Mutable set of wildcard patterns, which finds the same matches as a {@link
+ * PatternMatcher} for the same patterns. Patterns are split into groups by
+ * their leading chars, and each group is matched by its own generated
+ * PatternMatcher. When patterns change, only the affected groups are
+ * regenerated. Each group's class is defined by its own class loader, and so
+ * it is unloaded once it has been replaced.
+ *
+ * <p>Lookups are thread-safe and don't block, even while patterns are being
+ * changed. Changes are serialized.
+ *
+ * @author Brian S O'Neill
+ * @see PatternMatcher
+ */
+public class IncrementalPatternMatcher<V> {
+    private static final int DEFAULT_PREFIX_LENGTH = 8;
+
+    private final int mPrefixLength;
+
+    // Patterns and matchers of each group; access guarded by this.
+    private final Map<String, Map<String, V>> mGroups;
+    private final Map<String, PatternMatcher<V>> mMatchers;
+
+    private volatile Node<V> mRoot;
+
+    public IncrementalPatternMatcher() {
+        this(DEFAULT_PREFIX_LENGTH);
+    }
+
+    /**
+     * @param prefixLength maximum number of leading chars which select a
+     * group; longer prefixes create more groups, which are smaller
+     * @throws IllegalArgumentException if prefixLength is less than one
+     */
+    public IncrementalPatternMatcher(int prefixLength) {
+        if (prefixLength < 1) {
+            throw new IllegalArgumentException("Prefix length must be at least one: " +
+                                               prefixLength);
+        }
+        mPrefixLength = prefixLength;
+        mGroups = new HashMap<String, Map<String, V>>();
+        mMatchers = new HashMap<String, PatternMatcher<V>>();
+        mRoot = new Node<V>();
+    }
+
+    /**
+     * Adds or replaces a pattern, returning the old value.
+     */
+    public synchronized V put(String pattern, V value) {
+        String key = groupKey(pattern);
+        Map<String, V> group = mGroups.get(key);
+        if (group == null) {
+            group = new HashMap<String, V>();
+            mGroups.put(key, group);
+        }
+        boolean exists = group.containsKey(pattern);
+        V old = group.put(pattern, value);
+        if (!exists || old != value) {
+            update(key);
+        }
+        return old;
+    }
+
+    /**
+     * Removes a pattern, returning the old value.
+     */
+    public synchronized V remove(String pattern) {
+        String key = groupKey(pattern);
+        Map<String, V> group = mGroups.get(key);
+        if (group == null || !group.containsKey(pattern)) {
+            return null;
+        }
+        V old = group.remove(pattern);
+        update(key);
+        return old;
+    }
+
+    /**
+     * Replaces all patterns, regenerating only the groups which changed.
+     */
+    public synchronized void setPatterns(Map<String, ? extends V> patternMap) {
+        Map<String, Map<String, V>> groups = new HashMap<String, Map<String, V>>();
+        for (Map.Entry<String, ? extends V> entry : patternMap.entrySet()) {
+            String key = groupKey(entry.getKey());
+            Map<String, V> group = groups.get(key);
+            if (group == null) {
+                group = new HashMap<String, V>();
+                groups.put(key, group);
+            }
+            group.put(entry.getKey(), entry.getValue());
+        }
+
+        Set<String> changed = new HashSet<String>();
+        for (String key : mGroups.keySet()) {
+            if (!groups.containsKey(key)) {
+                changed.add(key);
+            }
+        }
+        for (Map.Entry<String, Map<String, V>> entry : groups.entrySet()) {
+            if (!entry.getValue().equals(mGroups.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        mGroups.clear();
+        mGroups.putAll(groups);
+        update(changed.toArray(new String[changed.size()]));
+    }
+
+    /**
+     * Returns a copy of all the patterns.
+     */
+    public synchronized Map<String, V> getPatterns() {
+        Map<String, V> patterns = new HashMap<String, V>();
+        for (Map<String, V> group : mGroups.values()) {
+            patterns.putAll(group);
+        }
+        return patterns;
+    }
+
+    /**
+     * Returns null if no match.
+     *
+     * @see PatternMatcher#getMatch(String)
+     */
+    public PatternMatcher.Result<V> getMatch(String lookup) {
+        Node<V>[] path = path(lookup);
+        for (int i = path.length; --i >= 0; ) {
+            Node<V> node = path[i];
+            if (node == null) {
+                continue;
+            }
+            PatternMatcher<V> matcher = node.mMatcher;
+            if (matcher != null && i == path.length - 1) {
+                PatternMatcher.Result<V> result = matcher.findResult(lookup);
+                if (result != null) {
+                    return result;
+                }
+            }
+            if ((matcher = node.mWildcardMatcher) != null) {
+                PatternMatcher.Result<V> result = matcher.findResult(lookup);
+                if (result != null) {
+                    return result;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the value of the closest matching pattern, or null if no match.
+     *
+     * @see PatternMatcher#getMatchValue(CharSequence)
+     */
+    public V getMatchValue(CharSequence lookup) {
+        Node<V>[] path = path(lookup);
+        for (int i = path.length; --i >= 0; ) {
+            Node<V> node = path[i];
+            if (node == null) {
+                continue;
+            }
+            PatternMatcher<V> matcher = node.mMatcher;
+            if (matcher != null && i == path.length - 1) {
+                int index = matcher.getMatchIndex(lookup, null);
+                if (index >= 0) {
+                    return matcher.getValue(index);
+                }
+            }
+            if ((matcher = node.mWildcardMatcher) != null) {
+                int index = matcher.getMatchIndex(lookup, null);
+                if (index >= 0) {
+                    return matcher.getValue(index);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns an empty array if no matches.
+     *
+     * @param limit maximum number of results to return
+     * @see PatternMatcher#getMatches(String, int)
+     */
+    public PatternMatcher.Result<V>[] getMatches(String lookup, int limit) {
+        List<PatternMatcher.Result<V>> results = new ArrayList<PatternMatcher.Result<V>>();
+        Node<V>[] path = path(lookup);
+        for (int i = path.length; --i >= 0 && results.size() < limit; ) {
+            Node<V> node = path[i];
+            if (node == null) {
+                continue;
+            }
+            PatternMatcher<V> matcher = node.mMatcher;
+            if (matcher != null && i == path.length - 1) {
+                results.addAll(Arrays.asList(matcher.getMatches(lookup, limit - results.size())));
+            }
+            if ((matcher = node.mWildcardMatcher) != null && results.size() < limit) {
+                results.addAll(Arrays.asList(matcher.getMatches(lookup, limit - results.size())));
+            }
+        }
+        return results.toArray(new PatternMatcher.Result[results.size()]);
+    }
+
+    /**
+     * Returns the nodes along the lookup's prefix, which has a length of at
+     * most the prefix length. Nodes past the end of the tree are null.
+     * Groups are tried from the last node to the first, which is the order
+     * in which a single generated matcher would find them.
+     */
+    private Node<V>[] path(CharSequence lookup) {
+        int length = Math.min(lookup.length(), mPrefixLength);
+        Node<V>[] path = new Node[length + 1];
+        Node<V> node = mRoot;
+        path[0] = node;
+        for (int i=0; i<length && node != null; ) {
+            node = node.child(lookup.charAt(i));
+            path[++i] = node;
+        }
+        return path;
+    }
+
+    /**
+     * Returns the key of the group the pattern belongs to. The key is the
+     * pattern's prefix up to and including the first wildcard, but no
+     * longer than the prefix length. Patterns shorter than the prefix length
+     * and without wildcards are matched exactly, and their key ends with a
+     * terminator char.
+     */
+    private String groupKey(String pattern) {
+        int length = Math.min(pattern.length(), mPrefixLength);
+        int index = pattern.indexOf('*');
+        if (index >= 0 && index < length) {
+            return pattern.substring(0, index + 1);
+        }
+        if (pattern.length() >= mPrefixLength) {
+            return pattern.substring(0, mPrefixLength);
+        }
+        return pattern.concat("\uffff");
+    }
+
+    /**
+     * Regenerates the matchers of the given groups and publishes a new tree.
+     */
+    private void update(String... keys) {
+        for (String key : keys) {
+            Map<String, V> group = mGroups.get(key);
+            if (group == null || group.isEmpty()) {
+                mGroups.remove(key);
+                mMatchers.remove(key);
+            } else {
+                mMatchers.put(key, PatternMatcher.forPatternsIsolated
+                              (new HashMap<String, V>(group)));
+            }
+        }
+
+        Builder<V> root = new Builder<V>();
+        for (Map.Entry<String, PatternMatcher<V>> entry : mMatchers.entrySet()) {
+            String key = entry.getKey();
+            char last = key.charAt(key.length() - 1);
+            int length = (last == '*' || last == '\uffff') ? (key.length() - 1) : key.length();
+            Builder<V> node = root;
+            for (int i=0; i<length; i++) {
+                node = node.child(key.charAt(i));
+            }
+            if (last == '*') {
+                node.mWildcardMatcher = entry.getValue();
+            } else {
+                node.mMatcher = entry.getValue();
+            }
+        }
+
+        mRoot = root.build();
+    }
+
+    /**
+     * Immutable node of the prefix tree. The matcher at a node of depth less
+     * than the prefix length matches only lookups which equal the node's
+     * prefix. At the prefix length, it matches all lookups which start with
+     * the prefix.
+     */
+    private static final class Node<V> {
+        final char[] mChars;
+        final Node<V>[] mChildren;
+        final PatternMatcher<V> mMatcher;
+        final PatternMatcher<V> mWildcardMatcher;
+
+        Node() {
+            this(new char[0], new Node[0], null, null);
+        }
+
+        Node(char[] chars, Node<V>[] children,
+             PatternMatcher<V> matcher, PatternMatcher<V> wildcardMatcher)
+        {
+            mChars = chars;
+            mChildren = children;
+            mMatcher = matcher;
+            mWildcardMatcher = wildcardMatcher;
+        }
+
+        Node<V> child(char c) {
+            int index = Arrays.binarySearch(mChars, c);
+            return index < 0 ? null : mChildren[index];
+        }
+    }
+
+    private static final class Builder<V> {
+        final TreeMap<Character, Builder<V>> mChildren = new TreeMap<Character, Builder<V>>();
+        PatternMatcher<V> mMatcher;
+        PatternMatcher<V> mWildcardMatcher;
+
+        Builder<V> child(char c) {
+            Builder<V> child = mChildren.get(c);
+            if (child == null) {
+                child = new Builder<V>();
+                mChildren.put(c, child);
+            }
+            return child;
+        }
+
+        Node<V> build() {
+            char[] chars = new char[mChildren.size()];
+            Node<V>[] children = new Node[chars.length];
+            int i = 0;
+            for (Map.Entry<Character, Builder<V>> entry : mChildren.entrySet()) {
+                chars[i] = entry.getKey();
+                children[i++] = entry.getValue().build();
+            }
+            return new Node<V>(chars, children, mMatcher, mWildcardMatcher);
+        }
+    }
+}
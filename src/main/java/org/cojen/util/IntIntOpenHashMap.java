@@ -0,0 +1,218 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.util;
+
+import java.util.Arrays;
+
+/**
+ * Map of primitive int keys to primitive int values, using open addressing
+ * with linear probing. No objects are allocated per entry. This class is not
+ * thread-safe.
+ *
+ * @author Brian S O'Neill
+ * @see IntOpenHashMap
+ */
+public class IntIntOpenHashMap {
+    private int[] mKeys;
+    private int[] mValues;
+    // Marks the slots which hold an entry.
+    private boolean[] mUsed;
+    private int mSize;
+    private int mThreshold;
+
+    public IntIntOpenHashMap() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize number of entries which can be stored without resizing
+     */
+    public IntIntOpenHashMap(int expectedSize) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("Illegal size: " + expectedSize);
+        }
+        init(IntOpenHashMap.tableSize(expectedSize));
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean containsKey(int key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * Returns the value mapped to the given key, or the given default if none.
+     */
+    public int get(int key, int defaultValue) {
+        int i = find(key);
+        return i < 0 ? defaultValue : mValues[i];
+    }
+
+    /**
+     * Maps a key to a value, returning the previous value or the given
+     * default if none.
+     */
+    public int put(int key, int value, int defaultValue) {
+        int[] keys = mKeys;
+        boolean[] used = mUsed;
+        int mask = keys.length - 1;
+        int i = IntOpenHashMap.hash(key) & mask;
+        for (; used[i]; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                int old = mValues[i];
+                mValues[i] = value;
+                return old;
+            }
+        }
+
+        keys[i] = key;
+        mValues[i] = value;
+        used[i] = true;
+
+        if (++mSize > mThreshold) {
+            resize(keys.length << 1);
+        }
+
+        return defaultValue;
+    }
+
+    /**
+     * Maps a key to a value.
+     */
+    public void put(int key, int value) {
+        put(key, value, 0);
+    }
+
+    /**
+     * Removes the mapping for the given key, returning the previous value or
+     * the given default if none.
+     */
+    public int remove(int key, int defaultValue) {
+        int i = find(key);
+        if (i < 0) {
+            return defaultValue;
+        }
+
+        int[] keys = mKeys;
+        int[] values = mValues;
+        boolean[] used = mUsed;
+        int mask = keys.length - 1;
+        int old = values[i];
+        mSize--;
+
+        // Shift back any entries which follow in the probe sequence, keeping
+        // them reachable without tombstones.
+        int gap = i;
+        for (int j = (i + 1) & mask; used[j]; j = (j + 1) & mask) {
+            int home = IntOpenHashMap.hash(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        used[gap] = false;
+
+        return old;
+    }
+
+    public void clear() {
+        if (mSize > 0) {
+            Arrays.fill(mUsed, false);
+            mSize = 0;
+        }
+    }
+
+    /**
+     * Returns all the keys, in no particular order.
+     */
+    public int[] keys() {
+        int[] result = new int[mSize];
+        int[] keys = mKeys;
+        boolean[] used = mUsed;
+        for (int i=0, j=0; i<used.length; i++) {
+            if (used[i]) {
+                result[j++] = keys[i];
+            }
+        }
+        return result;
+    }
+
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append('{');
+        boolean[] used = mUsed;
+        for (int i=0; i<used.length; i++) {
+            if (used[i]) {
+                if (b.length() > 1) {
+                    b.append(", ");
+                }
+                b.append(mKeys[i]).append('=').append(mValues[i]);
+            }
+        }
+        return b.append('}').toString();
+    }
+
+    private int find(int key) {
+        int[] keys = mKeys;
+        boolean[] used = mUsed;
+        int mask = keys.length - 1;
+        for (int i = IntOpenHashMap.hash(key) & mask; used[i]; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = mKeys;
+        int[] oldValues = mValues;
+        boolean[] oldUsed = mUsed;
+        init(capacity);
+        int[] keys = mKeys;
+        int[] values = mValues;
+        boolean[] used = mUsed;
+        int mask = capacity - 1;
+        for (int i=0; i<oldUsed.length; i++) {
+            if (oldUsed[i]) {
+                int key = oldKeys[i];
+                int j = IntOpenHashMap.hash(key) & mask;
+                while (used[j]) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = key;
+                values[j] = oldValues[i];
+                used[j] = true;
+            }
+        }
+    }
+
+    private void init(int capacity) {
+        mKeys = new int[capacity];
+        mValues = new int[capacity];
+        mUsed = new boolean[capacity];
+        // Maximum load factor is 0.75.
+        mThreshold = capacity - (capacity >> 2);
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.util;
+
+import java.util.Arrays;
+
+/**
+ * Map of primitive int keys to non-null values, using open addressing with
+ * linear probing. Unlike {@link IntHashMap}, no objects are allocated per
+ * entry, and keys are never boxed. This class is not thread-safe.
+ *
+ * @author Brian S O'Neill
+ * @see IntIntOpenHashMap
+ */
+public class IntOpenHashMap<V> {
+    private int[] mKeys;
+    // Null value indicates an empty slot.
+    private V[] mValues;
+    private int mSize;
+    private int mThreshold;
+
+    public IntOpenHashMap() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize number of entries which can be stored without resizing
+     */
+    public IntOpenHashMap(int expectedSize) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("Illegal size: " + expectedSize);
+        }
+        init(tableSize(expectedSize));
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Returns the value mapped to the given key, or null if none.
+     */
+    public V get(int key) {
+        int[] keys = mKeys;
+        V[] values = mValues;
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            V value = values[i];
+            if (value == null) {
+                return null;
+            }
+            if (keys[i] == key) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Maps a key to a non-null value, returning the previous value or null if
+     * none.
+     *
+     * @throws IllegalArgumentException if value is null
+     */
+    public V put(int key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null value");
+        }
+
+        int[] keys = mKeys;
+        V[] values = mValues;
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                V old = values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+
+        keys[i] = key;
+        values[i] = value;
+
+        if (++mSize > mThreshold) {
+            resize(keys.length << 1);
+        }
+
+        return null;
+    }
+
+    /**
+     * Removes the mapping for the given key, returning the previous value or
+     * null if none.
+     */
+    public V remove(int key) {
+        int[] keys = mKeys;
+        V[] values = mValues;
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        for (;; i = (i + 1) & mask) {
+            if (values[i] == null) {
+                return null;
+            }
+            if (keys[i] == key) {
+                break;
+            }
+        }
+
+        V old = values[i];
+        mSize--;
+
+        // Shift back any entries which follow in the probe sequence, keeping
+        // them reachable without tombstones.
+        int gap = i;
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            int home = hash(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        values[gap] = null;
+
+        return old;
+    }
+
+    public void clear() {
+        if (mSize > 0) {
+            Arrays.fill(mValues, null);
+            mSize = 0;
+        }
+    }
+
+    /**
+     * Returns all the keys, in no particular order.
+     */
+    public int[] keys() {
+        int[] result = new int[mSize];
+        int[] keys = mKeys;
+        V[] values = mValues;
+        for (int i=0, j=0; i<values.length; i++) {
+            if (values[i] != null) {
+                result[j++] = keys[i];
+            }
+        }
+        return result;
+    }
+
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append('{');
+        int[] keys = mKeys;
+        V[] values = mValues;
+        for (int i=0; i<values.length; i++) {
+            if (values[i] != null) {
+                if (b.length() > 1) {
+                    b.append(", ");
+                }
+                b.append(keys[i]).append('=').append(values[i]);
+            }
+        }
+        return b.append('}').toString();
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = mKeys;
+        V[] oldValues = mValues;
+        init(capacity);
+        int[] keys = mKeys;
+        V[] values = mValues;
+        int mask = capacity - 1;
+        for (int i=0; i<oldValues.length; i++) {
+            V value = oldValues[i];
+            if (value != null) {
+                int key = oldKeys[i];
+                int j = hash(key) & mask;
+                while (values[j] != null) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = key;
+                values[j] = value;
+            }
+        }
+    }
+
+    private void init(int capacity) {
+        mKeys = new int[capacity];
+        mValues = (V[]) new Object[capacity];
+        // Maximum load factor is 0.75.
+        mThreshold = capacity - (capacity >> 2);
+    }
+
+    static int tableSize(int expectedSize) {
+        int capacity = 4;
+        while (capacity - (capacity >> 2) < expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    static int hash(int key) {
+        // Spread the bits, since keys such as bytecode addresses are often
+        // clustered.
+        int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -24,9 +24,29 @@ import java.util.Arrays;
  * computations, equality tests, and ordering comparsisons fully recurse into
  * arrays.
  *
+ * <p>Array hashcodes are computed as by {@link Arrays#hashCode(int[])
+ * Arrays.hashCode}, except that a zero hashcode is replaced with -1. The
+ * older shifting hash can be selected with the command-line option
+ * "-Dorg.cojen.util.KeyFactory.LEGACY_ARRAY_HASH=true".
+ *
+ * <p>Keys composed of a fixed number of components are more efficiently
+ * created by a factory obtained from {@link #getFactory getFactory}, which
+ * generates key classes with a field for each component.
+ *
  * @author Brian S O'Neill
  */
 public class KeyFactory {
+    /**
+     * When true, boolean, byte, char, short and int arrays are hashed by
+     * shifting, as in older versions. This hash loses information for
+     * arrays longer than 32 elements.
+     */
+    private static final boolean LEGACY_ARRAY_HASH =
+        Boolean.getBoolean("org.cojen.util.KeyFactory.LEGACY_ARRAY_HASH");
+
+    // Powers of 31, for hashing four array elements per step.
+    private static final int M2 = 31 * 31, M3 = M2 * 31, M4 = M3 * 31;
+
     static final Object NULL = new Comparable() {
         public int compareTo(Object obj) {
             return obj == this || obj == null ? 0 : 1;
@@ -99,26 +119,84 @@ public class KeyFactory {
         }
     }
 
+    /**
+     * Returns a factory instance which creates composite keys. Each method in
+     * the interface defines a key shape via its parameters, which are the key
+     * components. Methods must return Object, Comparable or {@link
+     * CompositeKey}. Keys created by different methods with the same
+     * parameter types are interchangeable.
+     *
+     * <p>Here is an example for a key composed of a class loader and a
+     * name:
+     *
+     * <pre>
+     * public interface LoaderKeyFactory {
+     *     Object newKey(ClassLoader loader, String name);
+     * }
+     * </pre>
+     *
+     * Keys are created without allocating a component array:
+     *
+     * <pre>
+     * LoaderKeyFactory kf = KeyFactory.getFactory(LoaderKeyFactory.class);
+     * ...
+     * Object key = kf.newKey(loader, name);
+     * </pre>
+     *
+     * Hashcode computations, equality tests, and ordering comparisons of
+     * generated keys recurse into arrays, just like keys created by the
+     * createKey methods.
+     *
+     * @param factory interface defining the key shapes
+     * @throws IllegalArgumentException if factory type is not an interface or
+     * if it is malformed
+     */
+    public static <F> F getFactory(Class<F> factory) {
+        return CompositeKeyGenerator.getInstance(factory);
+    }
+
     static int hashCode(boolean[] a) {
-        int hash = 0;
-        for (int i = a.length; --i >= 0; ) {
-            hash = (hash << 1) + (a[i] ? 0 : 1);
+        if (LEGACY_ARRAY_HASH) {
+            return legacyHashCode(a);
+        }
+        int hash = 1;
+        int i = 0;
+        for (int end = a.length & ~3; i < end; i += 4) {
+            hash = hash * M4 + (a[i] ? 1231 : 1237) * M3 + (a[i + 1] ? 1231 : 1237) * M2
+                + (a[i + 2] ? 1231 : 1237) * 31 + (a[i + 3] ? 1231 : 1237);
+        }
+        for (; i < a.length; i++) {
+            hash = hash * 31 + (a[i] ? 1231 : 1237);
         }
         return hash == 0 ? -1 : hash;
     }
 
     static int hashCode(byte[] a) {
-        int hash = 0;
-        for (int i = a.length; --i >= 0; ) {
-            hash = (hash << 1) + a[i];
+        if (LEGACY_ARRAY_HASH) {
+            return legacyHashCode(a);
+        }
+        int hash = 1;
+        int i = 0;
+        for (int end = a.length & ~3; i < end; i += 4) {
+            hash = hash * M4 + a[i] * M3 + a[i + 1] * M2 + a[i + 2] * 31 + a[i + 3];
+        }
+        for (; i < a.length; i++) {
+            hash = hash * 31 + a[i];
         }
         return hash == 0 ? -1 : hash;
     }
 
     static int hashCode(char[] a) {
-        int hash = 0;
-        for (int i = a.length; --i >= 0; ) {
-            hash = (hash << 1) + a[i];
+        if (LEGACY_ARRAY_HASH) {
+            return legacyHashCode(a);
+        }
+        int hash = 1;
+        int i = 0;
+        for (int end = a.length & ~3; i < end; i += 4) {
+            hash = hash * M4 + a[i] * M3 + a[i + 1] * M2 + a[i + 2] * 31 + a[i + 3];
+        }
+        for (; i < a.length; i++) {
+            hash = hash * 31 + a[i];
         }
         return hash == 0 ? -1 : hash;
     }
@@ -141,9 +219,16 @@ public class KeyFactory {
     }
 
     static int hashCode(int[] a) {
-        int hash = 0;
-        for (int i = a.length; --i >= 0; ) {
-            hash = (hash << 1) + a[i];
+        if (LEGACY_ARRAY_HASH) {
+            return legacyHashCode(a);
+        }
+        int hash = 1;
+        int i = 0;
+        for (int end = a.length & ~3; i < end; i += 4) {
+            hash = hash * M4 + a[i] * M3 + a[i + 1] * M2 + a[i + 2] * 31 + a[i + 3];
+        }
+        for (; i < a.length; i++) {
+            hash = hash * 31 + a[i];
         }
         return hash == 0 ? -1 : hash;
     }
@@ -158,6 +243,53 @@ public class KeyFactory {
     }
 
     static int hashCode(short[] a) {
+        if (LEGACY_ARRAY_HASH) {
+            return legacyHashCode(a);
+        }
+        int hash = 1;
+        int i = 0;
+        for (int end = a.length & ~3; i < end; i += 4) {
+            hash = hash * M4 + a[i] * M3 + a[i + 1] * M2 + a[i + 2] * 31 + a[i + 3];
+        }
+        for (; i < a.length; i++) {
+            hash = hash * 31 + a[i];
+        }
+        return hash == 0 ? -1 : hash;
+    }
+
+    static int legacyHashCode(boolean[] a) {
+        int hash = 0;
+        for (int i = a.length; --i >= 0; ) {
+            hash = (hash << 1) + (a[i] ? 0 : 1);
+        }
+        return hash == 0 ? -1 : hash;
+    }
+
+    static int legacyHashCode(byte[] a) {
+        int hash = 0;
+        for (int i = a.length; --i >= 0; ) {
+            hash = (hash << 1) + a[i];
+        }
+        return hash == 0 ? -1 : hash;
+    }
+
+    static int legacyHashCode(char[] a) {
+        int hash = 0;
+        for (int i = a.length; --i >= 0; ) {
+            hash = (hash << 1) + a[i];
+        }
+        return hash == 0 ? -1 : hash;
+    }
+
+    static int legacyHashCode(int[] a) {
+        int hash = 0;
+        for (int i = a.length; --i >= 0; ) {
+            hash = (hash << 1) + a[i];
+        }
+        return hash == 0 ? -1 : hash;
+    }
+
+    static int legacyHashCode(short[] a) {
         int hash = 0;
         for (int i = a.length; --i >= 0; ) {
             hash = (hash << 1) + a[i];
@@ -277,7 +409,9 @@ public class KeyFactory {
         for (int i=0; i<length; i++) {
             int av = a[i] ? 0 : 1;
             int bv = b[i] ? 0 : 1;
-            return av < bv ? -1 : (av > bv ? 1 : 0);
+            if (av != bv) {
+                return av < bv ? -1 : 1;
+            }
         }
         return a.length < b.length ? -1 : (a.length > b.length ? 1 : 0);
     }
@@ -296,7 +430,9 @@ public class KeyFactory {
         for (int i=0; i<length; i++) {
             byte av = a[i];
             byte bv = b[i];
-            return av < bv ? -1 : (av > bv ? 1 : 0);
+            if (av != bv) {
+                return av < bv ? -1 : 1;
+            }
         }
         return a.length < b.length ? -1 : (a.length > b.length ? 1 : 0);
     }
@@ -315,7 +451,9 @@ public class KeyFactory {
         for (int i=0; i<length; i++) {
             char av = a[i];
             char bv = b[i];
-            return av < bv ? -1 : (av > bv ? 1 : 0);
+            if (av != bv) {
+                return av < bv ? -1 : 1;
+            }
         }
         return a.length < b.length ? -1 : (a.length > b.length ? 1 : 0);
     }
@@ -374,7 +512,9 @@ public class KeyFactory {
         for (int i=0; i<length; i++) {
             int av = a[i];
             int bv = b[i];
-            return av < bv ? -1 : (av > bv ? 1 : 0);
+            if (av != bv) {
+                return av < bv ? -1 : 1;
+            }
         }
         return a.length < b.length ? -1 : (a.length > b.length ? 1 : 0);
     }
@@ -393,7 +533,9 @@ public class KeyFactory {
         for (int i=0; i<length; i++) {
             long av = a[i];
             long bv = b[i];
-            return av < bv ? -1 : (av > bv ? 1 : 0);
+            if (av != bv) {
+                return av < bv ? -1 : 1;
+            }
         }
         return a.length < b.length ? -1 : (a.length > b.length ? 1 : 0);
     }
@@ -412,7 +554,9 @@ public class KeyFactory {
         for (int i=0; i<length; i++) {
             short av = a[i];
             short bv = b[i];
-            return av < bv ? -1 : (av > bv ? 1 : 0);
+            if (av != bv) {
+                return av < bv ? -1 : 1;
+            }
         }
         return a.length < b.length ? -1 : (a.length > b.length ? 1 : 0);
     }
@@ -705,4 +849,77 @@ public class KeyFactory {
             return compare(mArray, ((ObjectArrayKey) obj).mArray);
         }
     }
+
+    /**
+     * Base class for keys generated by {@link KeyFactory#getFactory
+     * getFactory}. Subclasses are generated with a final field for each key
+     * component, and the helper methods are used by the generated code.
+     */
+    public static abstract class CompositeKey implements Comparable {
+        // Golden ratio multiplier, for mixing component hashcodes.
+        protected static final int MIX = 0x9e3779b1;
+
+        protected CompositeKey() {
+        }
+
+        protected static int hash(boolean v) {
+            return v ? 1231 : 1237;
+        }
+
+        protected static int hash(long v) {
+            return (int) (v ^ (v >>> 32));
+        }
+
+        protected static int hash(float v) {
+            return Float.floatToIntBits(v);
+        }
+
+        protected static int hash(double v) {
+            return hash(Double.doubleToLongBits(v));
+        }
+
+        protected static int hash(Object v) {
+            return KeyFactory.hashCode(v);
+        }
+
+        protected static int finish(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+
+        protected static boolean equals(float a, float b) {
+            return Float.floatToIntBits(a) == Float.floatToIntBits(b);
+        }
+
+        protected static boolean equals(double a, double b) {
+            return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+        }
+
+        protected static boolean equals(Object a, Object b) {
+            return KeyFactory.equals(a, b);
+        }
+
+        protected static int compare(boolean a, boolean b) {
+            return a == b ? 0 : (a ? 1 : -1);
+        }
+
+        protected static int compare(int a, int b) {
+            return a < b ? -1 : (a > b ? 1 : 0);
+        }
+
+        protected static int compare(long a, long b) {
+            return a < b ? -1 : (a > b ? 1 : 0);
+        }
+
+        protected static int compare(float a, float b) {
+            return Float.compare(a, b);
+        }
+
+        protected static int compare(double a, double b) {
+            return Double.compare(a, b);
+        }
+
+        protected static int compare(Object a, Object b) {
+            return KeyFactory.compare(a, b);
+        }
+    }
 }
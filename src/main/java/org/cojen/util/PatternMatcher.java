@@ -19,13 +19,20 @@ package org.cojen.util;
 import java.io.PrintStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
 import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import org.cojen.classfile.CodeBuilder;
@@ -47,42 +54,370 @@ import org.cojen.classfile.TypeDesc;
 public abstract class PatternMatcher<V> {
     private static final int[] NO_POSITIONS = new int[0];
 
+    private static final String FACTORY = PatternMatcher.class.getName();
+
+    // Minimum number of lookups matched by each task of a parallel matchAll.
+    private static final int MIN_BATCH_SIZE = 256;
+
     // Maps pattern sets to auto-generated classes.
     private static Cache cPatternMatcherClasses = new SoftValueCache(17);
 
-    public static synchronized <V> PatternMatcher<V> forPatterns(Map<String, V> patternMap) {
+    // Maps pattern sets to auto-generated classes which also match bytes.
+    private static Cache cByteMatcherClasses = new SoftValueCache(17);
+
+    // Maps pattern sets to automata, or to NO_AUTOMATON if too large.
+    private static Cache cAutomata = new SoftValueCache(17);
+    private static final Object NO_AUTOMATON = new Object();
+
+    public static <V> PatternMatcher<V> forPatterns(Map<String, V> patternMap) {
+        return forPatterns(patternMap, false);
+    }
+
+    /**
+     * @param deterministic when true, also compile the patterns into a
+     * deterministic automaton, which finds the closest match in time linear
+     * to the lookup length. It is used when wildcard positions aren't
+     * requested, as by {@link #getMatchValue getMatchValue}. If the automaton
+     * would be too large, the matcher behaves as if this were false.
+     * @throws IllegalArgumentException if there are too many patterns to fit
+     * in one generated class, which is limited to 65534 constant pool
+     * entries. Patterns mostly cost constants for their order indexes above
+     * 32767 and for helper methods, and so the maximum is typically between
+     * 60,000 and 90,000 patterns, depending on how much they share
+     */
+    public static synchronized <V> PatternMatcher<V> forPatterns(Map<String, V> patternMap,
+                                                                 boolean deterministic)
+    {
         final Maker maker = new Maker(patternMap);
         final Class clazz = (Class)cPatternMatcherClasses.get(maker.getKey());
 
-        return AccessController.doPrivileged(new PrivilegedAction<PatternMatcher<V>>() {
+        PatternMatcher<V> matcher =
+            AccessController.doPrivileged(new PrivilegedAction<PatternMatcher<V>>() {
             public PatternMatcher<V> run() {
                 Class clz = clazz;
 
                 if (clz == null) {
-                    clz = maker.createClassFile().defineClass();
+                    long start = GeneratorMetrics.start(FACTORY);
+                    clz = maker.createClassFile(PatternMatcher.class.getClassLoader())
+                        .defineClass();
                     cPatternMatcherClasses.put(maker.getKey(), clz);
+                    GeneratorMetrics.miss(FACTORY, start);
+                } else {
+                    GeneratorMetrics.hit(FACTORY);
                 }
 
-                try {
-                    Constructor ctor = clz.getConstructor(new Class[]{Object[].class});
-                    return (PatternMatcher)ctor.newInstance(new Object[]{maker.getMappedValues()});
-                } catch (NoSuchMethodException e) {
-                    throw new InternalError(e.toString());
-                } catch (InstantiationException e) {
-                    throw new InternalError(e.toString());
-                } catch (IllegalAccessException e) {
-                    throw new InternalError(e.toString());
-                } catch (InvocationTargetException e) {
-                    throw new InternalError(e.toString());
+                return newInstance(clz, maker);
+            }
+        });
+
+        if (deterministic) {
+            Object automaton = cAutomata.get(maker.getKey());
+            if (automaton == null) {
+                automaton = Automaton.build(maker.getPatternRoot());
+                if (automaton == null) {
+                    automaton = NO_AUTOMATON;
                 }
+                cAutomata.put(maker.getKey(), automaton);
+            }
+            if (automaton != NO_AUTOMATON) {
+                matcher.mAutomaton = (Automaton)automaton;
+            }
+        }
+
+        return matcher;
+    }
+
+    /**
+     * Returns a new matcher whose class isn't shared, and which is defined by
+     * its own class loader. The class can then be unloaded as soon as the
+     * matcher is no longer referenced.
+     */
+    static <V> PatternMatcher<V> forPatternsIsolated(Map<String, V> patternMap) {
+        final Maker maker = new Maker(patternMap);
+
+        return AccessController.doPrivileged(new PrivilegedAction<PatternMatcher<V>>() {
+            public PatternMatcher<V> run() {
+                long start = GeneratorMetrics.start(FACTORY);
+                Class clz = maker.createClassFile(newIsolatedLoader()).defineClass();
+                GeneratorMetrics.miss(FACTORY, start);
+                return newInstance(clz, maker);
             }
         });
     }
 
+    /**
+     * Returns a new parent for a class loader of its own. It must not refer to
+     * anything else, because it is strongly referenced by the loader cache.
+     */
+    private static ClassLoader newIsolatedLoader() {
+        return new ClassLoader(PatternMatcher.class.getClassLoader()) {};
+    }
+
+    private static PatternMatcher newInstance(Class clz, Maker maker) {
+        try {
+            Constructor ctor = clz.getConstructor(new Class[]{Object[].class,
+                                                              String[].class});
+            return (PatternMatcher)ctor.newInstance
+                (new Object[]{maker.getMappedValues(), maker.getPatterns()});
+        } catch (NoSuchMethodException e) {
+            throw new InternalError(e.toString());
+        } catch (InstantiationException e) {
+            throw new InternalError(e.toString());
+        } catch (IllegalAccessException e) {
+            throw new InternalError(e.toString());
+        } catch (InvocationTargetException e) {
+            throw new InternalError(e.toString());
+        }
+    }
+
+    // Scratch buffer for wildcard positions, used when the caller doesn't need them.
+    private static final ThreadLocal<int[]> cScratch = new ThreadLocal<int[]>();
+
+    // Scratch buffer for copying the bytes of buffers without an accessible array.
+    private static final ThreadLocal<byte[]> cByteScratch = new ThreadLocal<byte[]>();
+
     protected final V[] mValues;
 
+    private final String[] mPatterns;
+    private final int mMaxPositions;
+
+    // Assigned by the factory before the matcher is returned. A racy read
+    // only falls back to the generated code, which finds the same match.
+    private Automaton mAutomaton;
+
+    // Matcher of UTF-8 bytes, which is generated on first use.
+    private volatile PatternMatcher<V> mByteMatcher;
+
     protected PatternMatcher(V[] values) {
+        this(values, null);
+    }
+
+    protected PatternMatcher(V[] values, String[] patterns) {
         mValues = values;
+        mPatterns = patterns;
+        int max = 0;
+        if (patterns != null) {
+            for (String pattern : patterns) {
+                max = Math.max(max, wildcardCount(pattern) * 2);
+            }
+        }
+        mMaxPositions = max;
+    }
+
+    /**
+     * Returns the value of the closest matching pattern, or null if no
+     * match. Unlike {@link #getMatch getMatch}, this method doesn't allocate
+     * any objects.
+     */
+    public V getMatchValue(CharSequence lookup) {
+        int index = getMatchIndex(lookup, null);
+        return index < 0 ? null : mValues[index];
+    }
+
+    /**
+     * Returns the index of the closest matching pattern, or -1 if no match.
+     * Use the index to obtain the {@link #getPattern pattern} and {@link
+     * #getValue value}. This method doesn't allocate any objects.
+     *
+     * <p>If a positions array is provided, it receives the wildcard positions
+     * of the match, as described by {@link Result#getWildcardPositions}. Only
+     * the first elements, double the number of wildcards in the matched
+     * pattern, are valid.
+     *
+     * @param positions optional array to receive wildcard positions; length
+     * must be at least {@link #getMaxWildcardPositions}
+     * @throws IllegalArgumentException if positions array is too short
+     */
+    public int getMatchIndex(CharSequence lookup, int[] positions) {
+        if (positions == null) {
+            Automaton automaton = mAutomaton;
+            if (automaton != null) {
+                return automaton.find(lookup);
+            }
+        }
+        return findMatch(lookup, checkPositions(positions));
+    }
+
+    /**
+     * Returns the value of the closest matching pattern against UTF-8
+     * encoded bytes, or null if no match. This method doesn't allocate any
+     * objects.
+     */
+    public V getMatchValue(byte[] lookup, int offset, int length) {
+        int index = getMatchIndex(lookup, offset, length, null);
+        return index < 0 ? null : mValues[index];
+    }
+
+    /**
+     * Returns the value of the closest matching pattern against the
+     * remaining UTF-8 encoded bytes of the buffer, or null if no match. The
+     * buffer position is not changed.
+     */
+    public V getMatchValue(ByteBuffer lookup) {
+        if (lookup.hasArray()) {
+            return getMatchValue(lookup.array(), lookup.arrayOffset() + lookup.position(),
+                                 lookup.remaining());
+        }
+        int length = lookup.remaining();
+        return getMatchValue(copy(lookup, scratchBytes(length)), 0, length);
+    }
+
+    /**
+     * Returns the index of the closest matching pattern against UTF-8
+     * encoded bytes, or -1 if no match. Patterns are matched as if they were
+     * UTF-8 encoded too, and so wildcard positions are byte offsets, relative
+     * to the given offset. This method doesn't allocate any objects.
+     *
+     * @param positions optional array to receive wildcard positions; length
+     * must be at least {@link #getMaxWildcardPositions}
+     * @throws IllegalArgumentException if positions array is too short
+     * @see #getMatchIndex(CharSequence, int[])
+     */
+    public int getMatchIndex(byte[] lookup, int offset, int length, int[] positions) {
+        if (offset < 0 || length < 0 || offset + length > lookup.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        boolean relative = positions != null && offset != 0;
+        int index = findMatch(lookup, offset, offset + length, checkPositions(positions));
+        if (relative && index >= 0) {
+            for (int i = wildcardCount(mPatterns[index]) * 2; --i >= 0; ) {
+                positions[i] -= offset;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Returns the pattern at the given match index.
+     */
+    public String getPattern(int index) {
+        return mPatterns[index];
+    }
+
+    /**
+     * Returns the value at the given match index.
+     */
+    public V getValue(int index) {
+        return mValues[index];
+    }
+
+    /**
+     * Finds the closest match of each lookup, storing the match {@link
+     * #getMatchIndex index} into the corresponding element of the indexes
+     * array, or -1 if no match. Apart from iterating over the list, this
+     * method doesn't allocate any objects.
+     *
+     * @param indexes receives match indexes; length must be at least the
+     * number of lookups
+     * @throws IllegalArgumentException if indexes array is too short
+     */
+    public void matchAll(List<? extends CharSequence> lookups, int[] indexes) {
+        checkIndexes(lookups, indexes);
+        matchAll(lookups, indexes, 0);
+    }
+
+    /**
+     * Finds the closest match of each lookup in parallel, by splitting the
+     * lookups into batches and submitting them to the given executor. This
+     * method returns when all batches have finished. Each thread reuses its
+     * own scratch buffers, and so little is allocated per lookup.
+     *
+     * @param indexes receives match indexes; length must be at least the
+     * number of lookups
+     * @param executor executor to run batches, such as a fork-join pool
+     * @throws IllegalArgumentException if indexes array is too short
+     * @throws InterruptedException if interrupted while waiting
+     * @see #matchAll(List, int[])
+     */
+    public void matchAll(final List<? extends CharSequence> lookups, final int[] indexes,
+                         ExecutorService executor)
+        throws InterruptedException
+    {
+        int size = checkIndexes(lookups, indexes);
+        int batchSize = Math.max(MIN_BATCH_SIZE,
+                                 size / (Runtime.getRuntime().availableProcessors() * 4) + 1);
+
+        if (size <= batchSize) {
+            matchAll(lookups, indexes, 0);
+            return;
+        }
+
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int from = 0; from < size; from += batchSize) {
+            final int start = from;
+            final int end = Math.min(size, from + batchSize);
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    matchAll(lookups.subList(start, end), indexes, start);
+                    return null;
+                }
+            });
+        }
+
+        for (Future<Object> future : executor.invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException)cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error)cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+
+    private static int checkIndexes(List<? extends CharSequence> lookups, int[] indexes) {
+        int size = lookups.size();
+        if (indexes.length < size) {
+            throw new IllegalArgumentException
+                ("Indexes array length must be at least " + size);
+        }
+        return size;
+    }
+
+    private void matchAll(List<? extends CharSequence> lookups, int[] indexes, int offset) {
+        for (CharSequence lookup : lookups) {
+            indexes[offset++] = getMatchIndex(lookup, null);
+        }
+    }
+
+    /**
+     * Returns the minimum length of the positions array passed to {@link
+     * #getMatchIndex getMatchIndex}, which is double the largest number of
+     * wildcards in any pattern.
+     */
+    public int getMaxWildcardPositions() {
+        return mMaxPositions;
+    }
+
+    /**
+     * Returns null if no match.
+     *
+     * @see #getMatchIndex(byte[], int, int, int[])
+     */
+    public Result<V> getMatch(byte[] lookup, int offset, int length) {
+        int[] positions = new int[mMaxPositions];
+        int index = getMatchIndex(lookup, offset, length, positions);
+        return index < 0 ? null : newResult(index, positions);
+    }
+
+    /**
+     * Matches against the remaining bytes of the buffer, without changing
+     * its position. Returns null if no match.
+     *
+     * @see #getMatchIndex(byte[], int, int, int[])
+     */
+    public Result<V> getMatch(ByteBuffer lookup) {
+        if (lookup.hasArray()) {
+            return getMatch(lookup.array(), lookup.arrayOffset() + lookup.position(),
+                            lookup.remaining());
+        }
+        byte[] bytes = copy(lookup, new byte[lookup.remaining()]);
+        return getMatch(bytes, 0, bytes.length);
     }
 
     /**
@@ -120,6 +455,176 @@ public abstract class PatternMatcher<V> {
     protected abstract void fillMatchResults(char[] lookup,
                                              int limit, List results);
 
+    /**
+     * Returns the index of the first match, or -1 if none.
+     *
+     * @param positions receives wildcard positions
+     */
+    protected abstract int findMatch(CharSequence lookup, int[] positions);
+
+    /**
+     * Returns the index of the first match against UTF-8 encoded bytes, or
+     * -1 if none. Matchers which never match bytes don't pay for the code,
+     * and so it is generated on first use, by a subclass of this matcher's
+     * class which overrides this method.
+     *
+     * @param end end offset of lookup, exclusive
+     * @param positions receives wildcard positions, as absolute offsets
+     */
+    protected int findMatch(byte[] lookup, int offset, int end, int[] positions) {
+        PatternMatcher<V> matcher = mByteMatcher;
+        if (matcher == null) {
+            matcher = byteMatcher(this);
+        }
+        return matcher.findMatch(lookup, offset, end, positions);
+    }
+
+    private static synchronized <V> PatternMatcher<V> byteMatcher(final PatternMatcher<V> matcher)
+    {
+        PatternMatcher<V> byteMatcher = matcher.mByteMatcher;
+        if (byteMatcher != null) {
+            return byteMatcher;
+        }
+
+        Map<String, V> patternMap = new HashMap<String, V>();
+        for (int i=0; i<matcher.mPatterns.length; i++) {
+            patternMap.put(matcher.mPatterns[i], matcher.mValues[i]);
+        }
+
+        final Maker maker = new Maker(patternMap);
+        final Class superClass = matcher.getClass();
+
+        byteMatcher = AccessController.doPrivileged(new PrivilegedAction<PatternMatcher<V>>() {
+            public PatternMatcher<V> run() {
+                // Only share classes which extend a shared class, and not
+                // those of isolated matchers.
+                Object key = maker.getKey();
+                boolean shared = cPatternMatcherClasses.get(key) == superClass;
+                Class clz = shared ? (Class)cByteMatcherClasses.get(key) : null;
+
+                if (clz == null || clz.getSuperclass() != superClass) {
+                    long start = GeneratorMetrics.start(FACTORY);
+                    clz = maker.createByteClassFile(superClass).defineClass();
+                    if (shared) {
+                        cByteMatcherClasses.put(key, clz);
+                    }
+                    GeneratorMetrics.miss(FACTORY, start);
+                } else {
+                    GeneratorMetrics.hit(FACTORY);
+                }
+
+                return newInstance(clz, maker);
+            }
+        });
+
+        matcher.mByteMatcher = byteMatcher;
+        return byteMatcher;
+    }
+
+    /**
+     * Returns the character at the given index, or '\uffff' if past the end.
+     */
+    protected static char charAt(CharSequence lookup, int index) {
+        return index < lookup.length() ? lookup.charAt(index) : '\uffff';
+    }
+
+    /**
+     * Returns the unsigned byte at the given index as a char, or '\uffff' if
+     * past the end.
+     */
+    protected static char byteAt(byte[] lookup, int index, int end) {
+        return index < end ? (char)(lookup[index] & 0xff) : '\uffff';
+    }
+
+    /**
+     * Returns the closest match, like getMatch, but without copying the
+     * lookup. Returns null if no match.
+     */
+    Result<V> findResult(CharSequence lookup) {
+        int[] positions = checkPositions(null);
+        int index = findMatch(lookup, positions);
+        return index < 0 ? null : newResult(index, positions);
+    }
+
+    private Result<V> newResult(int index, int[] positions) {
+        String pattern = mPatterns[index];
+        int len = wildcardCount(pattern) * 2;
+        int[] copy;
+        if (len == 0) {
+            copy = NO_POSITIONS;
+        } else {
+            copy = new int[len];
+            System.arraycopy(positions, 0, copy, 0, len);
+        }
+        return new Result<V>(pattern, mValues[index], copy);
+    }
+
+    private int[] checkPositions(int[] positions) {
+        if (positions == null) {
+            positions = cScratch.get();
+            if (positions == null || positions.length < mMaxPositions) {
+                positions = new int[Math.max(mMaxPositions, 8)];
+                cScratch.set(positions);
+            }
+        } else if (positions.length < mMaxPositions) {
+            throw new IllegalArgumentException
+                ("Positions array length must be at least " + mMaxPositions);
+        }
+        return positions;
+    }
+
+    private static byte[] scratchBytes(int length) {
+        byte[] bytes = cByteScratch.get();
+        if (bytes == null || bytes.length < length) {
+            bytes = new byte[Math.max(length, 256)];
+            cByteScratch.set(bytes);
+        }
+        return bytes;
+    }
+
+    private static byte[] copy(ByteBuffer buffer, byte[] bytes) {
+        buffer.duplicate().get(bytes, 0, buffer.remaining());
+        return bytes;
+    }
+
+    /**
+     * Returns the pattern with all literal chars replaced by their UTF-8
+     * encoded bytes, one char per byte. Wildcards and terminators are kept.
+     */
+    static String toUtf8(String pattern) {
+        StringBuilder b = new StringBuilder(pattern.length());
+        for (int i=0; i<pattern.length(); ) {
+            int c = pattern.codePointAt(i);
+            i += Character.charCount(c);
+            if (c < 0x80 || c == '\uffff') {
+                b.append((char)c);
+            } else if (c < 0x800) {
+                b.append((char)(0xc0 | (c >> 6)));
+                b.append((char)(0x80 | (c & 0x3f)));
+            } else if (c < 0x10000) {
+                b.append((char)(0xe0 | (c >> 12)));
+                b.append((char)(0x80 | ((c >> 6) & 0x3f)));
+                b.append((char)(0x80 | (c & 0x3f)));
+            } else {
+                b.append((char)(0xf0 | (c >> 18)));
+                b.append((char)(0x80 | ((c >> 12) & 0x3f)));
+                b.append((char)(0x80 | ((c >> 6) & 0x3f)));
+                b.append((char)(0x80 | (c & 0x3f)));
+            }
+        }
+        return b.toString();
+    }
+
+    static int wildcardCount(String pattern) {
+        int count = 0;
+        for (int i=pattern.length(); --i>=0; ) {
+            if (pattern.charAt(i) == '*') {
+                count++;
+            }
+        }
+        return count;
+    }
+
     // Returns false if no more results should be added.
     protected static boolean addMatchResult(int limit,
                                             List results,
@@ -181,11 +686,27 @@ public abstract class PatternMatcher<V> {
     }
 
     private static class Maker {
+        // Minimum number of literal sub nodes to dispatch with a switch.
+        private static final int SWITCH_THRESHOLD = 4;
+
+        // Maximum number of trie nodes to generate in one method. Larger
+        // subtrees are generated in private helper methods, keeping each
+        // method well below the class file and JIT size limits.
+        private static final int MAX_METHOD_NODES = 150;
+
         private PatternNode mPatternRoot;
         private Object mKey;
         private Object[] mMappedValues;
+        private String[] mPatterns;
+        // Sorted patterns, with terminators.
+        private String[] mKeys;
         private int mMaxWildPerKey;
 
+        // When true, generate findMatch instead of fillMatchResults.
+        private boolean mFind;
+        // When true, generate findMatch against UTF-8 bytes.
+        private boolean mBytes;
+
         private TypeDesc mIntType;
         private TypeDesc mBooleanType;
         private TypeDesc mListType;
@@ -199,9 +720,18 @@ public abstract class PatternMatcher<V> {
         private LocalVariable mResultsLocal;
         private LocalVariable mPositionsLocal;
         private LocalVariable mIndexLocal;
+        private LocalVariable mEndLocal;
         private Stack mTempLocals;
         private Label mReturnLabel;
 
+        // Root node and node count of the method being generated.
+        private PatternNode mMethodRoot;
+        private int mMethodNodes;
+
+        // Helper methods which have yet to be generated.
+        private List mHelpers;
+        private int mHelperCount;
+
         private int mReferenceLine;
 
         Maker(Map patternMap) {
@@ -221,12 +751,14 @@ public abstract class PatternMatcher<V> {
             Arrays.sort(keys, new PatternComparator());
 
             mMappedValues = new Object[keys.length];
+            mPatterns = new String[keys.length];
             for (int i=0; i<keys.length; i++) {
                 String key = keys[i];
                 if (key.endsWith("\uffff")) {
                     key = key.substring(0, key.length() - 1);
                 }
                 mMappedValues[i] = patternMap.get(key);
+                mPatterns[i] = key;
             }
             
             // Build tree structure for managing pattern matching.
@@ -239,6 +771,7 @@ public abstract class PatternMatcher<V> {
             mMaxWildPerKey = mPatternRoot.getMaxWildcardCount();
 
             mKey = KeyFactory.createKey(keys);
+            mKeys = keys;
         }
 
         public Object getKey() {
@@ -249,43 +782,35 @@ public abstract class PatternMatcher<V> {
             return mMappedValues;
         }
 
-        public RuntimeClassFile createClassFile() {
+        public String[] getPatterns() {
+            return mPatterns;
+        }
+
+        public PatternNode getPatternRoot() {
+            return mPatternRoot;
+        }
+
+        public RuntimeClassFile createClassFile(ClassLoader parentLoader) {
             RuntimeClassFile cf = new RuntimeClassFile
                 (PatternMatcher.class.getName(),
                  PatternMatcher.class.getName(),
-                 PatternMatcher.class.getClassLoader());
-
-            cf.markSynthetic();
-            cf.setSourceFile(PatternMatcher.class.getName());
-            
-            // constructor
-            TypeDesc objectArrayType = TypeDesc.OBJECT.toArrayType();
-            TypeDesc[] params = {objectArrayType};
-            MethodInfo mi = cf.addConstructor(Modifiers.PUBLIC, params);
-            mBuilder = new CodeBuilder(mi);
-            mBuilder.loadThis();
-            mBuilder.loadLocal(mBuilder.getParameter(0));
-            mBuilder.invokeSuperConstructor(params);
-            mBuilder.returnVoid();
+                 parentLoader);
 
-            mIntType = TypeDesc.INT;
-            mBooleanType = TypeDesc.BOOLEAN;
-            mListType = TypeDesc.forClass(List.class);
-            mStringType = TypeDesc.STRING;
-            mObjectType = TypeDesc.OBJECT;
-            mIntArrayType = TypeDesc.INT.toArrayType();
+            beginClass(cf);
 
             // fillMatchResults method
             TypeDesc charArrayType = TypeDesc.CHAR.toArrayType();
-            params = new TypeDesc[]{charArrayType, mIntType, mListType};
-            mi = cf.addMethod(Modifiers.PUBLIC, "fillMatchResults", null, params);
+            TypeDesc[] params = new TypeDesc[]{charArrayType, mIntType, mListType};
+            MethodInfo mi = cf.addMethod(Modifiers.PUBLIC, "fillMatchResults", null, params);
             mBuilder = new CodeBuilder(mi);
 
+            mFind = false;
             mLookupLocal = mBuilder.getParameter(0);
             mLimitLocal = mBuilder.getParameter(1);
             mResultsLocal = mBuilder.getParameter(2);
             mPositionsLocal = mBuilder.createLocalVariable("positions", mIntArrayType);
             mIndexLocal = mBuilder.createLocalVariable("index", mIntType);
+            beginMethod(mPatternRoot);
 
             mBuilder.mapLineNumber(++mReferenceLine);
 
@@ -303,17 +828,310 @@ public abstract class PatternMatcher<V> {
             mReturnLabel.setLocation();
             mBuilder.returnVoid();
 
+            generateHelpers(cf);
+
+            // findMatch method
+            params = new TypeDesc[]{TypeDesc.forClass(CharSequence.class), mIntArrayType};
+            mi = cf.addMethod(Modifiers.PROTECTED, "findMatch", mIntType, params);
+            mBuilder = new CodeBuilder(mi);
+
+            mFind = true;
+            mLookupLocal = mBuilder.getParameter(0);
+            mPositionsLocal = mBuilder.getParameter(1);
+            mIndexLocal = mBuilder.createLocalVariable("index", mIntType);
+            beginMethod(mPatternRoot);
+
+            mBuilder.mapLineNumber(++mReferenceLine);
+
+            mBuilder.loadConstant(0);
+            mBuilder.storeLocal(mIndexLocal);
+            mTempLocals = new Stack();
+
+            generateBranches(mPatternRoot, -1, 0);
+
+            mBuilder.loadConstant(-1);
+            mBuilder.returnValue(mIntType);
+
+            generateHelpers(cf);
+
+            checkConstantPool(cf);
+            return cf;
+        }
+
+        /**
+         * Returns a subclass of the given generated class, which overrides
+         * findMatch against UTF-8 bytes.
+         */
+        public RuntimeClassFile createByteClassFile(Class superClass) {
+            RuntimeClassFile cf = new RuntimeClassFile
+                (superClass.getName(), superClass.getName(), superClass.getClassLoader());
+
+            beginClass(cf);
+
+            // Build the pattern tree with UTF-8 encoded chars.
+            PatternNode root = new PatternNode();
+            for (int i=0; i<mKeys.length; i++) {
+                root.buildPathTo(toUtf8(mKeys[i]), i);
+            }
+
+            // findMatch method for UTF-8 bytes
+            TypeDesc[] params = {
+                TypeDesc.BYTE.toArrayType(), mIntType, mIntType, mIntArrayType
+            };
+            MethodInfo mi = cf.addMethod(Modifiers.PROTECTED, "findMatch", mIntType, params);
+            mBuilder = new CodeBuilder(mi);
+
+            mFind = true;
+            mBytes = true;
+            mLookupLocal = mBuilder.getParameter(0);
+            mEndLocal = mBuilder.getParameter(2);
+            mPositionsLocal = mBuilder.getParameter(3);
+            mIndexLocal = mBuilder.createLocalVariable("index", mIntType);
+            beginMethod(root);
+
+            mBuilder.mapLineNumber(++mReferenceLine);
+
+            mBuilder.loadLocal(mBuilder.getParameter(1));
+            mBuilder.storeLocal(mIndexLocal);
+            mTempLocals = new Stack();
+
+            generateBranches(root, -1, 0);
+
+            mBuilder.loadConstant(-1);
+            mBuilder.returnValue(mIntType);
+
+            generateHelpers(cf);
+
+            checkConstantPool(cf);
             return cf;
         }
 
+        /**
+         * Defines the constructor, which passes the values and patterns to
+         * the super class.
+         */
+        private void beginClass(RuntimeClassFile cf) {
+            cf.markSynthetic();
+            cf.setSourceFile(PatternMatcher.class.getName());
+
+            TypeDesc objectArrayType = TypeDesc.OBJECT.toArrayType();
+            TypeDesc[] params = {objectArrayType, TypeDesc.STRING.toArrayType()};
+            MethodInfo mi = cf.addConstructor(Modifiers.PUBLIC, params);
+            mBuilder = new CodeBuilder(mi);
+            mBuilder.loadThis();
+            mBuilder.loadLocal(mBuilder.getParameter(0));
+            mBuilder.loadLocal(mBuilder.getParameter(1));
+            mBuilder.invokeSuperConstructor(params);
+            mBuilder.returnVoid();
+
+            mIntType = TypeDesc.INT;
+            mBooleanType = TypeDesc.BOOLEAN;
+            mListType = TypeDesc.forClass(List.class);
+            mStringType = TypeDesc.STRING;
+            mObjectType = TypeDesc.OBJECT;
+            mIntArrayType = TypeDesc.INT.toArrayType();
+
+            mHelpers = new ArrayList();
+            mHelperCount = 0;
+        }
+
+        /**
+         * @throws IllegalArgumentException if the class would have too many
+         * constants to be defined
+         */
+        private void checkConstantPool(RuntimeClassFile cf) {
+            // Constant 0 is reserved, and the count must fit in an unsigned short.
+            int size = cf.getConstantPool().getSize() + 1;
+            if (size >= 65535) {
+                throw new IllegalArgumentException
+                    ("Too many patterns: " + mPatterns.length +
+                     " patterns need " + size + " constant pool entries, " +
+                     "but a class can have at most 65534");
+            }
+        }
+
+        private void beginMethod(PatternNode root) {
+            mMethodRoot = root;
+            mMethodNodes = 0;
+            // Line numbers only need to be distinct within a method.
+            mReferenceLine = 0;
+        }
+
+        /**
+         * Generates all queued helper methods, which may queue more helpers.
+         * Each fill helper returns false if the result limit was reached, and
+         * each find helper returns the matched pattern index, or -1.
+         */
+        private void generateHelpers(RuntimeClassFile cf) {
+            while (!mHelpers.isEmpty()) {
+                Helper helper = (Helper)mHelpers.remove(0);
+
+                MethodInfo mi = cf.addMethod
+                    (Modifiers.PRIVATE, helper.mName, helperReturnType(), helperParams());
+                mi.markSynthetic();
+                mBuilder = new CodeBuilder(mi);
+
+                if (mBytes) {
+                    mLookupLocal = mBuilder.getParameter(0);
+                    mEndLocal = mBuilder.getParameter(1);
+                    mPositionsLocal = mBuilder.getParameter(2);
+                    mIndexLocal = mBuilder.getParameter(3);
+                } else if (mFind) {
+                    mLookupLocal = mBuilder.getParameter(0);
+                    mPositionsLocal = mBuilder.getParameter(1);
+                    mIndexLocal = mBuilder.getParameter(2);
+                } else {
+                    mLookupLocal = mBuilder.getParameter(0);
+                    mLimitLocal = mBuilder.getParameter(1);
+                    mResultsLocal = mBuilder.getParameter(2);
+                    mPositionsLocal = mBuilder.getParameter(3);
+                    mIndexLocal = mBuilder.getParameter(4);
+                }
+
+                mTempLocals = new Stack();
+                mReturnLabel = mBuilder.createLabel();
+                beginMethod(helper.mNode);
+
+                mBuilder.mapLineNumber(++mReferenceLine);
+
+                generateBranches(helper.mNode, helper.mDepth, helper.mPosIndex,
+                                 null, helper.mMatched);
+
+                if (mFind) {
+                    mBuilder.loadConstant(-1);
+                    mBuilder.returnValue(mIntType);
+                } else {
+                    mBuilder.loadConstant(true);
+                    mBuilder.returnValue(mBooleanType);
+                    mReturnLabel.setLocation();
+                    mBuilder.loadConstant(false);
+                    mBuilder.returnValue(mBooleanType);
+                }
+            }
+        }
+
+        private TypeDesc helperReturnType() {
+            return mFind ? mIntType : mBooleanType;
+        }
+
+        private TypeDesc[] helperParams() {
+            if (mBytes) {
+                return new TypeDesc[] {
+                    mLookupLocal.getType(), mIntType, mIntArrayType, mIntType
+                };
+            } else if (mFind) {
+                return new TypeDesc[] {
+                    mLookupLocal.getType(), mIntArrayType, mIntType
+                };
+            } else {
+                return new TypeDesc[] {
+                    mLookupLocal.getType(), mIntType, mListType, mIntArrayType, mIntType
+                };
+            }
+        }
+
+        /**
+         * Queues a helper method for the given node and generates a call to
+         * it. The index is passed by value, which is safe because generated
+         * branches always restore it.
+         */
+        private void generateHelperCall(PatternNode node, int depth, int posIndex,
+                                        boolean matched)
+        {
+            String name = (mBytes ? "findBytes$" : (mFind ? "find$" : "fill$")) + (mHelperCount++);
+            mHelpers.add(new Helper(name, node, depth, posIndex, matched));
+
+            mBuilder.loadThis();
+            mBuilder.loadLocal(mLookupLocal);
+            if (mBytes) {
+                mBuilder.loadLocal(mEndLocal);
+            } else if (!mFind) {
+                mBuilder.loadLocal(mLimitLocal);
+                mBuilder.loadLocal(mResultsLocal);
+            }
+            mBuilder.loadLocal(mPositionsLocal);
+            mBuilder.loadLocal(mIndexLocal);
+            mBuilder.invokePrivate(name, helperReturnType(), helperParams());
+
+            if (!mFind) {
+                mBuilder.ifZeroComparisonBranch(mReturnLabel, "==");
+                return;
+            }
+
+            LocalVariable result;
+            if (mTempLocals.isEmpty()) {
+                result = mBuilder.createLocalVariable("temp", mIntType);
+            } else {
+                result = (LocalVariable)mTempLocals.pop();
+            }
+            mBuilder.storeLocal(result);
+            Label noMatch = mBuilder.createLabel();
+            mBuilder.loadLocal(result);
+            mBuilder.ifZeroComparisonBranch(noMatch, "<");
+            mBuilder.loadLocal(result);
+            mBuilder.returnValue(mIntType);
+            noMatch.setLocation();
+            mTempLocals.push(result);
+        }
+
+        /**
+         * Loads the lookup char at the current index plus depth.
+         */
+        private void loadLookupChar(int depth) {
+            mBuilder.loadLocal(mLookupLocal);
+            mBuilder.loadLocal(mIndexLocal);
+            if (depth > 0) {
+                mBuilder.loadConstant(depth);
+                mBuilder.math(Opcode.IADD);
+            }
+            if (mBytes) {
+                mBuilder.loadLocal(mEndLocal);
+                mBuilder.invokeStatic(PatternMatcher.class.getName(), "byteAt", TypeDesc.CHAR,
+                                      new TypeDesc[] {mLookupLocal.getType(), mIntType, mIntType});
+            } else if (mFind) {
+                mBuilder.invokeStatic(PatternMatcher.class.getName(), "charAt", TypeDesc.CHAR,
+                                      new TypeDesc[] {mLookupLocal.getType(), mIntType});
+            } else {
+                mBuilder.loadFromArray(TypeDesc.CHAR);
+            }
+        }
+
         private void generateBranches(PatternNode node, int depth,
                                       int posIndex) {
-            generateBranches(node, depth, posIndex, null);
+            generateBranches(node, depth, posIndex, null, false);
         }
 
         private void generateBranches(PatternNode node, int depth,
                                       int posIndex,
                                       LocalVariable tempChar) {
+            generateBranches(node, depth, posIndex, tempChar, false);
+        }
+
+        /**
+         * @param matched when true, node char has already been matched
+         */
+        private void generateBranches(PatternNode node, int depth,
+                                      int posIndex,
+                                      LocalVariable tempChar,
+                                      boolean matched) {
+            if (node != mMethodRoot) {
+                int weight = node.getWeight();
+                if (mMethodNodes + weight > MAX_METHOD_NODES &&
+                    (weight <= MAX_METHOD_NODES || mMethodNodes >= MAX_METHOD_NODES))
+                {
+                    // Subtree doesn't fit, so generate it in a helper method.
+                    // The call itself is charged as one node.
+                    if (tempChar != null) {
+                        mTempLocals.push(tempChar);
+                    }
+                    mMethodNodes++;
+                    generateHelperCall(node, depth, posIndex, matched);
+                    return;
+                }
+            }
+
+            mMethodNodes++;
+
             int c = node.mChar;
             List subNodes = node.mSubNodes;
 
@@ -344,6 +1162,10 @@ public abstract class PatternMatcher<V> {
                 
                 if (subNodes == null) {
                     generateWildcard(null, depth, posIndex + 2);
+                    // Restore the index, or else sibling branches examine the
+                    // wrong chars.
+                    mBuilder.loadLocal(savedIndex);
+                    mBuilder.storeLocal(mIndexLocal);
                 } else {
                     int size = subNodes.size();
                     for (int i=0; i<size; i++) {
@@ -365,18 +1187,12 @@ public abstract class PatternMatcher<V> {
 
             Label noMatch = mBuilder.createLabel();
 
-            if (c >= 0) {
+            if (c >= 0 && !matched) {
                 if (tempChar != null) {
                     mBuilder.loadLocal(tempChar);
                     mTempLocals.push(tempChar);
                 } else {
-                    mBuilder.loadLocal(mLookupLocal);
-                    mBuilder.loadLocal(mIndexLocal);
-                    if (depth > 0) {
-                        mBuilder.loadConstant(depth);
-                        mBuilder.math(Opcode.IADD);
-                    }
-                    mBuilder.loadFromArray(TypeDesc.CHAR);
+                    loadLookupChar(depth);
                 }
                 
                 mBuilder.loadConstant((char)c);
@@ -384,11 +1200,7 @@ public abstract class PatternMatcher<V> {
             }
             
             if (subNodes != null) {
-                int size = subNodes.size();
-                for (int i=0; i<size; i++) {
-                    generateBranches
-                        ((PatternNode)subNodes.get(i), depth + 1, posIndex);
-                }
+                generateSubBranches(subNodes, depth + 1, posIndex);
             }
             
             if (node.mPattern != null) {
@@ -399,6 +1211,60 @@ public abstract class PatternMatcher<V> {
             noMatch.setLocation();
         }
         
+        /**
+         * Generates branches for all the sub nodes of a node. Literal sub
+         * nodes have distinct chars, and so at most one of them can match. A
+         * wide set of literals is dispatched with a switch, and the others are
+         * compared one at a time.
+         */
+        private void generateSubBranches(List subNodes, int depth, int posIndex) {
+            int size = subNodes.size();
+
+            List literals = new ArrayList(size);
+            for (int i=0; i<size; i++) {
+                PatternNode sub = (PatternNode)subNodes.get(i);
+                if (sub.mChar != '*') {
+                    literals.add(sub);
+                }
+            }
+
+            if (literals.size() < SWITCH_THRESHOLD) {
+                for (int i=0; i<size; i++) {
+                    generateBranches((PatternNode)subNodes.get(i), depth, posIndex);
+                }
+                return;
+            }
+
+            int count = literals.size();
+            int[] cases = new int[count];
+            Label[] locations = new Label[count];
+            for (int i=0; i<count; i++) {
+                cases[i] = ((PatternNode)literals.get(i)).mChar;
+                locations[i] = mBuilder.createLabel();
+            }
+
+            Label noMatch = mBuilder.createLabel();
+
+            loadLookupChar(depth);
+            mBuilder.switchBranch(cases, locations, noMatch);
+
+            for (int i=0; i<count; i++) {
+                locations[i].setLocation();
+                generateBranches((PatternNode)literals.get(i), depth, posIndex, null, true);
+                mBuilder.branch(noMatch);
+            }
+
+            noMatch.setLocation();
+
+            // Wildcards are sorted after literals, and they must always be tried.
+            for (int i=0; i<size; i++) {
+                PatternNode sub = (PatternNode)subNodes.get(i);
+                if (sub.mChar == '*') {
+                    generateBranches(sub, depth, posIndex);
+                }
+            }
+        }
+
         private void generateWildcard(PatternNode node, int depth,
                                       int posIndex) {
             Label loopStart = mBuilder.createLabel().setLocation();
@@ -415,13 +1281,7 @@ public abstract class PatternMatcher<V> {
             }
             mBuilder.storeToArray(TypeDesc.INT);
 
-            mBuilder.loadLocal(mLookupLocal);
-            mBuilder.loadLocal(mIndexLocal);
-            if (depth > 0) {
-                mBuilder.loadConstant(depth);
-                mBuilder.math(Opcode.IADD);
-            }
-            mBuilder.loadFromArray(TypeDesc.CHAR);
+            loadLookupChar(depth);
 
             if (node == null) {
                 mBuilder.loadConstant('\uffff');
@@ -452,9 +1312,20 @@ public abstract class PatternMatcher<V> {
         private void generateAddMatchResult(PatternNode node) {
             mBuilder.mapLineNumber(++mReferenceLine);
 
+            if (mFind) {
+                // First match is the closest match.
+                mBuilder.loadConstant(node.mOrder);
+                mBuilder.returnValue(mIntType);
+                return;
+            }
+
             mBuilder.loadLocal(mLimitLocal);
             mBuilder.loadLocal(mResultsLocal);
-            mBuilder.loadConstant(node.mPattern);
+            // Load the pattern from the array rather than as a constant, which
+            // would cost two constant pool entries per pattern.
+            mBuilder.loadThis();
+            mBuilder.loadConstant(node.mOrder);
+            mBuilder.invokeVirtual("getPattern", mStringType, new TypeDesc[] {mIntType});
             mBuilder.loadThis();
             mBuilder.loadField("mValues", TypeDesc.OBJECT.toArrayType());
             mBuilder.loadConstant(node.mOrder);
@@ -477,11 +1348,28 @@ public abstract class PatternMatcher<V> {
         }
     }
 
+    private static class Helper {
+        final String mName;
+        final PatternNode mNode;
+        final int mDepth;
+        final int mPosIndex;
+        final boolean mMatched;
+
+        Helper(String name, PatternNode node, int depth, int posIndex, boolean matched) {
+            mName = name;
+            mNode = node;
+            mDepth = depth;
+            mPosIndex = posIndex;
+            mMatched = matched;
+        }
+    }
+
     private static class PatternNode {
         public final int mChar;
         public String mPattern;
         public int mOrder;
         public List mSubNodes;
+        private int mWeight;
 
         public PatternNode() {
             mChar = -1;
@@ -509,6 +1397,24 @@ public abstract class PatternMatcher<V> {
             return height;
         }
 
+        /**
+         * Returns the number of nodes in this subtree, including this one.
+         */
+        public int getWeight() {
+            int weight = mWeight;
+            if (weight == 0) {
+                weight = 1;
+                if (mSubNodes != null) {
+                    int size = mSubNodes.size();
+                    for (int i=0; i<size; i++) {
+                        weight += ((PatternNode)mSubNodes.get(i)).getWeight();
+                    }
+                }
+                mWeight = weight;
+            }
+            return weight;
+        }
+
         public int getWildcardCount() {
             int wildCount = 0;
             String pattern = mPattern;
@@ -591,6 +1497,304 @@ public abstract class PatternMatcher<V> {
         }
     }
 
+    /**
+     * Deterministic automaton which finds the same closest match as the
+     * generated code. The generated code searches the pattern tree depth
+     * first, trying each wildcard extension in turn, and it returns the first
+     * match found. Each automaton state is the ordered list of search threads
+     * which are still alive after the chars consumed so far, with duplicates
+     * and all threads following a completed match removed.
+     */
+    private static final class Automaton {
+        // Maximum number of states and transitions to build.
+        private static final int MAX_STATES = 4096;
+        private static final int MAX_TRANSITIONS = 1 << 20;
+
+        // Thread kinds, stored in the low bits of a thread code.
+        private static final int READ = 0, LOOP = 1, ACCEPT = 2;
+
+        /**
+         * Returns null if automaton is too large.
+         */
+        static Automaton build(PatternNode root) {
+            return new Builder(root).build();
+        }
+
+        // Sorted chars which appear in the patterns. Char class zero is for
+        // all other chars, and the last class is for the terminator.
+        private final char[] mChars;
+        // Classes of ASCII chars. A byte array would only hold classes up to
+        // 127, which is just enough while '*' is never a literal char.
+        private final char[] mAsciiClasses;
+        private final int mClassCount;
+
+        // Transitions are indexed by state times class count, plus class.
+        // Positive values are states, and others are a decided result,
+        // encoded as -1 - matchIndex.
+        private final int[] mTransitions;
+        private final int mStart;
+
+        Automaton(char[] chars, int[] transitions, int start) {
+            mChars = chars;
+            mClassCount = chars.length + 2;
+            mAsciiClasses = new char[128];
+            for (int i=0; i<chars.length && chars[i] < 128; i++) {
+                mAsciiClasses[chars[i]] = (char)(i + 1);
+            }
+            mTransitions = transitions;
+            mStart = start;
+        }
+
+        /**
+         * Returns the index of the closest matching pattern, or -1 if none.
+         */
+        int find(CharSequence lookup) {
+            int[] transitions = mTransitions;
+            int classCount = mClassCount;
+            int state = mStart;
+            for (int i=0, len=lookup.length(); i<len && state > 0; i++) {
+                state = transitions[state * classCount + charClass(lookup.charAt(i))];
+            }
+            if (state > 0) {
+                state = transitions[state * classCount + classCount - 1];
+            }
+            return -1 - state;
+        }
+
+        int charClass(char c) {
+            if (c < 128) {
+                return mAsciiClasses[c];
+            }
+            if (c == '\uffff') {
+                return mClassCount - 1;
+            }
+            int index = Arrays.binarySearch(mChars, c);
+            return index < 0 ? 0 : (index + 1);
+        }
+
+        private static final class Builder {
+            private final PatternNode mRoot;
+            private final List mNodes = new ArrayList();
+            private final Map mNodeIds = new HashMap();
+            private final Map mParents = new HashMap();
+            private char[] mChars;
+            private Automaton mClasses;
+
+            private final List mStates = new ArrayList();
+            private final Map mStateIds = new HashMap();
+
+            Builder(PatternNode root) {
+                mRoot = root;
+            }
+
+            Automaton build() {
+                HashSet chars = new HashSet();
+                gatherNodes(mRoot, chars);
+                chars.remove(Character.valueOf('\uffff'));
+                mChars = new char[chars.size()];
+                int i = 0;
+                for (Object c : chars) {
+                    mChars[i++] = ((Character)c).charValue();
+                }
+                Arrays.sort(mChars);
+                mClasses = new Automaton(mChars, null, 0);
+
+                int classCount = mChars.length + 2;
+                // State zero isn't used, because zero is a decided result.
+                mStates.add(null);
+
+                List start = new ThreadList();
+                expandRead(mRoot, start);
+                int startState = encode(start);
+
+                int[] transitions = new int[classCount * 16];
+                for (int state = 1; state < mStates.size(); state++) {
+                    if (mStates.size() > MAX_STATES ||
+                        (long)mStates.size() * classCount > MAX_TRANSITIONS)
+                    {
+                        return null;
+                    }
+                    List threads = (List)mStates.get(state);
+                    for (int cls = 0; cls < classCount; cls++) {
+                        List next = new ThreadList();
+                        int size = threads.size();
+                        for (int j=0; j<size; j++) {
+                            step(((Integer)threads.get(j)).intValue(), cls, classCount, next);
+                        }
+                        int value;
+                        if (cls == classCount - 1) {
+                            // No chars follow the terminator.
+                            value = -1 - firstAccept(next);
+                        } else {
+                            value = encode(next);
+                        }
+                        int index = state * classCount + cls;
+                        if (index >= transitions.length) {
+                            transitions = resize(transitions, transitions.length * 2);
+                        }
+                        transitions[index] = value;
+                    }
+                }
+
+                transitions = resize(transitions, mStates.size() * classCount);
+                return new Automaton(mChars, transitions, startState);
+            }
+
+            private static int[] resize(int[] array, int length) {
+                int[] newArray = new int[length];
+                System.arraycopy(array, 0, newArray, 0, Math.min(array.length, length));
+                return newArray;
+            }
+
+            private void gatherNodes(PatternNode node, HashSet chars) {
+                mNodeIds.put(node, mNodes.size());
+                mNodes.add(node);
+                if (node.mChar >= 0 && node.mChar != '*') {
+                    chars.add(Character.valueOf((char)node.mChar));
+                }
+                List subNodes = node.mSubNodes;
+                if (subNodes != null) {
+                    for (int i=0; i<subNodes.size(); i++) {
+                        PatternNode sub = (PatternNode)subNodes.get(i);
+                        mParents.put(sub, node);
+                        gatherNodes(sub, chars);
+                    }
+                }
+            }
+
+            private int nodeClass(PatternNode node) {
+                char c = (char)node.mChar;
+                return c == '\uffff' ? (mChars.length + 1) : mClasses.charClass(c);
+            }
+
+            private int code(PatternNode node, int kind) {
+                return (((Integer)mNodeIds.get(node)).intValue() << 2) | kind;
+            }
+
+            private PatternNode node(int code) {
+                return (PatternNode)mNodes.get(code >> 2);
+            }
+
+            /**
+             * Adds the threads which follow a matched literal node.
+             */
+            private void expandRead(PatternNode node, List out) {
+                List subNodes = node.mSubNodes;
+                if (subNodes != null) {
+                    for (int i=0; i<subNodes.size(); i++) {
+                        PatternNode sub = (PatternNode)subNodes.get(i);
+                        if (sub.mChar == '*') {
+                            expandWildcard(sub, out);
+                        } else {
+                            out.add(code(sub, READ));
+                        }
+                    }
+                }
+                if (node.mPattern != null) {
+                    out.add((node.mOrder << 2) | ACCEPT);
+                }
+            }
+
+            /**
+             * Adds the threads of a wildcard node, which loop over the chars
+             * before each sub node in turn.
+             */
+            private void expandWildcard(PatternNode node, List out) {
+                List subNodes = node.mSubNodes;
+                if (subNodes != null) {
+                    for (int i=0; i<subNodes.size(); i++) {
+                        out.add(code((PatternNode)subNodes.get(i), LOOP));
+                    }
+                }
+                if (node.mPattern != null) {
+                    out.add((node.mOrder << 2) | ACCEPT);
+                }
+            }
+
+            private void step(int thread, int cls, int classCount, List out) {
+                switch (thread & 3) {
+                case READ: {
+                    PatternNode node = node(thread);
+                    if (nodeClass(node) == cls) {
+                        expandRead(node, out);
+                    }
+                    break;
+                }
+                case LOOP: {
+                    if (cls == classCount - 1) {
+                        // Wildcard loop stops at the terminator.
+                        break;
+                    }
+                    PatternNode node = node(thread);
+                    if (node.mChar == '*') {
+                        List threads = new ThreadList();
+                        expandWildcard(node, threads);
+                        for (int i=0; i<threads.size(); i++) {
+                            step(((Integer)threads.get(i)).intValue(), cls, classCount, out);
+                        }
+                    } else if (nodeClass(node) == cls) {
+                        expandRead(node, out);
+                    }
+                    // Extend the wildcard by one char and try again.
+                    out.add(thread);
+                    break;
+                }
+                default:
+                    out.add(thread);
+                    break;
+                }
+            }
+
+            private static int firstAccept(List threads) {
+                for (int i=0; i<threads.size(); i++) {
+                    int thread = ((Integer)threads.get(i)).intValue();
+                    if ((thread & 3) == ACCEPT) {
+                        return thread >> 2;
+                    }
+                }
+                return -1;
+            }
+
+            private int encode(List threads) {
+                if (threads.isEmpty()) {
+                    return 0;
+                }
+                int first = ((Integer)threads.get(0)).intValue();
+                if ((first & 3) == ACCEPT) {
+                    // No other thread can find a closer match.
+                    return -1 - (first >> 2);
+                }
+                Integer state = (Integer)mStateIds.get(threads);
+                if (state == null) {
+                    state = mStates.size();
+                    mStates.add(threads);
+                    mStateIds.put(threads, state);
+                }
+                return state.intValue();
+            }
+        }
+
+        /**
+         * List which ignores duplicate threads and all threads added after an
+         * accepting thread, which can never be found first.
+         */
+        private static final class ThreadList extends ArrayList {
+            private final HashSet mSeen = new HashSet();
+            private boolean mClosed;
+
+            @Override
+            public boolean add(Object thread) {
+                if (mClosed || !mSeen.add(thread)) {
+                    return false;
+                }
+                if ((((Integer)thread).intValue() & 3) == ACCEPT) {
+                    mClosed = true;
+                }
+                return super.add(thread);
+            }
+        }
+    }
+
     private static class PatternComparator implements Comparator {
         public int compare(Object a, Object b) {
             String sa = (String)a;
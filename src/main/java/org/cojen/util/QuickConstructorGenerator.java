@@ -38,11 +38,15 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.UndeclaredThrowableException;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 
 import org.cojen.classfile.CodeBuilder;
+import org.cojen.classfile.Label;
+import org.cojen.classfile.LocalVariable;
 import org.cojen.classfile.RuntimeClassFile;
 import org.cojen.classfile.TypeDesc;
 
@@ -62,10 +66,16 @@ import org.cojen.classfile.TypeDesc;
  * @since 2.1
  */
 public class QuickConstructorGenerator {
+    private static final String FACTORY = QuickConstructorGenerator.class.getName();
+
     // Map<factory class, Map<object type, factory instance>>
     @SuppressWarnings("unchecked")
     private static Cache<Class<?>, Cache<Class<?>, Object>> cCache = new WeakIdentityCache(17);
 
+    // Map<factory class, Map<object types key, factory instance>>
+    @SuppressWarnings("unchecked")
+    private static Cache<Class<?>, Cache<Object, Object>> cMultiCache = new WeakIdentityCache(17);
+
     /**
      * Returns a factory instance for one type of object. Each method in the
      * interface defines a constructor via its parameters. Any checked
@@ -112,6 +122,7 @@ public class QuickConstructorGenerator {
         }
         F instance = (F) innerCache.get(objectType);
         if (instance != null) {
+            GeneratorMetrics.hit(FACTORY);
             return instance;
         }
 
@@ -125,25 +136,21 @@ public class QuickConstructorGenerator {
             throw new IllegalArgumentException("Factory must be an interface");
         }
 
+        long start = GeneratorMetrics.start(FACTORY);
         final Cache<Class<?>, Object> fInnerCache = innerCache;
-        return AccessController.doPrivileged(new PrivilegedAction<F>() {
+        instance = AccessController.doPrivileged(new PrivilegedAction<F>() {
             public F run() {
                 return getInstance(fInnerCache, objectType, factory);
             }
         });
+        GeneratorMetrics.miss(FACTORY, start);
+        return instance;
     }
 
     private static synchronized <F> F getInstance(Cache<Class<?>, Object> innerCache,
                                                   Class<?> objectType, Class<F> factory)
     {
-        String prefix = objectType.getName();
-        if (prefix.startsWith("java.")) {
-            // Defining classes in java packages is restricted.
-            int index = prefix.lastIndexOf('.');
-            if (index > 0) {
-                prefix = prefix.substring(index + 1);
-            }
-        }
+        String prefix = classNamePrefix(objectType);
 
         RuntimeClassFile cf = null;
 
@@ -165,24 +172,7 @@ public class QuickConstructorGenerator {
                      objectType.getName() + "\" or supertype: " + method);
             }
 
-            Class<?>[] methodExTypes = method.getExceptionTypes();
-
-            for (Class<?> ctorExType : ctor.getExceptionTypes()) {
-                if (RuntimeException.class.isAssignableFrom(ctorExType) ||
-                    Error.class.isAssignableFrom(ctorExType)) {
-                    continue;
-                }
-                exCheck: {
-                    // Make sure method declares throwing it or a supertype.
-                    for (Class<?> methodExType : methodExTypes) {
-                        if (methodExType.isAssignableFrom(ctorExType)) {
-                            break exCheck;
-                        }
-                    }
-                    throw new IllegalArgumentException("Method must declare throwing \"" +
-                                                       ctorExType.getName() +"\": " + method);
-                }
-            }
+            checkExceptions(ctor, method);
 
             if (cf == null) {
                 cf = new RuntimeClassFile(prefix, null, objectType.getClassLoader());
@@ -223,4 +213,257 @@ public class QuickConstructorGenerator {
 
         return instance;
     }
+
+    /**
+     * Returns a factory instance for many types of objects, selected by a
+     * type id. Each method in the interface must have an int as its first
+     * parameter, which is the index of the type in the objectTypes
+     * array. The remaining parameters define a constructor, which every
+     * object type must have. The method return types must be a common
+     * supertype of all the object types. The generated methods select the
+     * constructor with a table switch, and so dispatch by type id is as fast
+     * as calling a single type factory.
+     *
+     * <p>Here is an example for deserializing different kinds of records:
+     *
+     * <pre>
+     * public interface RecordFactory {
+     *     Record newRecord(int typeId, DataInput in) throws IOException;
+     * }
+     * </pre>
+     *
+     * Here's an example of it being used:
+     *
+     * <pre>
+     * RecordFactory rf = QuickConstructorGenerator.getInstance
+     *     (new Class[] {Order.class, Customer.class, Invoice.class}, RecordFactory.class);
+     * ...
+     * Record rec = rf.newRecord(in.readUnsignedByte(), in);
+     * </pre>
+     *
+     * If a method is passed a type id which is out of bounds, it throws an
+     * IllegalArgumentException.
+     *
+     * @param objectTypes types of objects to construct, indexed by type id
+     * @param factory interface defining which objects can be constructed
+     * @throws IllegalArgumentException if factory type is not an interface,
+     * if it is malformed, or if no class loader can see all of the object
+     * types
+     */
+    @SuppressWarnings("unchecked")
+    public static synchronized <F> F getInstance(Class<?>[] objectTypes,
+                                                 final Class<F> factory)
+    {
+        if (objectTypes == null || objectTypes.length == 0) {
+            throw new IllegalArgumentException("No object types");
+        }
+        if (factory == null) {
+            throw new IllegalArgumentException("No factory type");
+        }
+
+        final Class<?>[] types = objectTypes.clone();
+        for (Class<?> type : types) {
+            if (type == null) {
+                throw new IllegalArgumentException("No object type");
+            }
+        }
+
+        Cache<Object, Object> innerCache = cMultiCache.get(factory);
+        if (innerCache == null) {
+            innerCache = new SoftValueCache(5);
+            cMultiCache.put(factory, innerCache);
+        }
+        final Object key = KeyFactory.createKey(types);
+        F instance = (F) innerCache.get(key);
+        if (instance != null) {
+            GeneratorMetrics.hit(FACTORY);
+            return instance;
+        }
+
+        if (!factory.isInterface()) {
+            throw new IllegalArgumentException("Factory must be an interface");
+        }
+
+        long start = GeneratorMetrics.start(FACTORY);
+        final Cache<Object, Object> fInnerCache = innerCache;
+        instance = AccessController.doPrivileged(new PrivilegedAction<F>() {
+            public F run() {
+                return getInstance(fInnerCache, key, types, factory);
+            }
+        });
+        GeneratorMetrics.miss(FACTORY, start);
+        return instance;
+    }
+
+    private static synchronized <F> F getInstance(Cache<Object, Object> innerCache, Object key,
+                                                  Class<?>[] objectTypes, Class<F> factory)
+    {
+        ClassLoader loader = commonLoader(objectTypes);
+
+        RuntimeClassFile cf = null;
+
+        for (Method method : factory.getMethods()) {
+            if (!Modifier.isAbstract(method.getModifiers())) {
+                continue;
+            }
+
+            Class<?>[] methodParams = method.getParameterTypes();
+            if (methodParams.length == 0 || methodParams[0] != int.class) {
+                throw new IllegalArgumentException
+                    ("Method must have an int type id as its first parameter: " + method);
+            }
+            Class<?>[] ctorParams = new Class[methodParams.length - 1];
+            System.arraycopy(methodParams, 1, ctorParams, 0, ctorParams.length);
+
+            Constructor[] ctors = new Constructor[objectTypes.length];
+            for (int i=0; i<objectTypes.length; i++) {
+                Class<?> objectType = objectTypes[i];
+                try {
+                    ctors[i] = objectType.getConstructor(ctorParams);
+                } catch (NoSuchMethodException e) {
+                    throw new IllegalArgumentException(e);
+                }
+                if (!method.getReturnType().isAssignableFrom(objectType)) {
+                    throw new IllegalArgumentException
+                        ("Method return type must be \"" +
+                         objectType.getName() + "\" or supertype: " + method);
+                }
+                checkExceptions(ctors[i], method);
+            }
+
+            if (cf == null) {
+                cf = new RuntimeClassFile(classNamePrefix(factory), null, loader);
+                cf.setSourceFile(QuickConstructorGenerator.class.getName());
+                cf.setTarget("1.5");
+                cf.addInterface(factory);
+                cf.markSynthetic();
+                cf.addDefaultConstructor();
+            }
+
+            // Now define the method that selects the constructor by type id.
+            CodeBuilder b = new CodeBuilder(cf.addMethod(method));
+            LocalVariable typeId = b.getParameter(0);
+
+            int[] cases = new int[ctors.length];
+            Label[] locations = new Label[ctors.length];
+            for (int i=0; i<ctors.length; i++) {
+                cases[i] = i;
+                locations[i] = b.createLabel();
+            }
+            Label unknown = b.createLabel();
+
+            b.loadLocal(typeId);
+            b.switchBranch(cases, locations, unknown);
+
+            int count = b.getParameterCount();
+            for (int i=0; i<ctors.length; i++) {
+                locations[i].setLocation();
+                b.newObject(TypeDesc.forClass(objectTypes[i]));
+                b.dup();
+                for (int j=1; j<count; j++) {
+                    b.loadLocal(b.getParameter(j));
+                }
+                b.invoke(ctors[i]);
+                b.returnValue(TypeDesc.OBJECT);
+            }
+
+            unknown.setLocation();
+            TypeDesc exType = TypeDesc.forClass(IllegalArgumentException.class);
+            TypeDesc sbType = TypeDesc.forClass(StringBuilder.class);
+            b.newObject(exType);
+            b.dup();
+            b.newObject(sbType);
+            b.dup();
+            b.loadConstant("Unknown type id: ");
+            b.invokeConstructor(sbType, new TypeDesc[] {TypeDesc.STRING});
+            b.loadLocal(typeId);
+            b.invokeVirtual(sbType, "append", sbType, new TypeDesc[] {TypeDesc.INT});
+            b.invokeVirtual(sbType, "toString", TypeDesc.STRING, null);
+            b.invokeConstructor(exType, new TypeDesc[] {TypeDesc.STRING});
+            b.throwObject();
+        }
+
+        if (cf == null) {
+            // No methods found to implement.
+            throw new IllegalArgumentException("No methods in factory to implement");
+        }
+
+        F instance;
+        try {
+            instance = (F) cf.defineClass().newInstance();
+        } catch (IllegalAccessException e) {
+            throw new UndeclaredThrowableException(e);
+        } catch (InstantiationException e) {
+            throw new UndeclaredThrowableException(e);
+        }
+
+        innerCache.put(key, instance);
+
+        return instance;
+    }
+
+    private static String classNamePrefix(Class<?> type) {
+        String prefix = type.getName();
+        if (prefix.startsWith("java.")) {
+            // Defining classes in java packages is restricted.
+            int index = prefix.lastIndexOf('.');
+            if (index > 0) {
+                prefix = prefix.substring(index + 1);
+            }
+        }
+        return prefix;
+    }
+
+    /**
+     * Ensures that the method declares throwing all the checked exceptions
+     * of the constructor.
+     */
+    private static void checkExceptions(Constructor ctor, Method method) {
+        Class<?>[] methodExTypes = method.getExceptionTypes();
+
+        for (Class<?> ctorExType : ctor.getExceptionTypes()) {
+            if (RuntimeException.class.isAssignableFrom(ctorExType) ||
+                Error.class.isAssignableFrom(ctorExType)) {
+                continue;
+            }
+            exCheck: {
+                // Make sure method declares throwing it or a supertype.
+                for (Class<?> methodExType : methodExTypes) {
+                    if (methodExType.isAssignableFrom(ctorExType)) {
+                        break exCheck;
+                    }
+                }
+                throw new IllegalArgumentException("Method must declare throwing \"" +
+                                                   ctorExType.getName() +"\": " + method);
+            }
+        }
+    }
+
+    /**
+     * Returns the class loader of one of the given types, which can load all
+     * of the others.
+     */
+    private static ClassLoader commonLoader(Class<?>[] types) {
+        Set<ClassLoader> tried = new HashSet<ClassLoader>();
+        candidates: for (Class<?> candidate : types) {
+            ClassLoader loader = candidate.getClassLoader();
+            if (!tried.add(loader)) {
+                continue;
+            }
+            for (Class<?> type : types) {
+                if (type.getClassLoader() == loader) {
+                    continue;
+                }
+                try {
+                    if (Class.forName(type.getName(), false, loader) != type) {
+                        continue candidates;
+                    }
+                } catch (ClassNotFoundException e) {
+                    continue candidates;
+                }
+            }
+            return loader;
+        }
+        throw new IllegalArgumentException("No class loader can load all of the object types");
+    }
 }
@@ -276,6 +276,11 @@ public class SoftValueCache<K, V> extends RefCache<K, V> {
             mNext = next;
         }
 
+        @Override
+        public Object owner() {
+            return mCache;
+        }
+
         @Override
         public void remove() {
             mCache.removeCleared(this);
@@ -219,6 +219,11 @@ public class WeakCanonicalSet<T> extends AbstractSet<T> {
             mNext = next;
         }
 
+        @Override
+        public Object owner() {
+            return mSet;
+        }
+
         @Override
         public void remove() {
             mSet.removeCleared(this);
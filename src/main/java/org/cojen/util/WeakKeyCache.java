@@ -288,6 +288,11 @@ public class WeakKeyCache<K, V> extends RefCache<K, V> {
             mNext = next;
         }
 
+        @Override
+        public Object owner() {
+            return mCache;
+        }
+
         @Override
         public void remove() {
             mCache.removeCleared(this);
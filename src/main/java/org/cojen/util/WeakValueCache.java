@@ -277,6 +277,11 @@ public class WeakValueCache<K, V> extends RefCache<K, V> {
             mNext = next;
         }
 
+        @Override
+        public Object owner() {
+            return mCache;
+        }
+
         @Override
         public void remove() {
             mCache.removeCleared(this);
@@ -0,0 +1,129 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.cojen.util.KeyFactory;
+
+/**
+ * Compares the collision rate and throughput of KeyFactory array hashing
+ * against the legacy shifting hash. Run with
+ * "-Dorg.cojen.util.KeyFactory.LEGACY_ARRAY_HASH=true" to measure the
+ * throughput of the legacy hash within KeyFactory itself.
+ *
+ * @author Brian S O'Neill
+ */
+public class KeyFactoryHashBenchmark {
+    // Prime bucket count, as used by the hashtables in this package.
+    private static final int BUCKETS = 10007;
+
+    public static void main(String[] args) throws Exception {
+        int count = 100000;
+
+        for (int length : new int[] {8, 32, 64, 256}) {
+            byte[][] keys = randomKeys(count, length, new Random(length));
+            // Keys which differ only in their first few bytes.
+            byte[][] suffixed = commonSuffixKeys(count, length);
+
+            System.out.println("byte[" + length + "]");
+            report("  random, current", currentHashes(keys));
+            report("  random, legacy ", legacyHashes(keys));
+            report("  suffix, current", currentHashes(suffixed));
+            report("  suffix, legacy ", legacyHashes(suffixed));
+
+            for (int i=0; i<5; i++) {
+                throughput(keys);
+            }
+        }
+    }
+
+    private static byte[][] randomKeys(int count, int length, Random rnd) {
+        byte[][] keys = new byte[count][length];
+        for (byte[] key : keys) {
+            rnd.nextBytes(key);
+        }
+        return keys;
+    }
+
+    private static byte[][] commonSuffixKeys(int count, int length) {
+        byte[][] keys = new byte[count][length];
+        for (int i=0; i<count; i++) {
+            byte[] key = keys[i];
+            key[0] = (byte) i;
+            if (length > 1) {
+                key[1] = (byte) (i >> 8);
+            }
+            if (length > 2) {
+                key[2] = (byte) (i >> 16);
+            }
+        }
+        return keys;
+    }
+
+    private static int[] currentHashes(byte[][] keys) {
+        int[] hashes = new int[keys.length];
+        for (int i=0; i<keys.length; i++) {
+            hashes[i] = KeyFactory.createKey(keys[i]).hashCode();
+        }
+        return hashes;
+    }
+
+    private static int[] legacyHashes(byte[][] keys) {
+        int[] hashes = new int[keys.length];
+        for (int i=0; i<keys.length; i++) {
+            byte[] a = keys[i];
+            int hash = 0;
+            for (int j = a.length; --j >= 0; ) {
+                hash = (hash << 1) + a[j];
+            }
+            hashes[i] = hash == 0 ? -1 : hash;
+        }
+        return hashes;
+    }
+
+    private static void report(String name, int[] hashes) {
+        Set<Integer> distinct = new HashSet<Integer>();
+        int[] buckets = new int[BUCKETS];
+        int maxChain = 0;
+        for (int hash : hashes) {
+            distinct.add(hash);
+            int chain = ++buckets[(hash & 0x7fffffff) % BUCKETS];
+            if (chain > maxChain) {
+                maxChain = chain;
+            }
+        }
+        System.out.println(name + ": distinct hashes = " + distinct.size() +
+                           ", longest chain = " + maxChain);
+    }
+
+    private static void throughput(byte[][] keys) {
+        int sum = 0;
+        long start = System.nanoTime();
+        for (int r=0; r<10; r++) {
+            for (byte[] key : keys) {
+                // New key each time, since keys cache their hashcode.
+                sum += KeyFactory.createKey(key).hashCode();
+            }
+        }
+        long end = System.nanoTime();
+        System.out.println("  throughput: " + ((end - start) / (keys.length * 10L)) +
+                           " ns per key (" + sum + ")");
+    }
+}
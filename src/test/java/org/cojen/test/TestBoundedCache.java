@@ -0,0 +1,54 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.test;
+
+import org.cojen.util.BoundedCache;
+import org.cojen.util.Cache;
+
+/**
+ * 
+ *
+ * @author Brian S O'Neill
+ */
+public class TestBoundedCache {
+    public static void main(String[] arg) throws Exception {
+        Cache<Integer, Integer> cache = new BoundedCache<Integer, Integer>(100);
+
+        // Hot entries, which are used repeatedly.
+        for (int i = 0; i < 10; i++) {
+            cache.put(i, i * 15);
+        }
+
+        for (int i = 10, j = 150; i < 100000; i++, j += 15) {
+            if (i % 10000 == 0) {
+                System.out.println("Size = " + cache.size());
+            }
+            cache.put(i, j);
+            cache.get(i % 10);
+        }
+
+        int hot = 0;
+        for (int i = 0; i < 10; i++) {
+            if (cache.get(i) != null) {
+                hot++;
+            }
+        }
+
+        System.out.println("Size = " + cache.size() + ", hot entries retained = " + hot);
+        System.out.println(cache);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.test;
+
+import org.cojen.util.KeyFactory;
+
+/**
+ * Checks equals, hashCode and compareTo of keys generated by {@link
+ * KeyFactory#getFactory}, for primitive, object and array components.
+ *
+ * @author Brian S O'Neill
+ */
+public class TestKeyFactory {
+    public interface Keys {
+        Object primitives(int i, long j, float f, double d, boolean z, char c);
+
+        Comparable objects(String s, Integer i);
+
+        KeyFactory.CompositeKey arrays(int[] a, Object[] b);
+
+        // Same shape as arrays, and so keys are interchangeable.
+        Object moreArrays(int[] a, Object[] b);
+    }
+
+    private static int cFailures;
+
+    public static void main(String[] arg) throws Exception {
+        Keys keys = KeyFactory.getFactory(Keys.class);
+
+        testPrimitives(keys);
+        testObjects(keys);
+        testArrays(keys);
+
+        if (cFailures != 0) {
+            throw new Exception(cFailures + " failures");
+        }
+        System.out.println("Passed");
+    }
+
+    private static void testPrimitives(Keys keys) {
+        Object a = keys.primitives(1, 2L, 3.0f, 4.0, true, 'x');
+        Object b = keys.primitives(1, 2L, 3.0f, 4.0, true, 'x');
+        equal("primitives", a, b);
+
+        notEqual("int", a, keys.primitives(2, 2L, 3.0f, 4.0, true, 'x'));
+        notEqual("long", a, keys.primitives(1, 3L, 3.0f, 4.0, true, 'x'));
+        notEqual("float", a, keys.primitives(1, 2L, 3.5f, 4.0, true, 'x'));
+        notEqual("double", a, keys.primitives(1, 2L, 3.0f, 4.5, true, 'x'));
+        notEqual("boolean", a, keys.primitives(1, 2L, 3.0f, 4.0, false, 'x'));
+        notEqual("char", a, keys.primitives(1, 2L, 3.0f, 4.0, true, 'y'));
+
+        // Floating point components are compared by their bits, like Float.equals.
+        equal("NaN", keys.primitives(0, 0, Float.NaN, Double.NaN, false, ' '),
+              keys.primitives(0, 0, Float.NaN, Double.NaN, false, ' '));
+        notEqual("-0.0", keys.primitives(0, 0, 0.0f, 0.0, false, ' '),
+                 keys.primitives(0, 0, -0.0f, -0.0, false, ' '));
+
+        // The first component decides, then the next.
+        ordered("int order", keys.primitives(1, 9L, 9.0f, 9.0, true, 'z'),
+                keys.primitives(2, 0L, 0.0f, 0.0, false, 'a'));
+        ordered("long order", keys.primitives(1, 2L, 9.0f, 9.0, true, 'z'),
+                keys.primitives(1, 3L, 0.0f, 0.0, false, 'a'));
+        ordered("boolean order", keys.primitives(1, 2L, 3.0f, 4.0, false, 'z'),
+                keys.primitives(1, 2L, 3.0f, 4.0, true, 'a'));
+        ordered("char order", keys.primitives(1, 2L, 3.0f, 4.0, true, 'a'),
+                keys.primitives(1, 2L, 3.0f, 4.0, true, 'b'));
+        ordered("negative int", keys.primitives(-1, 0L, 0.0f, 0.0, false, ' '),
+                keys.primitives(1, 0L, 0.0f, 0.0, false, ' '));
+    }
+
+    private static void testObjects(Keys keys) {
+        Comparable a = keys.objects("hello", 1);
+        equal("objects", a, keys.objects(new String("hello"), new Integer(1)));
+        notEqual("string", a, keys.objects("world", 1));
+        notEqual("integer", a, keys.objects("hello", 2));
+
+        equal("nulls", keys.objects(null, null), keys.objects(null, null));
+        notEqual("null string", a, keys.objects(null, 1));
+        notEqual("null integer", a, keys.objects("hello", null));
+
+        ordered("string order", keys.objects("a", 9), keys.objects("b", 0));
+        ordered("integer order", keys.objects("a", 1), keys.objects("a", 2));
+        // Nulls sort high.
+        ordered("null order", keys.objects("a", 1), keys.objects(null, 1));
+        ordered("null integer order", keys.objects("a", 1), keys.objects("a", null));
+    }
+
+    private static void testArrays(Keys keys) {
+        Object a = keys.arrays(new int[] {1, 2, 3}, new Object[] {"x", new int[] {4}});
+        Object b = keys.arrays(new int[] {1, 2, 3}, new Object[] {"x", new int[] {4}});
+        equal("arrays", a, b);
+        equal("same shape", a,
+              keys.moreArrays(new int[] {1, 2, 3}, new Object[] {"x", new int[] {4}}));
+
+        notEqual("int array", a,
+                 keys.arrays(new int[] {1, 2, 4}, new Object[] {"x", new int[] {4}}));
+        notEqual("int array length", a,
+                 keys.arrays(new int[] {1, 2}, new Object[] {"x", new int[] {4}}));
+        notEqual("nested array", a,
+                 keys.arrays(new int[] {1, 2, 3}, new Object[] {"x", new int[] {5}}));
+
+        equal("empty arrays", keys.arrays(new int[0], new Object[0]),
+              keys.arrays(new int[0], new Object[0]));
+        equal("null arrays", keys.arrays(null, null), keys.arrays(null, null));
+        notEqual("null array", keys.arrays(null, null), keys.arrays(new int[0], null));
+
+        // Array hashcodes are computed over all elements.
+        int[] big1 = new int[100];
+        int[] big2 = new int[100];
+        big2[0] = 1;
+        notEqual("long array", keys.arrays(big1, null), keys.arrays(big2, null));
+
+        ordered("int array order", keys.arrays(new int[] {1, 2}, null),
+                keys.arrays(new int[] {1, 3}, null));
+        ordered("shorter array first", keys.arrays(new int[] {1, 2}, null),
+                keys.arrays(new int[] {1, 2, 0}, null));
+        ordered("object array order", keys.arrays(new int[0], new Object[] {"a"}),
+                keys.arrays(new int[0], new Object[] {"b"}));
+        ordered("nested array order", keys.arrays(null, new Object[] {new int[] {1}}),
+                keys.arrays(null, new Object[] {new int[] {2}}));
+    }
+
+    private static void equal(String name, Object a, Object b) {
+        check(name + ": equals", a.equals(b) && b.equals(a));
+        check(name + ": hashCode", a.hashCode() == b.hashCode());
+        check(name + ": compareTo", compare(a, b) == 0 && compare(b, a) == 0);
+    }
+
+    private static void notEqual(String name, Object a, Object b) {
+        check(name + ": not equals", !a.equals(b) && !b.equals(a));
+        check(name + ": compareTo", compare(a, b) != 0 && compare(b, a) != 0);
+    }
+
+    /**
+     * Checks that a sorts before b.
+     */
+    private static void ordered(String name, Object a, Object b) {
+        check(name + ": not equals", !a.equals(b));
+        check(name + ": compareTo", compare(a, b) < 0 && compare(b, a) > 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compare(Object a, Object b) {
+        return ((Comparable)a).compareTo(b);
+    }
+
+    private static void check(String name, boolean result) {
+        if (!result) {
+            System.out.println("Failed: " + name);
+            cFailures++;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ *  Copyright 2010 Brian S O'Neill
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.test;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.cojen.util.IncrementalPatternMatcher;
+import org.cojen.util.PatternMatcher;
+
+/**
+ * Checks that the deterministic automaton, the UTF-8 byte matcher, the
+ * incremental matcher and matchAll all find the same closest match as
+ * {@link PatternMatcher#getMatch(String)}, over random wildcard pattern sets.
+ *
+ * @author Brian S O'Neill
+ */
+public class TestPatternMatcher {
+    // Includes chars which are encoded in two and three UTF-8 bytes.
+    private static final String PATTERN_CHARS = "ab/.\u00e9\u4e00";
+    private static final String LOOKUP_CHARS = "ab/.x\u00e9\u4e00";
+
+    private static int cFailures;
+
+    /**
+     * @param arg optional number of pattern sets, and random seed
+     */
+    public static void main(String[] arg) throws Exception {
+        int sets = arg.length > 0 ? Integer.parseInt(arg[0]) : 200;
+        long seed = arg.length > 1 ? Long.parseLong(arg[1]) : 8675309;
+
+        Random rnd = new Random(seed);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int i=0; i<sets; i++) {
+                testPatternSet(rnd, executor);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        if (cFailures != 0) {
+            throw new Exception(cFailures + " failures, seed " + seed);
+        }
+        System.out.println("Passed " + sets + " pattern sets");
+    }
+
+    private static void testPatternSet(Random rnd, ExecutorService executor) throws Exception {
+        Map<String, Integer> patternMap = new HashMap<String, Integer>();
+        int count = 1 + rnd.nextInt(40);
+        for (int i=0; i<count; i++) {
+            patternMap.put(randomPattern(rnd), i);
+        }
+
+        PatternMatcher<Integer> matcher = PatternMatcher.forPatterns(patternMap);
+        PatternMatcher<Integer> deterministic = PatternMatcher.forPatterns(patternMap, true);
+        IncrementalPatternMatcher<Integer> incremental =
+            new IncrementalPatternMatcher<Integer>(1 + rnd.nextInt(4));
+        incremental.setPatterns(patternMap);
+
+        // Large enough for the parallel matchAll to split into batches.
+        List<String> lookups = new ArrayList<String>();
+        for (int i=0; i<1000; i++) {
+            lookups.add(randomLookup(rnd));
+        }
+
+        int[] positions = new int[matcher.getMaxWildcardPositions()];
+
+        for (String lookup : lookups) {
+            PatternMatcher.Result<Integer> expected = matcher.getMatch(lookup);
+            Integer value = expected == null ? null : expected.getValue();
+
+            check("automaton", lookup, value, deterministic.getMatchValue(lookup));
+
+            int index = matcher.getMatchIndex(lookup, positions);
+            check("index", lookup, expected, index < 0 ? null : matcher.getPattern(index));
+            if (expected != null && index >= 0) {
+                int[] expectedPositions = expected.getWildcardPositions();
+                int[] actualPositions = new int[expectedPositions.length];
+                System.arraycopy(positions, 0, actualPositions, 0, actualPositions.length);
+                check("positions", lookup, Arrays.toString(expectedPositions),
+                      Arrays.toString(actualPositions));
+            }
+
+            // Surround the encoded lookup with bytes which must be ignored.
+            byte[] utf8 = lookup.getBytes("UTF-8");
+            byte[] bytes = new byte[utf8.length + 4];
+            Arrays.fill(bytes, (byte)'a');
+            System.arraycopy(utf8, 0, bytes, 2, utf8.length);
+            check("bytes", lookup, value, matcher.getMatchValue(bytes, 2, utf8.length));
+
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 2, utf8.length);
+            check("heap buffer", lookup, value, matcher.getMatchValue(buffer));
+            ByteBuffer direct = ByteBuffer.allocateDirect(utf8.length);
+            direct.put(utf8).flip();
+            check("direct buffer", lookup, value, matcher.getMatchValue(direct));
+
+            check("incremental", lookup, expected, incremental.getMatch(lookup));
+            check("incremental value", lookup, value, incremental.getMatchValue(lookup));
+
+            check("incremental matches", lookup,
+                  patterns(matcher.getMatches(lookup, 100)),
+                  patterns(incremental.getMatches(lookup, 100)));
+        }
+
+        int[] indexes = new int[lookups.size()];
+        matcher.matchAll(lookups, indexes);
+        checkIndexes("matchAll", matcher, lookups, indexes);
+
+        indexes = new int[lookups.size()];
+        deterministic.matchAll(lookups, indexes, executor);
+        checkIndexes("parallel matchAll", matcher, lookups, indexes);
+    }
+
+    private static void checkIndexes(String name, PatternMatcher<Integer> matcher,
+                                     List<String> lookups, int[] indexes)
+    {
+        for (int i=0; i<lookups.size(); i++) {
+            String lookup = lookups.get(i);
+            check(name, lookup, matcher.getMatch(lookup),
+                  indexes[i] < 0 ? null : matcher.getPattern(indexes[i]));
+        }
+    }
+
+    private static String randomPattern(Random rnd) {
+        StringBuilder b = new StringBuilder();
+        int length = rnd.nextInt(7);
+        for (int i=0; i<length; i++) {
+            if (rnd.nextInt(4) == 0) {
+                b.append('*');
+            } else {
+                b.append(PATTERN_CHARS.charAt(rnd.nextInt(PATTERN_CHARS.length())));
+            }
+        }
+        return b.toString();
+    }
+
+    private static String randomLookup(Random rnd) {
+        StringBuilder b = new StringBuilder();
+        int length = rnd.nextInt(9);
+        for (int i=0; i<length; i++) {
+            b.append(LOOKUP_CHARS.charAt(rnd.nextInt(LOOKUP_CHARS.length())));
+        }
+        return b.toString();
+    }
+
+    private static List<String> patterns(PatternMatcher.Result<Integer>[] results) {
+        List<String> patterns = new ArrayList<String>();
+        for (PatternMatcher.Result<Integer> result : results) {
+            patterns.add(result.getPattern());
+        }
+        return patterns;
+    }
+
+    private static void check(String name, String lookup, Object expected, Object actual) {
+        if (expected instanceof PatternMatcher.Result) {
+            expected = ((PatternMatcher.Result)expected).getPattern();
+        }
+        if (actual instanceof PatternMatcher.Result) {
+            actual = ((PatternMatcher.Result)actual).getPattern();
+        }
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            if (cFailures++ < 20) {
+                System.out.println("Failed: " + name + ", lookup \"" + lookup +
+                                   "\": expected " + expected + ", actual " + actual);
+            }
+        }
+    }
+}